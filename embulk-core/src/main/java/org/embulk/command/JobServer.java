@@ -0,0 +1,266 @@
+package org.embulk.command;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Injector;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigLoader;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.ModelManager;
+import org.embulk.exec.ExecutionResult;
+import org.embulk.exec.GuessExecutor;
+import org.embulk.exec.LocalExecutor;
+import org.embulk.exec.PartialExecutionException;
+import org.embulk.exec.PreviewExecutor;
+import org.embulk.exec.PreviewResult;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.util.Pages;
+import org.slf4j.ILoggerFactory;
+import org.slf4j.Logger;
+
+// HTTP server that runs jobs on a warm EmbulkService so that jobs don't pay
+// for startup of JVM, Guice and JRuby. Request body is a config in YAML (or
+// JSON) and response body is JSON:
+//
+//   POST /run      => {"config_diff": {...}, "next_config": {...}}
+//   POST /preview  => {"schema": [...], "records": [[...], ...]}
+//   POST /guess    => {"config_diff": {...}, "next_config": {...}}
+//
+// Errors are {"error": "message"} with status 400 for config errors or 500 for
+// others. Stack traces are logged but not returned. Partially committed
+// transactions are cleaned up.
+//
+// Requests must have "Authorization: Bearer <token>" header because the server
+// runs any configuration posted to it, and any local user can connect to a
+// loopback address. See loadToken.
+//
+// Jobs run concurrently up to maxJobs. Tasks of the jobs share the thread
+// pool of LocalExecutor (max_threads).
+public class JobServer
+{
+    private final Injector injector;
+    private final ModelManager model;
+    private final Logger logger;
+    private final HttpServer server;
+    private final ExecutorService jobExecutor;
+    private final byte[] token;
+
+    public JobServer(Injector injector, InetSocketAddress address, int maxJobs, String token)
+            throws IOException
+    {
+        if (token == null || token.isEmpty()) {
+            throw new ConfigException("Authentication token is required");
+        }
+        this.injector = injector;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.model = injector.getInstance(ModelManager.class);
+        this.logger = injector.getInstance(ILoggerFactory.class).getLogger(JobServer.class.getName());
+        this.jobExecutor = Executors.newFixedThreadPool(maxJobs,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("embulk-job-%d")
+                        .build());
+        this.server = HttpServer.create(address, 0);
+        server.setExecutor(jobExecutor);
+        server.createContext("/run", new JobHandler() {
+            protected Object handle(ConfigSource config)
+            {
+                return run(config);
+            }
+        });
+        server.createContext("/preview", new JobHandler() {
+            protected Object handle(ConfigSource config)
+            {
+                return preview(config);
+            }
+        });
+        server.createContext("/guess", new JobHandler() {
+            protected Object handle(ConfigSource config)
+            {
+                return guess(config);
+            }
+        });
+    }
+
+    public void start()
+    {
+        server.start();
+        logger.info("Listening on {}", server.getAddress());
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+        jobExecutor.shutdown();
+    }
+
+    public InetSocketAddress getAddress()
+    {
+        return server.getAddress();
+    }
+
+    // reads a token from the file. If the file doesn't exist, creates it with a
+    // random token. The file is readable only by the owner on POSIX file systems.
+    public static String loadToken(Path path)
+            throws IOException
+    {
+        if (!Files.exists(path)) {
+            byte[] bytes = new byte[32];
+            new SecureRandom().nextBytes(bytes);
+            String token = BaseEncoding.base16().encode(bytes);
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            try {
+                try {
+                    Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+                } catch (UnsupportedOperationException ex) {
+                    Files.createFile(path);
+                }
+                Files.write(path, token.getBytes(StandardCharsets.UTF_8));
+                return token;
+            } catch (FileAlreadyExistsException ex) {
+                // created by another server
+            }
+        }
+        String token = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+        if (token.isEmpty()) {
+            throw new ConfigException("Authentication token file "+path+" is empty");
+        }
+        return token;
+    }
+
+    private Map<String, Object> run(ConfigSource config)
+    {
+        ExecSession exec = newExecSession(config);
+        LocalExecutor local = injector.getInstance(LocalExecutor.class);
+        ExecutionResult result;
+        try {
+            result = local.run(exec, config);
+        } catch (PartialExecutionException partial) {
+            exec.getLogger(JobServer.class).info("Transaction partially failed. Cleaning up the intermediate data.");
+            try {
+                local.cleanup(config, partial.getResumeState());
+            } catch (Throwable ex) {
+                partial.addSuppressed(ex);
+            }
+            throw partial;
+        }
+        return configDiffResponse(config, result.getConfigDiff());
+    }
+
+    private Map<String, Object> preview(ConfigSource config)
+    {
+        ExecSession exec = newExecSession(config);
+        PreviewResult result = injector.getInstance(PreviewExecutor.class).preview(exec, config);
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("schema", result.getSchema());
+        response.put("records", Pages.toObjects(result.getSchema(), result.getPages()));
+        return response;
+    }
+
+    private Map<String, Object> guess(ConfigSource config)
+    {
+        ExecSession exec = newExecSession(config);
+        ConfigDiff configDiff = injector.getInstance(GuessExecutor.class).guess(exec, config);
+        return configDiffResponse(config, configDiff);
+    }
+
+    private Map<String, Object> configDiffResponse(ConfigSource config, ConfigDiff configDiff)
+    {
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("config_diff", configDiff);
+        response.put("next_config", config.deepCopy().merge(configDiff));
+        return response;
+    }
+
+    private ExecSession newExecSession(ConfigSource config)
+    {
+        return new ExecSession(injector, config.getNestedOrSetEmpty("exec"));
+    }
+
+    private abstract class JobHandler
+            implements HttpHandler
+    {
+        protected abstract Object handle(ConfigSource config);
+
+        @Override
+        public void handle(HttpExchange exchange)
+                throws IOException
+        {
+            int status;
+            Object response;
+            try {
+                if (!isAuthorized(exchange)) {
+                    status = 401;
+                    response = error("Authentication token is required");
+                } else if (!exchange.getRequestMethod().equals("POST")) {
+                    status = 405;
+                    response = error("POST is required");
+                } else {
+                    ConfigSource config;
+                    try (InputStream in = exchange.getRequestBody()) {
+                        config = injector.getInstance(ConfigLoader.class).fromYaml(in);
+                    }
+                    response = handle(config);
+                    status = 200;
+                }
+            } catch (ConfigException ex) {
+                status = 400;
+                response = error(getMessage(ex));
+            } catch (Throwable ex) {
+                logger.error(String.format("Job %s failed", exchange.getRequestURI()), ex);
+                status = 500;
+                response = error(getMessage(ex));
+            }
+
+            byte[] body = model.writeObject(response).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+
+        private boolean isAuthorized(HttpExchange exchange)
+        {
+            String header = exchange.getRequestHeaders().getFirst("Authorization");
+            if (header == null || !header.startsWith("Bearer ")) {
+                return false;
+            }
+            // constant-time comparison
+            return MessageDigest.isEqual(token,
+                    header.substring("Bearer ".length()).getBytes(StandardCharsets.UTF_8));
+        }
+
+        private String getMessage(Throwable ex)
+        {
+            return ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName();
+        }
+
+        private Map<String, Object> error(String message)
+        {
+            Map<String, Object> response = new HashMap<String, Object>();
+            response.put("error", message);
+            return response;
+        }
+    }
+}
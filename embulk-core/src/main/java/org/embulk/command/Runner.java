@@ -10,6 +10,9 @@ import java.io.FileOutputStream;
 import java.io.BufferedWriter;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.NumberFormat;
 import org.yaml.snakeyaml.Yaml;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -41,6 +44,18 @@ public class Runner
 
         private String resumeStatePath;
         public String getResumeStatePath() { return resumeStatePath; }
+
+        private String serverAddress;
+        public String getServerAddress() { return serverAddress; }
+
+        private int serverPort;
+        public int getServerPort() { return serverPort; }
+
+        private int serverMaxJobs;
+        public int getServerMaxJobs() { return serverMaxJobs; }
+
+        private String serverTokenFile;
+        public String getServerTokenFile() { return serverTokenFile; }
     }
 
     private final Options options;
@@ -72,6 +87,9 @@ public class Runner
         case "preview":
             preview(args[0]);
             break;
+        case "server":
+            server();
+            break;
         default:
             throw new RuntimeException("Unsupported command: "+command);
         }
@@ -170,6 +188,29 @@ public class Runner
         System.err.println(yml);
     }
 
+    public void server()
+    {
+        String address = options.getServerAddress() != null ? options.getServerAddress() : "127.0.0.1";
+        int port = options.getServerPort() > 0 ? options.getServerPort() : 8866;
+        int maxJobs = options.getServerMaxJobs() > 0 ? options.getServerMaxJobs() : 4;
+        try {
+            // the token file is created with a random token if it doesn't exist
+            Path tokenFile = (options.getServerTokenFile() != null ?
+                    Paths.get(options.getServerTokenFile()) :
+                    Paths.get(System.getProperty("user.home"), ".embulk", "server_token"));
+            String token = JobServer.loadToken(tokenFile);
+            System.err.println("Clients must send \"Authorization: Bearer <token>\" header with the token in " + tokenFile);
+            JobServer server = new JobServer(injector, new InetSocketAddress(address, port), maxJobs, token);
+            server.start();
+            // runs until this process is killed
+            Thread.currentThread().join();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } catch (InterruptedException ex) {
+            // exit
+        }
+    }
+
     private void checkFileWritable(String path)
     {
         if (path != null) {
@@ -3,6 +3,7 @@ package org.embulk.config;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Properties;
 import com.google.inject.Inject;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -11,6 +12,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
 
 public class ConfigLoader
 {
@@ -31,11 +33,17 @@ public class ConfigLoader
 
     public ConfigSource fromYamlFile(File path) throws IOException
     {
-        Yaml yaml = new Yaml();
-        Object parsedYaml;
         try (FileInputStream is = new FileInputStream(path)) {
-            parsedYaml = yaml.load(is);
+            return fromYaml(is);
         }
+    }
+
+    public ConfigSource fromYaml(InputStream stream)
+    {
+        // SafeConstructor doesn't instantiate arbitrary classes by !! tags
+        // because configs may come from network (see JobServer)
+        Yaml yaml = new Yaml(new SafeConstructor());
+        Object parsedYaml = yaml.load(stream);
         ObjectNode source = objectToJsonObject(parsedYaml);
         return new DataSourceImpl(model, source);
     }
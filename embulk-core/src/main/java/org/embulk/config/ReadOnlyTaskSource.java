@@ -0,0 +1,141 @@
+package org.embulk.config;
+
+import java.util.List;
+import java.util.Map;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import com.google.common.collect.ImmutableList;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+// TaskSource shared by processors. Tasks are deserialized only once for each
+// task type so that cost of loadTask doesn't depend on the size of the task
+// (for example, number of input files).
+//
+// Tasks loaded from a ReadOnlyTaskSource share field values with each other.
+// Setters of a task don't affect other tasks but values must not be modified.
+// Nested TaskSources and ConfigSources of the tasks are also ReadOnlyTaskSource.
+public class ReadOnlyTaskSource
+        extends DataSourceImpl
+{
+    private final ConcurrentMap<Class<?>, Object> taskCache = new ConcurrentHashMap<Class<?>, Object>();
+
+    ReadOnlyTaskSource(ModelManager model, ObjectNode data)
+    {
+        super(model, data);
+    }
+
+    public static TaskSource of(TaskSource source)
+    {
+        if (source instanceof ReadOnlyTaskSource || !(source instanceof DataSourceImpl)) {
+            return source;
+        }
+        return new ReadOnlyTaskSource(((DataSourceImpl) source).model, source.getObjectNode());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T loadTask(Class<T> taskType)
+    {
+        Object cached = taskCache.get(taskType);
+        if (cached == null) {
+            T task = super.loadTask(taskType);
+            makeNestedReadOnly(task);
+            cached = taskCache.putIfAbsent(taskType, task);
+            if (cached == null) {
+                cached = task;
+            }
+        }
+        return copyTask(taskType, (T) cached);
+    }
+
+    private static void makeNestedReadOnly(Object task)
+    {
+        Map<String, Object> objects = ((TaskInvocationHandler) Proxy.getInvocationHandler(task)).getObjects();
+        for (String name : ImmutableList.copyOf(objects.keySet())) {
+            Object value = objects.get(name);
+            if (value instanceof DataSourceImpl) {
+                objects.put(name, readOnly((DataSourceImpl) value));
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                if (!list.isEmpty() && list.get(0) instanceof DataSourceImpl) {
+                    ImmutableList.Builder<Object> builder = ImmutableList.builder();
+                    for (Object element : list) {
+                        builder.add(readOnly((DataSourceImpl) element));
+                    }
+                    objects.put(name, builder.build());
+                }
+            }
+        }
+    }
+
+    private static ReadOnlyTaskSource readOnly(DataSourceImpl source)
+    {
+        if (source instanceof ReadOnlyTaskSource) {
+            return (ReadOnlyTaskSource) source;
+        }
+        return new ReadOnlyTaskSource(source.model, source.getObjectNode());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T copyTask(Class<T> taskType, T task)
+    {
+        TaskInvocationHandler handler = (TaskInvocationHandler) Proxy.getInvocationHandler(task);
+        return (T) Proxy.newProxyInstance(
+                taskType.getClassLoader(), new Class<?>[] { taskType },
+                new TaskInvocationHandler(model, taskType,
+                    new ConcurrentHashMap<String, Object>(handler.getObjects()),
+                    handler.getInjectedFields()));
+    }
+
+    @Override
+    protected DataSourceImpl newInstance(ModelManager model, ObjectNode data)
+    {
+        return new ReadOnlyTaskSource(model, data);
+    }
+
+    @Override
+    public DataSourceImpl getNestedOrSetEmpty(String attrName)
+    {
+        if (!data.has(attrName)) {
+            throw readOnlyException();
+        }
+        return super.getNestedOrSetEmpty(attrName);
+    }
+
+    @Override
+    public DataSourceImpl set(String attrName, Object v)
+    {
+        throw readOnlyException();
+    }
+
+    @Override
+    public DataSourceImpl setNested(String attrName, DataSource v)
+    {
+        throw readOnlyException();
+    }
+
+    @Override
+    public DataSourceImpl setAll(DataSource other)
+    {
+        throw readOnlyException();
+    }
+
+    @Override
+    public DataSourceImpl merge(DataSource other)
+    {
+        throw readOnlyException();
+    }
+
+    // deepCopy returns a modifiable copy
+    @Override
+    public DataSourceImpl deepCopy()
+    {
+        return new DataSourceImpl(model, data.deepCopy());
+    }
+
+    private static UnsupportedOperationException readOnlyException()
+    {
+        return new UnsupportedOperationException("TaskSource shared by processors can't be modified");
+    }
+}
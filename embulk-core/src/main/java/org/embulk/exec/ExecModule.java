@@ -14,6 +14,7 @@ import org.embulk.spi.time.DateTimeZoneSerDe;
 import org.embulk.spi.time.TimestampSerDe;
 import org.embulk.spi.ParserPlugin;
 import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.PageStoreFactory;
 import org.embulk.spi.util.CharsetSerDe;
 import static org.embulk.plugin.InjectedPluginSource.registerPluginTo;
 
@@ -27,7 +28,12 @@ public class ExecModule
 
         binder.bind(ILoggerFactory.class).toProvider(LoggerProvider.class);
         binder.bind(ModelManager.class).in(Scopes.SINGLETON);
+        binder.bind(MemoryBudget.class).in(Scopes.SINGLETON);
         binder.bind(BufferAllocator.class).to(PooledBufferAllocator.class).in(Scopes.SINGLETON);
+        binder.bind(PageStoreFactory.class).to(TempFilePageStoreFactory.class).in(Scopes.SINGLETON);
+
+        // transactions share the thread pool of LocalExecutor
+        binder.bind(LocalExecutor.class).in(Scopes.SINGLETON);
 
         // GuessExecutor
         registerPluginTo(binder, ParserPlugin.class, "system_guess", GuessExecutor.GuessParserPlugin.class);
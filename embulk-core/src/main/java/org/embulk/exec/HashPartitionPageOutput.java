@@ -0,0 +1,181 @@
+package org.embulk.exec;
+
+import java.util.List;
+import com.google.common.collect.ImmutableList;
+import io.airlift.slice.Slice;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Column;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.SchemaVisitor;
+import org.embulk.spi.util.RecordCopier;
+
+// PageOutput that routes records to destinations by a hash of key columns so
+// that records with the same keys are written to the same destination. Records
+// are copied to a PageBuilder of each destination.
+//
+// Hash values don't depend on the JVM so that a key is routed to the same
+// destination in every task and every run.
+public class HashPartitionPageOutput
+        implements PageOutput
+{
+    private final List<Column> keyColumns;
+    private final List<PageOutput> destinations;
+    private final PageReader reader;
+    private final RecordCopier copier;
+    private final PageBuilder[] builders;
+    private final HashVisitor hasher = new HashVisitor();
+
+    public HashPartitionPageOutput(BufferAllocator allocator, Schema schema,
+            List<Column> keyColumns, List<PageOutput> destinations)
+    {
+        this.keyColumns = keyColumns;
+        this.destinations = destinations;
+        this.reader = new PageReader(schema);
+        this.copier = new RecordCopier(schema);
+        this.builders = new PageBuilder[destinations.size()];
+        for (int i=0; i < builders.length; i++) {
+            builders[i] = new PageBuilder(allocator, schema, destinations.get(i));
+        }
+    }
+
+    public static List<Column> lookupKeyColumns(Schema schema, List<String> names)
+    {
+        ImmutableList.Builder<Column> builder = ImmutableList.builder();
+        for (String name : names) {
+            Column found = null;
+            for (Column column : schema.getColumns()) {
+                if (column.getName().equals(name)) {
+                    found = column;
+                    break;
+                }
+            }
+            if (found == null) {
+                throw new ConfigException(String.format("Partition key column '%s' does not exist", name));
+            }
+            builder.add(found);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        // the reader releases the page
+        reader.setPage(page);
+        while (reader.nextRecord()) {
+            copier.copy(reader, builders[getPartition(hash(reader), builders.length)]);
+        }
+    }
+
+    int hash(PageReader record)
+    {
+        hasher.record = record;
+        hasher.hash = 1;
+        for (Column column : keyColumns) {
+            if (record.isNull(column)) {
+                hasher.hash = 31 * hasher.hash;
+            } else {
+                column.visit(hasher);
+            }
+        }
+        return hasher.hash;
+    }
+
+    static int getPartition(int hash, int count)
+    {
+        // mixes bits so that sequential numbers are spread evenly
+        int h = hash;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % count;
+    }
+
+    @Override
+    public void finish()
+    {
+        for (PageBuilder builder : builders) {
+            builder.finish();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        RuntimeException exception = null;
+        reader.close();
+        for (PageBuilder builder : builders) {
+            builder.close();
+        }
+        for (PageOutput destination : destinations) {
+            try {
+                destination.close();
+            } catch (RuntimeException ex) {
+                if (exception == null) {
+                    exception = ex;
+                } else {
+                    exception.addSuppressed(ex);
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private static class HashVisitor
+            implements SchemaVisitor
+    {
+        private PageReader record;
+        private int hash;
+
+        @Override
+        public void booleanColumn(Column column)
+        {
+            hash = 31 * hash + (record.getBoolean(column) ? 1231 : 1237);
+        }
+
+        @Override
+        public void longColumn(Column column)
+        {
+            hash = 31 * hash + hashLong(record.getLong(column));
+        }
+
+        @Override
+        public void doubleColumn(Column column)
+        {
+            hash = 31 * hash + hashLong(Double.doubleToLongBits(record.getDouble(column)));
+        }
+
+        @Override
+        public void stringColumn(Column column)
+        {
+            // hashes UTF-8 bytes without decoding
+            Slice utf8 = record.getStringSlice(column);
+            int h = 0;
+            for (int i=0; i < utf8.length(); i++) {
+                h = 31 * h + utf8.getByte(i);
+            }
+            hash = 31 * hash + h;
+        }
+
+        @Override
+        public void timestampColumn(Column column)
+        {
+            hash = 31 * hash + hashLong(record.getTimestampEpochSecond(column));
+            hash = 31 * hash + record.getTimestampNano(column);
+        }
+
+        private static int hashLong(long value)
+        {
+            return (int) (value ^ (value >>> 32));
+        }
+    }
+}
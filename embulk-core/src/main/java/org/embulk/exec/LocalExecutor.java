@@ -2,13 +2,18 @@ package org.embulk.exec;
 
 import java.util.List;
 import java.util.Arrays;
-import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.collect.ImmutableList;
 import com.google.inject.Inject;
@@ -17,32 +22,48 @@ import com.google.common.base.Throwables;
 import com.google.common.base.Predicates;
 import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.embulk.config.Task;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskSource;
 import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigException;
 import org.embulk.config.CommitReport;
+import org.embulk.config.ReadOnlyTaskSource;
 import org.embulk.plugin.PluginType;
 import org.embulk.spi.Schema;
 import org.embulk.spi.Exec;
 import org.embulk.spi.ExecSession;
 import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecutionInterruptedException;
 import org.embulk.spi.InputPlugin;
 import org.embulk.spi.FilterPlugin;
 import org.embulk.spi.OutputPlugin;
-import org.embulk.spi.PageOutput;
-import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.SpeculativeExecutionSupport;
+import org.embulk.spi.TaskCostEstimator;
 import org.embulk.spi.util.Filters;
-import org.slf4j.Logger;
+import org.embulk.exec.ProcessorWorker.TaskResult;
 
 public class LocalExecutor
 {
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+    private static final long SPECULATION_MIN_ELAPSED_MILLIS = 5000;
+
     private final Injector injector;
     private final ConfigSource systemConfig;
     private final int maxThreads;
     private final ExecutorService executor;
+    private final MemoryBudget memoryBudget;
+    private final int maxOutputTasks;  // 0 if unlimited
+    private final List<String> partitionKeys;  // empty if records are not partitioned
+    private final boolean largestTaskFirst;
+    private final boolean failFast;
+    private final boolean speculativeExecution;
+    private final double speculationSlowness;
+    private final ProcessorWorkerPool workers;  // null if tasks run in this process
+    private final ProcessorFactory processorFactory;
 
     public interface ExecutorTask
             extends Task
@@ -68,264 +89,89 @@ public class LocalExecutor
     }
 
     @Inject
+    @SuppressWarnings("unchecked")
     public LocalExecutor(Injector injector,
-            @ForSystemConfig ConfigSource systemConfig)
+            @ForSystemConfig ConfigSource systemConfig,
+            MemoryBudget memoryBudget)
     {
         this.injector = injector;
         this.systemConfig = systemConfig;
+        this.memoryBudget = memoryBudget;
+
+        // worker_processes, worker_hosts: runs tasks on worker processes. See ProcessorWorkerPool.
+        ProcessorWorkerPool workerPool = new ProcessorWorkerPool(systemConfig, injector);
+        this.workers = workerPool.isEnabled() ? workerPool : null;
 
         int defaultMaxThreads = Runtime.getRuntime().availableProcessors() * 2;
+        if (workers != null) {
+            // a thread waits for a task running on a worker
+            defaultMaxThreads = workers.getCapacity();
+        }
         this.maxThreads = systemConfig.get(Integer.class, "max_threads", defaultMaxThreads);
         this.executor = Executors.newFixedThreadPool(maxThreads,
                 new ThreadFactoryBuilder()
                         .setNameFormat("embulk-executor-%d")
                         .setDaemon(true)
                         .build());
-    }
-
-    private static class ProcessState
-    {
-        private final Logger logger;
-        private volatile boolean[] started;
-        private volatile boolean[] finished;
-        private volatile Schema inputSchema;
-        private volatile Schema outputSchema;
-        private volatile Throwable[] exceptions;
-        private volatile CommitReport[] inputCommitReports;
-        private volatile CommitReport[] outputCommitReports;
-        private volatile ConfigDiff inputConfigDiff;
-        private volatile ConfigDiff outputConfigDiff;
-        private int processorCount;
-
-        public ProcessState(Logger logger)
-        {
-            this.logger = logger;
-        }
-
-        public Logger getLogger()
-        {
-            return logger;
-        }
-
-        public void initialize(int count)
-        {
-            this.started = new boolean[count];
-            this.finished = new boolean[count];
-            this.exceptions = new Throwable[count];
-            this.inputCommitReports = new CommitReport[count];
-            this.outputCommitReports = new CommitReport[count];
-            this.processorCount = count;
-        }
-
-        public void setInputSchema(Schema inputSchema)
-        {
-            this.inputSchema = inputSchema;
-        }
-
-        public void setOutputSchema(Schema outputSchema)
-        {
-            this.outputSchema = outputSchema;
-        }
-
-        public Schema getInputSchema()
-        {
-            return inputSchema;
-        }
-
-        public Schema getOutputSchema()
-        {
-            return outputSchema;
-        }
-
-        public boolean isAnyStarted()
-        {
-            if (started == null) {
-                return false;
-            }
-            for (boolean b : started) {
-                if (b) { return true; }
-            }
-            return false;
-        }
-
-        public void start(int i)
-        {
-            started[i] = true;
-        }
-
-        public void finish(int i)
-        {
-            finished[i] = true;
-        }
-
-        public int getProcessorCount()
-        {
-            return processorCount;
-        }
-
-        public int getStartedCount()
-        {
-            int count = 0;
-            for (int i=0; i < started.length; i++) {
-                if (started[i]) { count++; }
-            }
-            return count;
-        }
-
-        public int getFinishedCount()
-        {
-            int count = 0;
-            for (int i=0; i < finished.length; i++) {
-                if (finished[i]) { count++; }
-            }
-            return count;
-        }
-
-        public void setInputCommitReport(int i, CommitReport inputCommitReport)
-        {
-            if (inputCommitReport == null) {
-                inputCommitReport = Exec.newCommitReport();
-            }
-            this.inputCommitReports[i] = inputCommitReport;
-        }
-
-        public void setOutputCommitReport(int i, CommitReport outputCommitReport)
-        {
-            if (outputCommitReport == null) {
-                outputCommitReport = Exec.newCommitReport();
-            }
-            this.outputCommitReports[i] = outputCommitReport;
-        }
-
-        public boolean isOutputCommitted(int i)
-        {
-            return outputCommitReports[i] != null;
-        }
-
-        public void setException(int i, Throwable exception)
-        {
-            this.exceptions[i] = exception;
-        }
-
-        public boolean isAllCommitted()
-        {
-            if (processorCount <= 0) {
-                // not initialized
-                return false;
-            }
-            for (int i=0; i < processorCount; i++) {
-                if (!isOutputCommitted(i)) {
-                    return false;
-                }
-            }
-            return true;
-        }
-
-        public boolean isAnyCommitted()
-        {
-            for (int i=0; i < processorCount; i++) {
-                if (isOutputCommitted(i)) {
-                    return true;
-                }
-            }
-            return false;
-        }
-
-        public void setOutputConfigDiff(ConfigDiff outputConfigDiff)
-        {
-            if (outputConfigDiff == null) {
-                outputConfigDiff = Exec.newConfigDiff();
-            }
-            this.outputConfigDiff = outputConfigDiff;
-        }
-
-        public void setInputConfigDiff(ConfigDiff inputConfigDiff)
-        {
-            if (inputConfigDiff == null) {
-                inputConfigDiff = Exec.newConfigDiff();
-            }
-            this.inputConfigDiff = inputConfigDiff;
-        }
-
-        public List<CommitReport> getInputCommitReports()
-        {
-            return ImmutableList.copyOf(inputCommitReports);
-        }
-
-        public List<CommitReport> getOutputCommitReports()
-        {
-            return ImmutableList.copyOf(outputCommitReports);
-        }
 
-        public RuntimeException getRepresentativeException()
-        {
-            RuntimeException top = null;
-            for (Throwable ex : exceptions) {
-                if (ex != null) {
-                    if (top != null) {
-                        top.addSuppressed(ex);
-                    } else {
-                        if (ex instanceof RuntimeException) {
-                            top = (RuntimeException) ex;
-                        } else {
-                            top = new RuntimeException(ex);
-                        }
-                    }
-                }
-            }
-            if (top == null) {
-                top = new RuntimeException("Some transactions are not committed");
-            }
-            return top;
-        }
-
-        public int getCommittedUnclosedCount()
-        {
-            int count = 0;
-            for (int i=0; i < exceptions.length; i++) {
-                if (exceptions[i] != null && isOutputCommitted(i)) {
-                    count++;
-                }
+        // max_output_tasks: limits number of output tasks. Pages of multiple input tasks
+        // are written to an output task so that number of output files doesn't grow with
+        // number of input tasks. 0 means one output task for each input task.
+        this.maxOutputTasks = systemConfig.get(Integer.class, "max_output_tasks", 0);
+        if (maxOutputTasks < 0) {
+            throw new ConfigException("max_output_tasks must not be negative: "+maxOutputTasks);
+        }
+
+        // hash_partition_keys: routes records to output tasks by a hash of these columns so
+        // that records with the same keys are written to the same output task. Every input
+        // task writes to all of max_output_tasks output tasks (or as many as input tasks if
+        // it's 0). Pages waiting for a busy output task are spilled to temporary files
+        // beyond page_store_memory_limit.
+        this.partitionKeys = ImmutableList.copyOf((List<String>) systemConfig.get(List.class,
+                    "hash_partition_keys", ImmutableList.of()));
+
+        // largest_task_first: submits tasks in descending order of costs estimated by
+        // the input plugin (TaskCostEstimator) so that a large task doesn't start at
+        // the end. Tasks are not moved among threads once they start.
+        this.largestTaskFirst = systemConfig.get(Boolean.class, "largest_task_first", false);
+
+        // fail_fast: interrupts running tasks and skips remaining tasks when a task
+        // fails. Committed tasks are kept in the resume state.
+        this.failFast = systemConfig.get(Boolean.class, "fail_fast", false);
+
+        // speculative_execution: runs another attempt of a task if it's much slower
+        // than completed tasks, and commits the attempt that finishes first. Enabled
+        // only if the output plugin implements SpeculativeExecutionSupport.
+        // speculative_execution_slowness: a task is slow if it runs this times longer
+        // than the median of completed tasks per estimated cost.
+        this.speculativeExecution = systemConfig.get(Boolean.class, "speculative_execution", false);
+        this.speculationSlowness = systemConfig.get(Double.class, "speculative_execution_slowness", 2.0);
+        if (speculationSlowness < 1.0) {
+            throw new ConfigException("speculative_execution_slowness must be 1.0 or larger: "+speculationSlowness);
+        }
+
+        // pipelined_execution, sort_columns, task_retry_limit, parallel_filter_threads:
+        // configure how a task runs. See ProcessorFactory.
+        this.processorFactory = new ProcessorFactory(systemConfig, new ProcessorFactory.TaskPlugins() {
+            public InputPlugin newInputPlugin(ExecutorTask task)
+            {
+                return LocalExecutor.this.newInputPlugin(task);
             }
-            return count;
-        }
 
-        public ExecutionResult buildExecuteResult()
-        {
-            return buildExecuteResultWithWarningException(null);
-        }
-
-        public ExecutionResult buildExecuteResultWithWarningException(Throwable ex)
-        {
-            ConfigDiff configDiff = Exec.newConfigDiff();
-            if (inputConfigDiff != null) {
-                configDiff.getNestedOrSetEmpty("in").merge(inputConfigDiff);
-            }
-            if (outputConfigDiff != null) {
-                configDiff.getNestedOrSetEmpty("out").merge(outputConfigDiff);
+            public List<FilterPlugin> newFilterPlugins(ExecutorTask task)
+            {
+                return LocalExecutor.this.newFilterPlugins(task);
             }
 
-            ImmutableList.Builder<Throwable> ignoredExceptions = ImmutableList.builder();
-            for (Throwable e : exceptions) {
-                if (e != null) {
-                    ignoredExceptions.add(e);
-                }
-            }
-            if (ex != null) {
-                ignoredExceptions.add(ex);
+            public OutputPlugin newOutputPlugin(ExecutorTask task)
+            {
+                return LocalExecutor.this.newOutputPlugin(task);
             }
+        }, workers, partitionKeys);
 
-            return new ExecutionResult(configDiff, ignoredExceptions.build());
-        }
-
-        public PartialExecutionException buildPartialExecuteException(Throwable cause,
-                ExecutorTask task, ExecSession exec)
-        {
-            return new PartialExecutionException(cause, new ResumeState(
-                        exec.getSessionConfigSource(),
-                        task.getInputTask(), task.getOutputTask(),
-                        inputSchema, outputSchema,
-                        Arrays.asList(inputCommitReports), Arrays.asList(outputCommitReports)));
+        // output tasks and commits of speculative attempts are shared in a process
+        if (workers != null && (maxOutputTasks > 0 || !partitionKeys.isEmpty() || speculativeExecution)) {
+            throw new ConfigException("max_output_tasks, hash_partition_keys and speculative_execution can't be used with worker_processes or worker_hosts");
         }
     }
 
@@ -420,14 +266,16 @@ public class LocalExecutor
             ConfigDiff inputConfigDiff = in.transaction(task.getInputConfig(), new InputPlugin.Control() {
                 public List<CommitReport> run(final TaskSource inputTask, final Schema inputSchema, final int processorCount)
                 {
-                    state.initialize(processorCount);
+                    final int outputCount = getOutputCount(processorCount);
+                    state.initialize(processorCount, outputCount, !partitionKeys.isEmpty());
                     state.setInputSchema(inputSchema);
                     Filters.transaction(filterPlugins, task.getFilterConfigs(), inputSchema, new Filters.Control() {
                         public void run(final List<TaskSource> filterTasks, final List<Schema> filterSchemas)
                         {
                             Schema outputSchema = last(filterSchemas);
                             state.setOutputSchema(outputSchema);
-                            ConfigDiff outputConfigDiff = out.transaction(task.getOutputConfig(), outputSchema, processorCount, new OutputPlugin.Control() {
+                            processorFactory.validate(outputSchema);
+                            ConfigDiff outputConfigDiff = out.transaction(task.getOutputConfig(), outputSchema, outputCount, new OutputPlugin.Control() {
                                 public List<CommitReport> run(final TaskSource outputTask)
                                 {
                                     task.setInputTask(inputTask);
@@ -435,7 +283,9 @@ public class LocalExecutor
                                     task.setOutputTask(outputTask);
 
                                     if (processorCount > 0) {
-                                        process(task.dump(), filterSchemas, processorCount, state);
+                                        List<Long> taskCosts = estimateTaskCosts(in, inputTask, processorCount, state);
+                                        boolean speculative = isSpeculativeExecutionEnabled(out, outputTask, state);
+                                        process(task.dump(), filterSchemas, processorCount, taskCosts, speculative, state);
                                         if (!state.isAllCommitted()) {
                                             throw state.getRepresentativeException();
                                         }
@@ -483,13 +333,14 @@ public class LocalExecutor
                     // TODO validate inputTask?
                     // TODO validate inputSchema
                     // TODO validate processorCount
-                    state.initialize(processorCount);
+                    final int outputCount = resume.getOutputCommitReports().size();
+                    state.initialize(processorCount, outputCount, !partitionKeys.isEmpty());
                     Filters.transaction(filterPlugins, task.getFilterConfigs(), inputSchema, new Filters.Control() {
                         public void run(final List<TaskSource> filterTasks, final List<Schema> filterSchemas)
                         {
                             Schema outputSchema = last(filterSchemas);
                             state.setOutputSchema(outputSchema);
-                            ConfigDiff outputConfigDiff = out.resume(resume.getOutputTaskSource(), outputSchema, processorCount, new OutputPlugin.Control() {
+                            ConfigDiff outputConfigDiff = out.resume(resume.getOutputTaskSource(), outputSchema, outputCount, new OutputPlugin.Control() {
                                 public List<CommitReport> run(final TaskSource outputTask)
                                 {
                                     // TODO validate outputTask?
@@ -497,17 +348,23 @@ public class LocalExecutor
                                     task.setFilterTasks(filterTasks);
                                     task.setOutputTask(outputTask);
 
-                                    for (int i=0; i < resume.getOutputCommitReports().size(); i++) {
+                                    for (int i=0; i < outputCount; i++) {
                                         if (resume.getOutputCommitReports().get(i) != null) {
+                                            state.setOutputCommitReport(i, resume.getOutputCommitReports().get(i));
+                                        }
+                                    }
+                                    for (int i=0; i < processorCount; i++) {
+                                        if (state.isCommitted(i)) {
                                             state.start(i);
                                             state.setInputCommitReport(i, resume.getInputCommitReports().get(i));
-                                            state.setOutputCommitReport(i, resume.getOutputCommitReports().get(i));
                                             state.finish(i);
                                         }
                                     }
 
                                     if (processorCount > 0) {
-                                        process(task.dump(), filterSchemas, processorCount, state);
+                                        List<Long> taskCosts = estimateTaskCosts(in, inputTask, processorCount, state);
+                                        boolean speculative = isSpeculativeExecutionEnabled(out, outputTask, state);
+                                        process(task.dump(), filterSchemas, processorCount, taskCosts, speculative, state);
                                         if (!state.isAllCommitted()) {
                                             throw state.getRepresentativeException();
                                         }
@@ -539,93 +396,283 @@ public class LocalExecutor
         }
     }
 
-    private void process(TaskSource taskSource, List<Schema> filterSchemas, int processorCount,
+    private List<Long> estimateTaskCosts(InputPlugin in, TaskSource inputTask, int processorCount,
             ProcessState state)
     {
-        List<Future<Throwable>> futures = new ArrayList<>(processorCount);
-        try {
-            for (int i=0; i < processorCount; i++) {
-                if (state.isOutputCommitted(i)) {
-                    state.getLogger().warn("Skipped resumed task {}", i);
-                    futures.add(null);  // resumed
-                } else {
-                    futures.add(startProcessor(taskSource, filterSchemas, i, state));
-                }
+        if (!largestTaskFirst || !(in instanceof TaskCostEstimator)) {
+            return null;
+        }
+        List<Long> taskCosts = ((TaskCostEstimator) in).estimateTaskCosts(inputTask, processorCount);
+        if (taskCosts != null && taskCosts.size() != processorCount) {
+            state.getLogger().warn("Ignored task costs because number of the costs {} is different from number of tasks {}",
+                    taskCosts.size(), processorCount);
+            return null;
+        }
+        return taskCosts;
+    }
+
+    private boolean isSpeculativeExecutionEnabled(OutputPlugin out, TaskSource outputTask, ProcessState state)
+    {
+        if (!speculativeExecution) {
+            return false;
+        }
+        if (!(out instanceof SpeculativeExecutionSupport) ||
+                !((SpeculativeExecutionSupport) out).isSpeculativeExecutionSupported(outputTask)) {
+            state.getLogger().info("Speculative execution is disabled because the output plugin doesn't support it");
+            return false;
+        }
+        return true;
+    }
+
+    // returns indexes of tasks in the order to start, or null to start them in
+    // index order. Tasks with larger costs start earlier. Threads pull the next
+    // task of this order from the queue when they finish a task.
+    private static int[] getTaskOrder(int processorCount, final List<Long> taskCosts)
+    {
+        if (taskCosts == null) {
+            return null;
+        }
+        Integer[] indexes = new Integer[processorCount];
+        for (int i=0; i < processorCount; i++) {
+            indexes[i] = i;
+        }
+        // stable sort keeps index order of tasks with the same cost
+        Arrays.sort(indexes, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b)
+            {
+                return Long.compare(taskCosts.get(b), taskCosts.get(a));
             }
-            showProgress(state);
+        });
+        int[] order = new int[processorCount];
+        for (int i=0; i < processorCount; i++) {
+            order[i] = indexes[i];
+        }
+        return order;
+    }
 
+    private void process(TaskSource taskSource, List<Schema> filterSchemas, int processorCount,
+            List<Long> taskCosts, boolean speculative, ProcessState state)
+    {
+        OutputSession[] sessions = null;
+        if (state.isPartitioned()) {
+            state.getLogger().info("Partitioning records of {} input tasks into {} output tasks by {}", processorCount, state.getOutputCount(), partitionKeys);
+            sessions = new OutputSession[state.getOutputCount()];
+            for (int i=0; i < sessions.length; i++) {
+                sessions[i] = new OutputSession(processorFactory, i, processorCount, true, state);
+            }
+        } else if (state.getOutputCount() < processorCount) {
+            state.getLogger().info("Writing pages of {} input tasks to {} output tasks", processorCount, state.getOutputCount());
+            sessions = new OutputSession[state.getOutputCount()];
+            int[] inputCounts = new int[sessions.length];
             for (int i=0; i < processorCount; i++) {
-                if (futures.get(i) == null) {
-                    continue;
+                inputCounts[state.getOutputIndex(i)]++;
+            }
+            for (int i=0; i < sessions.length; i++) {
+                sessions[i] = new OutputSession(processorFactory, i, inputCounts[i], false, state);
+            }
+        }
+
+        // processors share deserialized tasks
+        taskSource = ReadOnlyTaskSource.of(taskSource);
+
+        // tasks are submitted lazily so that number of queued tasks doesn't grow
+        // with number of tasks. Results are consumed in order of completion.
+        int[] order = getTaskOrder(processorCount, taskCosts);
+        int maxRunning = maxThreads * 2;
+        CompletionService<Throwable> completion = new ExecutorCompletionService<Throwable>(executor);
+        Map<Future<Throwable>, TaskAttempts> running = new HashMap<>();
+        RunningProcessors processors = new RunningProcessors();
+
+        // attempts of a task share an output task. Tasks writing to a shared output
+        // task are not speculated.
+        StragglerDetector stragglers = null;
+        if (speculative && sessions == null) {
+            stragglers = new StragglerDetector(speculationSlowness, SPECULATION_MIN_ELAPSED_MILLIS,
+                    Math.max(1, processorCount / 4));
+        }
+        int next = 0;
+        long nextProgressTime = 0;
+        try {
+            while (true) {
+                while (running.size() < maxRunning && next < processorCount) {
+                    int i = (order == null ? next : order[next]);
+                    next++;
+                    if (state.isCommitted(i)) {
+                        state.getLogger().warn("Skipped resumed task {}", i);
+                        continue;
+                    }
+                    TaskAttempts attempts = new TaskAttempts(i);
+                    Callable<Throwable> processor;
+                    List<OutputSession> taskSessions = getTaskSessions(sessions, i, state);
+                    if (sessions != null) {
+                        processor = processorFactory.newSharedProcessor(taskSource, filterSchemas, i, taskSessions, state);
+                    } else {
+                        processor = processorFactory.newProcessor(taskSource, filterSchemas, attempts, 0, state);
+                    }
+                    Future<Throwable> future = completion.submit(processors.cancellable(processor, taskSessions));
+                    attempts.submitted(future);
+                    running.put(future, attempts);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextProgressTime || running.isEmpty()) {
+                    showProgress(state);
+                    nextProgressTime = now + PROGRESS_INTERVAL_MILLIS;
+                }
+                if (running.isEmpty()) {
+                    break;
+                }
+
+                Future<Throwable> future;
+                try {
+                    if (stragglers != null) {
+                        future = completion.poll(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                        if (future == null) {
+                            speculateStragglers(taskSource, filterSchemas, taskCosts, stragglers,
+                                    completion, running, processors, state);
+                            continue;
+                        }
+                    } else {
+                        future = completion.take();
+                    }
+                } catch (InterruptedException ex) {
+                    for (TaskAttempts attempts : running.values()) {
+                        state.setException(attempts.getIndex(), new ExecutionInterruptedException(ex));
+                    }
+                    break;
                 }
+                TaskAttempts attempts = running.remove(future);
+                int i = attempts.getIndex();
+                Throwable exception;
                 try {
-                    state.setException(i, futures.get(i).get());
+                    exception = future.get();
                 } catch (ExecutionException ex) {
-                    state.setException(i, ex.getCause());
+                    exception = ex.getCause();
                     //Throwables.propagate(ex.getCause());
                 } catch (InterruptedException ex) {
-                    state.setException(i, new ExecutionInterruptedException(ex));
+                    exception = new ExecutionInterruptedException(ex);
+                }
+
+                if (!attempts.completed(future, exception)) {
+                    // another attempt of the task is committed already, or still running
+                    continue;
+                }
+                state.setException(i, attempts.getException());
+                if (attempts.isCommitted()) {
+                    // aborts the other attempt
+                    attempts.interruptRunning();
+                    if (stragglers != null && !attempts.isSpeculated()) {
+                        stragglers.addCompleted(getTaskCost(taskCosts, i), attempts.getElapsedMillis());
+                    }
+                }
+
+                if (failFast && state.hasException(i) && !processors.isCancelled()) {
+                    // remaining tasks are submitted but return without running so that
+                    // shared output tasks are aborted
+                    state.getLogger().warn("Cancelling running tasks because task {} failed", i);
+                    processors.cancel();
                 }
-                showProgress(state);
             }
         } finally {
-            for (Future<Throwable> future : futures) {
-                if (future != null && !future.isDone()) {
-                    future.cancel(true);
-                    // TODO join?
+            // running processors are interrupted. Processors that are not started yet
+            // return without running, and abort shared output tasks if they are the
+            // last input tasks. Futures are not cancelled so that they run.
+            processors.cancel();
+            if (sessions != null) {
+                // tasks not submitted abort shared output tasks too
+                for (; next < processorCount; next++) {
+                    int i = (order == null ? next : order[next]);
+                    if (state.isCommitted(i)) {
+                        continue;
+                    }
+                    try {
+                        OutputSession.finishInputs(getTaskSessions(sessions, i, state), false);
+                    } catch (RuntimeException ex) {
+                        state.getLogger().warn("Failed to abort output task", ex);
+                    }
                 }
             }
+            // waits for the processors so that output tasks are committed or aborted
+            // before returning
+            for (Future<Throwable> future : running.keySet()) {
+                try {
+                    Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException ex) {
+                    // failures of cancelled processors are discarded
+                }
+            }
+        }
+    }
+
+    private static List<OutputSession> getTaskSessions(OutputSession[] sessions, int i, ProcessState state)
+    {
+        if (sessions == null) {
+            return ImmutableList.of();
+        } else if (state.isPartitioned()) {
+            return Arrays.asList(sessions);
+        } else {
+            return ImmutableList.of(sessions[state.getOutputIndex(i)]);
         }
     }
 
+    private void speculateStragglers(TaskSource taskSource, List<Schema> filterSchemas,
+            List<Long> taskCosts, StragglerDetector stragglers,
+            CompletionService<Throwable> completion, Map<Future<Throwable>, TaskAttempts> running,
+            RunningProcessors processors, ProcessState state)
+    {
+        if (processors.isCancelled()) {
+            return;
+        }
+        for (TaskAttempts attempts : new HashSet<TaskAttempts>(running.values())) {
+            if (attempts.isSpeculated() || attempts.isResolved()) {
+                continue;
+            }
+            int i = attempts.getIndex();
+            long elapsed = attempts.getElapsedMillis();
+            if (stragglers.isStraggler(getTaskCost(taskCosts, i), elapsed)) {
+                state.getLogger().info(String.format("Starting another attempt of task %d because it's running for %,d ms", i, elapsed));
+                Callable<Throwable> processor = processorFactory.newProcessor(taskSource, filterSchemas, attempts, 1, state);
+                Future<Throwable> future = completion.submit(processors.cancellable(processor, ImmutableList.<OutputSession>of()));
+                attempts.submitted(future);
+                running.put(future, attempts);
+            }
+        }
+    }
+
+    private static long getTaskCost(List<Long> taskCosts, int i)
+    {
+        return taskCosts == null ? 1 : taskCosts.get(i);
+    }
+
     private void showProgress(ProcessState state)
     {
         int total = state.getProcessorCount();
         int finished = state.getFinishedCount();
         int started = state.getStartedCount();
-        state.getLogger().info(String.format("{done:%3d / %d, running: %d}", finished, total, started - finished));
+        if (memoryBudget.isLimited()) {
+            state.getLogger().info(String.format("{done:%3d / %d, running: %d, buffer: %,d bytes}", finished, total, started - finished,
+                        memoryBudget.getUsage()));
+        } else {
+            state.getLogger().info(String.format("{done:%3d / %d, running: %d}", finished, total, started - finished));
+        }
     }
 
-    private Future<Throwable> startProcessor(final TaskSource taskSource,
-            final List<Schema> filterSchemas, final int index,
-            final ProcessState state)
+    // runs a task sent by LocalExecutor of another process. See ProcessorWorker.
+    TaskResult runTask(TaskSource taskSource, List<Schema> filterSchemas, int index)
     {
-        return executor.submit(new Callable<Throwable>() {
-            public Throwable call()
-            {
-                final ExecutorTask task = taskSource.loadTask(ExecutorTask.class);
-                final InputPlugin in = newInputPlugin(task);
-                final List<FilterPlugin> filterPlugins = newFilterPlugins(task);
-                final OutputPlugin out = newOutputPlugin(task);
-
-                TransactionalPageOutput tran = out.open(task.getOutputTask(), last(filterSchemas), index);
-                PageOutput closeThis = tran;
-                state.start(index);
-                try {
-                    PageOutput filtered = closeThis = Filters.open(filterPlugins, task.getFilterTasks(), filterSchemas, tran);
-                    state.setInputCommitReport(index, in.run(task.getInputTask(), first(filterSchemas), index, filtered));
-                    state.setOutputCommitReport(index, tran.commit());  // TODO check output.finish() is called. wrap or abstract
-                    return null;
-                } finally {
-                    try {
-                        try {
-                            if (!state.isOutputCommitted(index)) {
-                                tran.abort();
-                            }
-                        } finally {
-                            closeThis.close();
-                        }
-                    } finally {
-                        state.finish(index);
-                    }
-                }
-            }
-        });
+        return processorFactory.runTask(taskSource, filterSchemas, index);
     }
 
-    private static Schema first(List<Schema> filterSchemas)
+    private int getOutputCount(int processorCount)
     {
-        return filterSchemas.get(0);
+        if (!partitionKeys.isEmpty() && maxOutputTasks > 0) {
+            // partitioned records can be written to more output tasks than input tasks
+            return maxOutputTasks;
+        }
+        if (maxOutputTasks > 0 && maxOutputTasks < processorCount) {
+            return maxOutputTasks;
+        }
+        return processorCount;
     }
 
     private static Schema last(List<Schema> filterSchemas)
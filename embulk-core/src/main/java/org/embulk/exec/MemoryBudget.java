@@ -0,0 +1,134 @@
+package org.embulk.exec;
+
+import com.google.inject.Inject;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.ExecutionInterruptedException;
+
+public class MemoryBudget
+{
+    private static final long DEFAULT_THROTTLE_MILLIS = 100;
+    private static final long DEFAULT_WAIT_TIMEOUT_MILLIS = 300000;
+
+    private final long hardLimit;  // 0 means unlimited
+    private final long softLimit;  // 0 means unlimited
+    private final long throttleMillis;
+    private final long waitTimeoutMillis;  // 0 means waiting forever
+
+    private long usage;
+    private long peakUsage;
+    private long releaseCount;
+
+    @Inject
+    public MemoryBudget(@ForSystemConfig ConfigSource systemConfig)
+    {
+        // buffer_memory_limit: max total size of buffers allocated by BufferAllocator in bytes.
+        // Allocation blocks until other buffers are released if it exceeds this limit.
+        this.hardLimit = systemConfig.get(Long.class, "buffer_memory_limit", 0L);
+
+        // buffer_memory_soft_limit: allocation is delayed if it exceeds this limit so that
+        // consumers of pages can catch up. The delay grows with the excess up to
+        // buffer_memory_throttle_millis at buffer_memory_limit (or at twice this limit if
+        // buffer_memory_limit is not set), and ends when another buffer is released.
+        // Default is 80% of buffer_memory_limit.
+        this.softLimit = systemConfig.get(Long.class, "buffer_memory_soft_limit", hardLimit / 10 * 8);
+        this.throttleMillis = systemConfig.get(Long.class, "buffer_memory_throttle_millis", DEFAULT_THROTTLE_MILLIS);
+
+        // buffer_memory_wait_timeout_millis: allocation fails if it waits for buffer_memory_limit
+        // this long while no buffers are released. All threads could be waiting for each other
+        // if the limit is too small. 0 means waiting forever.
+        this.waitTimeoutMillis = systemConfig.get(Long.class, "buffer_memory_wait_timeout_millis", DEFAULT_WAIT_TIMEOUT_MILLIS);
+
+        if (hardLimit < 0 || softLimit < 0 || throttleMillis < 0 || waitTimeoutMillis < 0) {
+            throw new ConfigException("buffer_memory_limit, buffer_memory_soft_limit, buffer_memory_throttle_millis and buffer_memory_wait_timeout_millis must not be negative");
+        }
+        if (hardLimit > 0 && softLimit > hardLimit) {
+            throw new ConfigException(String.format("buffer_memory_soft_limit (%d) must not be larger than buffer_memory_limit (%d)", softLimit, hardLimit));
+        }
+    }
+
+    public synchronized void reserve(long size)
+    {
+        try {
+            if (softLimit > 0 && softLimit < usage + size) {
+                long throttle = getThrottleMillis(usage + size);
+                long lastReleaseCount = releaseCount;
+                long deadline = System.currentTimeMillis() + throttle;
+                long remaining = throttle;
+                while (remaining > 0 && lastReleaseCount == releaseCount) {
+                    wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            }
+
+            // a buffer larger than the limit is allowed if no other buffers are
+            // alive. The deadline is extended whenever a buffer is released.
+            long lastReleaseCount = releaseCount;
+            long deadline = System.currentTimeMillis() + waitTimeoutMillis;
+            while (hardLimit > 0 && usage > 0 && hardLimit < usage + size) {
+                if (waitTimeoutMillis == 0) {
+                    wait();
+                    continue;
+                }
+                if (lastReleaseCount != releaseCount) {
+                    lastReleaseCount = releaseCount;
+                    deadline = System.currentTimeMillis() + waitTimeoutMillis;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IllegalStateException(String.format(
+                                "Allocating a buffer of %,d bytes waited for %,d ms but no buffers were released. Usage is %,d bytes and buffer_memory_limit is %,d bytes. Increase buffer_memory_limit or decrease max_threads.",
+                                size, waitTimeoutMillis, usage, hardLimit));
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionInterruptedException(ex);
+        }
+
+        usage += size;
+        if (peakUsage < usage) {
+            peakUsage = usage;
+        }
+    }
+
+    private long getThrottleMillis(long newUsage)
+    {
+        long range = (hardLimit > softLimit ? hardLimit - softLimit : softLimit);
+        double excess = Math.min(1.0, (double) (newUsage - softLimit) / range);
+        return (long) (throttleMillis * excess);
+    }
+
+    public synchronized void release(long size)
+    {
+        usage -= size;
+        releaseCount++;
+        notifyAll();
+    }
+
+    public synchronized long getUsage()
+    {
+        return usage;
+    }
+
+    public synchronized long getPeakUsage()
+    {
+        return peakUsage;
+    }
+
+    public long getHardLimit()
+    {
+        return hardLimit;
+    }
+
+    public long getSoftLimit()
+    {
+        return softLimit;
+    }
+
+    public boolean isLimited()
+    {
+        return hardLimit > 0 || softLimit > 0;
+    }
+}
@@ -0,0 +1,185 @@
+package org.embulk.exec;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Exec;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageStore;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
+
+// Output task shared by multiple input tasks. Input tasks write pages to the
+// output under a lock. The last input task to finish commits the output, or
+// aborts it if any of the input tasks failed.
+//
+// If buffered, input tasks don't wait for the lock. Pages are queued in a
+// PageStore, which spills pages to a temporary file beyond its memory limit,
+// and an input task that isn't writing pages to the output at the moment
+// writes the queued pages.
+class OutputSession
+{
+    private final ProcessorFactory processors;
+    private final int outputIndex;
+    private final ProcessState state;
+    private final PageStore buffer;  // null if not buffered
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private int runningInputs;
+    private boolean failed;
+    private TransactionalPageOutput tran;
+    private PipelinedPageOutput pipeline;
+    private PageOutput output;
+
+    public OutputSession(ProcessorFactory processors, int outputIndex, int inputCount,
+            boolean buffered, ProcessState state)
+    {
+        this.processors = processors;
+        this.outputIndex = outputIndex;
+        this.runningInputs = inputCount;
+        this.state = state;
+        this.buffer = buffered ? Exec.newPageStore() : null;
+    }
+
+    // returns a PageOutput for an input task. finish() and close() of it do nothing.
+    public synchronized PageOutput open(OutputPlugin out, TaskSource outputTask, Schema schema)
+    {
+        if (state.isOutputCommitted(outputIndex)) {
+            // committed by a previous run. Input tasks run again for other output tasks
+            return new PageOutput() {
+                public void add(Page page)
+                {
+                    page.release();
+                }
+
+                public void finish()
+                { }
+
+                public void close()
+                { }
+            };
+        }
+        if (tran == null) {
+            tran = out.open(outputTask, schema, outputIndex);
+            output = tran;
+            pipeline = processors.openPipeline(tran);
+            if (pipeline != null) {
+                output = pipeline;
+            }
+            output = processors.openSort(schema, output);
+        }
+        return new PageOutput() {
+            public void add(Page page)
+            {
+                if (buffer != null) {
+                    buffer.add(page);
+                    writeBuffered();
+                    return;
+                }
+                synchronized (OutputSession.this) {
+                    output.add(page);
+                }
+            }
+
+            public void finish()
+            { }
+
+            public void close()
+            { }
+        };
+    }
+
+    // writes queued pages unless another input task is writing them. Retries if
+    // pages are added after the writer polled the last page
+    private void writeBuffered()
+    {
+        while (!buffer.isEmpty()) {
+            if (!writing.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                Page page;
+                while ((page = buffer.poll()) != null) {
+                    output.add(page);
+                }
+            } finally {
+                writing.set(false);
+            }
+        }
+    }
+
+    public void finishInput(boolean succeeded)
+    {
+        synchronized (this) {
+            if (!succeeded) {
+                failed = true;
+            }
+            runningInputs--;
+            if (runningInputs > 0) {
+                return;
+            }
+            if (tran == null) {
+                closeBuffer();
+                return;
+            }
+        }
+
+        // all input tasks finished
+        try {
+            if (!failed) {
+                if (buffer != null) {
+                    writeBuffered();
+                }
+                output.finish();
+                if (pipeline != null) {
+                    pipeline.join();
+                }
+                state.setOutputCommitReport(outputIndex, tran.commit());
+            }
+        } finally {
+            try {
+                if (!state.isOutputCommitted(outputIndex)) {
+                    if (pipeline != null) {
+                        // stops the output thread before abort
+                        pipeline.cancel();
+                    }
+                    tran.abort();
+                }
+            } finally {
+                try {
+                    output.close();
+                } finally {
+                    closeBuffer();
+                }
+            }
+        }
+    }
+
+    public static void finishInputs(List<OutputSession> sessions, boolean succeeded)
+    {
+        RuntimeException exception = null;
+        for (OutputSession session : sessions) {
+            try {
+                session.finishInput(succeeded);
+            } catch (RuntimeException ex) {
+                if (exception == null) {
+                    exception = ex;
+                } else {
+                    exception.addSuppressed(ex);
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    // releases pages not written and deletes the temporary file
+    private void closeBuffer()
+    {
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+}
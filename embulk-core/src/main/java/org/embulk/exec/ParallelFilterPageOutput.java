@@ -0,0 +1,257 @@
+package org.embulk.exec;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import com.google.common.base.Throwables;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecutionInterruptedException;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.FilterPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.ParallelFilterSupport;
+import org.embulk.spi.Schema;
+import org.embulk.spi.util.Filters;
+
+// PageOutput that filters pages in parallel on a thread pool and passes
+// filtered pages to the next output in the input order. Filters must support
+// ParallelFilterSupport because a filter chain is opened for each thread and
+// finished after each page.
+//
+// add() blocks while maxPendingPages pages are being filtered.
+public class ParallelFilterPageOutput
+        implements PageOutput
+{
+    private final List<FilterPlugin> plugins;
+    private final List<TaskSource> taskSources;
+    private final List<Schema> filterSchemas;
+    private final PageOutput next;
+    private final ExecutorService executor;
+    private final int maxPendingPages;
+    private final ExecSession session;
+    private final Queue<Future<List<Page>>> pending = new ArrayDeque<Future<List<Page>>>();
+
+    // chains not used by a thread now. At most as many chains as the threads
+    // filtering pages at the same time are opened, and kept until close.
+    private final ArrayDeque<FilterChain> idleChains = new ArrayDeque<FilterChain>();
+
+    public ParallelFilterPageOutput(List<FilterPlugin> plugins, List<TaskSource> taskSources,
+            List<Schema> filterSchemas, PageOutput next,
+            ExecutorService executor, int maxPendingPages)
+    {
+        this.plugins = plugins;
+        this.taskSources = taskSources;
+        this.filterSchemas = filterSchemas;
+        this.next = next;
+        this.executor = executor;
+        this.maxPendingPages = maxPendingPages;
+        this.session = Exec.session();
+    }
+
+    // true if all of the filters can filter pages in parallel
+    public static boolean isSupported(List<FilterPlugin> plugins, List<TaskSource> taskSources)
+    {
+        if (plugins.isEmpty()) {
+            return false;
+        }
+        for (int i=0; i < plugins.size(); i++) {
+            if (!(plugins.get(i) instanceof ParallelFilterSupport) ||
+                    !((ParallelFilterSupport) plugins.get(i)).isParallelFilterSupported(taskSources.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void add(final Page page)
+    {
+        pending.add(executor.submit(new Callable<List<Page>>() {
+            public List<Page> call()
+                    throws Exception
+            {
+                return Exec.doWith(session, new ExecAction<List<Page>>() {
+                    public List<Page> run()
+                    {
+                        return filter(page);
+                    }
+                });
+            }
+        }));
+        // passes pages filtered already without blocking
+        while (!pending.isEmpty() && (pending.size() > maxPendingPages || pending.peek().isDone())) {
+            passNext();
+        }
+    }
+
+    private List<Page> filter(Page page)
+    {
+        FilterChain chain;
+        synchronized (idleChains) {
+            chain = idleChains.pollFirst();
+        }
+        if (chain == null) {
+            chain = new FilterChain();
+        }
+        List<Page> filtered;
+        try {
+            filtered = chain.filter(page);
+        } catch (RuntimeException ex) {
+            // a chain that failed isn't reused
+            try {
+                chain.close();
+            } catch (RuntimeException closeException) {
+                ex.addSuppressed(closeException);
+            }
+            throw ex;
+        }
+        synchronized (idleChains) {
+            idleChains.addFirst(chain);
+        }
+        return filtered;
+    }
+
+    private class FilterChain
+    {
+        private final List<Page> filtered = new ArrayList<Page>();
+        private final PageOutput output;
+
+        public FilterChain()
+        {
+            PageOutput collector = new PageOutput() {
+                public void add(Page page)
+                {
+                    filtered.add(page);
+                }
+
+                public void finish()
+                { }
+
+                public void close()
+                { }
+            };
+            this.output = Filters.open(plugins, taskSources, filterSchemas, collector);
+        }
+
+        // finish() flushes the pages of this page
+        public List<Page> filter(Page page)
+        {
+            try {
+                output.add(page);
+                output.finish();
+            } catch (RuntimeException ex) {
+                release(filtered);
+                filtered.clear();
+                throw ex;
+            }
+            List<Page> pages = new ArrayList<Page>(filtered);
+            filtered.clear();
+            return pages;
+        }
+
+        public void close()
+        {
+            output.close();
+        }
+    }
+
+    private void passNext()
+    {
+        List<Page> pages;
+        try {
+            pages = pending.peek().get();
+        } catch (ExecutionException ex) {
+            throw Throwables.propagate(ex.getCause());
+        } catch (InterruptedException ex) {
+            throw new ExecutionInterruptedException(ex);
+        }
+        pending.remove();
+        for (int i=0; i < pages.size(); i++) {
+            try {
+                next.add(pages.get(i));
+            } catch (RuntimeException ex) {
+                release(pages.subList(i + 1, pages.size()));
+                throw ex;
+            }
+        }
+    }
+
+    @Override
+    public void finish()
+    {
+        while (!pending.isEmpty()) {
+            passNext();
+        }
+        next.finish();
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            // releases pages filtered but not passed to the next output. Filtering
+            // isn't cancelled because input pages are released by the filters
+            boolean interrupted = false;
+            for (Future<List<Page>> future : pending) {
+                try {
+                    release(future.get());
+                } catch (ExecutionException ex) {
+                    // ignore
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                    break;
+                }
+            }
+            pending.clear();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            try {
+                closeChains();
+            } finally {
+                next.close();
+            }
+        }
+    }
+
+    private void closeChains()
+    {
+        // chains still filtering pages after an interrupt aren't closed
+        List<FilterChain> closing;
+        synchronized (idleChains) {
+            closing = new ArrayList<FilterChain>(idleChains);
+            idleChains.clear();
+        }
+        RuntimeException exception = null;
+        for (FilterChain chain : closing) {
+            try {
+                chain.close();
+            } catch (RuntimeException ex) {
+                if (exception == null) {
+                    exception = ex;
+                } else {
+                    exception.addSuppressed(ex);
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private static void release(List<Page> pages)
+    {
+        for (Page page : pages) {
+            page.release();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package org.embulk.exec;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecutionInterruptedException;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+
+// PageOutput that passes pages to the next output on another thread so that
+// the producer (input plugin and filters) and the output run in parallel.
+//
+// Pages are passed through a bounded lock-free queue with a single producer
+// and a single consumer. add() blocks while the queue is full.
+//
+// The producer must call join() before committing the next output so that
+// all pages are written, and cancel() before aborting the next output.
+// cancel() interrupts the consumer and waits for it even if the producer is
+// interrupted so that the next output is never used by two threads.
+public class PipelinedPageOutput
+        implements PageOutput
+{
+    private static final Object FINISH = new Object();
+    private static final Object END = new Object();
+
+    // waiting threads are woken up by the other thread. This is a safety net
+    private static final long PARK_NANOS = 10*1000*1000;
+
+    private final PageOutput next;
+    private final Object[] queue;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();  // updated only by the consumer
+    private final AtomicLong tail = new AtomicLong();  // updated only by the producer
+    private volatile Thread waitingProducer;
+    private volatile Thread waitingConsumer;
+
+    private final CountDownLatch exited = new CountDownLatch(1);
+    private Thread consumerThread;  // guarded by this. null after the consumer exits
+    private volatile boolean consumerExited;
+    private volatile boolean cancelled;
+    private volatile Throwable consumerException;
+    private boolean ended;
+
+    public PipelinedPageOutput(PageOutput next, int queueSize, Executor executor)
+    {
+        this.next = next;
+        int capacity = Integer.highestOneBit(Math.max(queueSize, 1) * 2 - 1);
+        this.queue = new Object[capacity];
+        this.mask = capacity - 1;
+
+        final ExecSession session = Exec.session();
+        executor.execute(new Runnable() {
+            public void run()
+            {
+                synchronized (PipelinedPageOutput.this) {
+                    consumerThread = Thread.currentThread();
+                }
+                try {
+                    if (cancelled) {
+                        return;
+                    }
+                    Exec.doWith(session, new ExecAction<Void>() {
+                        public Void run()
+                        {
+                            consume();
+                            return null;
+                        }
+                    });
+                } catch (Throwable ex) {
+                    consumerException = ex;
+                } finally {
+                    synchronized (PipelinedPageOutput.this) {
+                        consumerThread = null;
+                    }
+                    // clears the interrupt by cancel() so that it doesn't affect the next job of the thread
+                    Thread.interrupted();
+                    consumerExited = true;
+                    exited.countDown();
+                    LockSupport.unpark(waitingProducer);
+                }
+            }
+        });
+    }
+
+    private void consume()
+    {
+        while (true) {
+            Object element = take();
+            if (element == null || element == END) {
+                return;
+            } else if (element == FINISH) {
+                next.finish();
+            } else {
+                next.add((Page) element);
+            }
+        }
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        offer(page);
+    }
+
+    @Override
+    public void finish()
+    {
+        offer(FINISH);
+    }
+
+    // waits until the consumer passes all pages to the next output
+    public void join()
+    {
+        if (!ended) {
+            offer(END);
+            ended = true;
+        }
+        awaitConsumer();
+        checkConsumerException();
+    }
+
+    // stops the consumer and releases pages in the queue. This doesn't close the next output
+    public void cancel()
+    {
+        if (!consumerExited) {
+            cancelled = true;
+            synchronized (this) {
+                // stops I/O of the next output in progress
+                if (consumerThread != null) {
+                    consumerThread.interrupt();
+                }
+            }
+            LockSupport.unpark(waitingConsumer);
+            // the interrupt flag of this thread is restored after waiting
+            Uninterruptibles.awaitUninterruptibly(exited);
+        }
+        // release pages not consumed
+        for (long i = head.get(); i < tail.get(); i++) {
+            Object element = queue[(int) i & mask];
+            queue[(int) i & mask] = null;
+            if (element instanceof Page) {
+                ((Page) element).release();
+            }
+        }
+        head.set(tail.get());
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            cancel();
+        } finally {
+            next.close();
+        }
+    }
+
+    private void offer(Object element)
+    {
+        if (ended) {
+            throw new IllegalStateException("PageOutput is already joined");
+        }
+        long t = tail.get();
+        while (t - head.get() >= queue.length) {
+            checkConsumerException();
+            if (consumerExited) {
+                throw new IllegalStateException("Output thread exited");
+            }
+            waitingProducer = Thread.currentThread();
+            if (t - head.get() >= queue.length && !consumerExited) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            waitingProducer = null;
+            if (Thread.interrupted()) {
+                throw new ExecutionInterruptedException(new InterruptedException());
+            }
+        }
+        checkConsumerException();
+        queue[(int) t & mask] = element;
+        tail.set(t + 1);
+        LockSupport.unpark(waitingConsumer);
+    }
+
+    // returns null if cancelled
+    private Object take()
+    {
+        long h = head.get();
+        while (h == tail.get()) {
+            if (cancelled) {
+                return null;
+            }
+            waitingConsumer = Thread.currentThread();
+            if (h == tail.get() && !cancelled) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            waitingConsumer = null;
+        }
+        if (cancelled) {
+            return null;
+        }
+        Object element = queue[(int) h & mask];
+        queue[(int) h & mask] = null;
+        head.set(h + 1);
+        LockSupport.unpark(waitingProducer);
+        return element;
+    }
+
+    private void awaitConsumer()
+    {
+        try {
+            exited.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionInterruptedException(ex);
+        }
+    }
+
+    private void checkConsumerException()
+    {
+        Throwable ex = consumerException;
+        if (ex != null) {
+            throw Throwables.propagate(ex);
+        }
+    }
+}
@@ -1,46 +1,173 @@
 package org.embulk.exec;
 
+import com.google.inject.Inject;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.ByteBuf;
 import io.netty.util.ResourceLeakDetector;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.ConfigException;
 import org.embulk.spi.Buffer;
 import org.embulk.spi.BufferAllocator;
 
 public class PooledBufferAllocator
         implements BufferAllocator
 {
-    private PooledByteBufAllocator nettyBuffer;
+    private static final int DEFAULT_IO_BUFFER_SIZE = 1024*1024;
+    private static final int DEFAULT_PAGE_BUFFER_SIZE = 32*1024;
 
-    public PooledBufferAllocator()
+    private static final int POOL_PAGE_SIZE = 8192;
+    private static final int DEFAULT_POOL_MAX_ORDER = 11;  // 8KB << 11 = 16MB chunks
+    private static final int MAX_POOL_MAX_ORDER = 14;
+
+    // same as netty's defaults
+    private static final int DEFAULT_TINY_CACHE_SIZE = 512;
+    private static final int DEFAULT_SMALL_CACHE_SIZE = 256;
+    private static final int DEFAULT_NORMAL_CACHE_SIZE = 64;
+
+    private final boolean direct;
+    private final int ioBufferSize;
+    private final int pageBufferSize;
+    private final PooledByteBufAllocator ioPool;
+    private final PooledByteBufAllocator pagePool;
+    private final MemoryBudget budget;
+
+    public PooledBufferAllocator(ConfigSource systemConfig)
+    {
+        this(systemConfig, new MemoryBudget(systemConfig));
+    }
+
+    @Inject
+    public PooledBufferAllocator(@ForSystemConfig ConfigSource systemConfig, MemoryBudget budget)
+    {
+        this.budget = budget;
+
+        // direct_buffer: true allocates buffers out of the java heap. Size of the
+        // direct memory is limited by -XX:MaxDirectMemorySize JVM option.
+        this.direct = systemConfig.get(Boolean.class, "direct_buffer", false);
+
+        // io_buffer_size: size of chunks used to read and write files (allocate()).
+        // page_buffer_size: initial size of page buffers (allocate(int)).
+        this.ioBufferSize = systemConfig.get(Integer.class, "io_buffer_size", DEFAULT_IO_BUFFER_SIZE);
+        this.pageBufferSize = systemConfig.get(Integer.class, "page_buffer_size", DEFAULT_PAGE_BUFFER_SIZE);
+        if (ioBufferSize <= 0) {
+            throw new ConfigException("io_buffer_size must be positive: "+ioBufferSize);
+        }
+        if (pageBufferSize <= 0) {
+            throw new ConfigException("page_buffer_size must be positive: "+pageBufferSize);
+        }
+
+        // I/O chunks and pages are pooled separately so that a few large chunks
+        // don't fragment the chunks used for many small pages and vice versa.
+        int ioMaxOrder = maxOrderFor(ioBufferSize);
+        int pageMaxOrder = maxOrderFor(pageBufferSize);
+
+        // buffer_arenas: number of arenas of each pool. Threads are assigned to arenas
+        // in round-robin. Default is 2 * number of processors limited by memory size.
+        int arenas = systemConfig.get(Integer.class, "buffer_arenas",
+                defaultArenas(POOL_PAGE_SIZE << Math.max(ioMaxOrder, pageMaxOrder)));
+
+        // buffer_thread_cache: true caches released buffers in thread-local caches so
+        // that small pages can be reused without locking the arena. Note that netty
+        // doesn't cache buffers larger than io.netty.allocator.maxCachedBufferCapacity
+        // (32KB by default).
+        boolean threadCache = systemConfig.get(Boolean.class, "buffer_thread_cache", true);
+
+        this.ioPool = newPool(direct, arenas, ioMaxOrder, threadCache);
+        this.pagePool = newPool(direct, arenas, pageMaxOrder, threadCache);
+    }
+
+    private static PooledByteBufAllocator newPool(boolean direct, int arenas, int maxOrder, boolean threadCache)
+    {
+        return new PooledByteBufAllocator(direct,
+                direct ? 0 : arenas,
+                direct ? arenas : 0,
+                POOL_PAGE_SIZE, maxOrder,
+                threadCache ? DEFAULT_TINY_CACHE_SIZE : 0,
+                threadCache ? DEFAULT_SMALL_CACHE_SIZE : 0,
+                threadCache ? DEFAULT_NORMAL_CACHE_SIZE : 0);
+    }
+
+    private static int maxOrderFor(int bufferSize)
+    {
+        // a chunk should be able to hold at least 4 buffers. Otherwise
+        // netty allocates large buffers out of the pool.
+        int maxOrder = DEFAULT_POOL_MAX_ORDER;
+        while (maxOrder < MAX_POOL_MAX_ORDER && ((long) POOL_PAGE_SIZE << maxOrder) < (long) bufferSize * 4) {
+            maxOrder++;
+        }
+        return maxOrder;
+    }
+
+    private static int defaultArenas(int chunkSize)
     {
-        // TODO configure parameters
-        this.nettyBuffer = new PooledByteBufAllocator(false);
+        // same with netty's default: an arena shouldn't consume more than
+        // 1/3 of the max memory assuming each arena has 2 chunks.
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        int byProcessors = Runtime.getRuntime().availableProcessors() * 2;
+        return (int) Math.max(1, Math.min(byProcessors, maxMemory / chunkSize / 2 / 3));
+    }
+
+    public int getIoBufferSize()
+    {
+        return ioBufferSize;
+    }
+
+    public int getPageBufferSize()
+    {
+        return pageBufferSize;
+    }
+
+    public MemoryBudget getMemoryBudget()
+    {
+        return budget;
     }
 
     public Buffer allocate()
     {
-        return new NettyByteBufBuffer(nettyBuffer.buffer());
+        return allocate(ioPool, ioBufferSize);
     }
 
     public Buffer allocate(int minimumCapacity)
     {
-        int size = 32*1024;
+        // doubles from page_buffer_size so that sizes of large pages stay
+        // aligned to the size classes of the pool
+        int size = pageBufferSize;
         while (size < minimumCapacity) {
             size *= 2;
         }
-        return new NettyByteBufBuffer(nettyBuffer.buffer(size));
+        return allocate(pagePool, size);
+    }
+
+    private Buffer allocate(PooledByteBufAllocator pool, int size)
+    {
+        // blocks if the budget is exhausted
+        budget.reserve(size);
+        ByteBuf buf;
+        try {
+            if (direct) {
+                buf = pool.directBuffer(size);
+            } else {
+                buf = pool.heapBuffer(size);
+            }
+        } catch (RuntimeException | Error ex) {
+            budget.release(size);
+            throw ex;
+        }
+        return new NettyByteBufBuffer(buf, budget);
     }
 
     private static class NettyByteBufBuffer
             extends Buffer
     {
         private ByteBuf buf;
+        private final MemoryBudget budget;
         private Exception doubleFreeCheck;
 
-        public NettyByteBufBuffer(ByteBuf buf)
+        public NettyByteBufBuffer(ByteBuf buf, MemoryBudget budget)
         {
-            super(buf.array(), buf.arrayOffset(), buf.capacity());
+            super(buf.nioBuffer(0, buf.capacity()), 0, buf.capacity());
             this.buf = buf;
+            this.budget = budget;
         }
 
         public void release()
@@ -50,6 +177,7 @@ public class PooledBufferAllocator
             }
             if (buf != null) {
                 buf.release();
+                budget.release(capacity());
                 buf = null;
                 doubleFreeCheck = new NullPointerException();
             }
@@ -0,0 +1,291 @@
+package org.embulk.exec;
+
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.collect.ImmutableList;
+import org.embulk.config.CommitReport;
+import org.embulk.config.ConfigDiff;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.Schema;
+import org.embulk.exec.LocalExecutor.ExecutorTask;
+import org.slf4j.Logger;
+
+// Results of tasks of a LocalExecutor transaction. Indexes are input task
+// indexes unless the names say output.
+class ProcessState
+{
+    private final Logger logger;
+    private final AtomicInteger startedCount = new AtomicInteger();
+    private final AtomicInteger finishedCount = new AtomicInteger();
+    private volatile Schema inputSchema;
+    private volatile Schema outputSchema;
+    private volatile Throwable[] exceptions;
+    private volatile CommitReport[] inputCommitReports;
+    private volatile CommitReport[] outputCommitReports;
+    private volatile ConfigDiff inputConfigDiff;
+    private volatile ConfigDiff outputConfigDiff;
+    private int processorCount;
+    private int outputCount;
+    private boolean partitioned;
+    private volatile int firstFailedIndex = -1;
+
+    public ProcessState(Logger logger)
+    {
+        this.logger = logger;
+    }
+
+    public Logger getLogger()
+    {
+        return logger;
+    }
+
+    public void initialize(int count, int outputCount, boolean partitioned)
+    {
+        this.exceptions = new Throwable[count];
+        this.inputCommitReports = new CommitReport[count];
+        this.outputCommitReports = new CommitReport[outputCount];
+        this.processorCount = count;
+        this.outputCount = outputCount;
+        this.partitioned = partitioned;
+    }
+
+    public void setInputSchema(Schema inputSchema)
+    {
+        this.inputSchema = inputSchema;
+    }
+
+    public void setOutputSchema(Schema outputSchema)
+    {
+        this.outputSchema = outputSchema;
+    }
+
+    public Schema getInputSchema()
+    {
+        return inputSchema;
+    }
+
+    public Schema getOutputSchema()
+    {
+        return outputSchema;
+    }
+
+    public boolean isAnyStarted()
+    {
+        return startedCount.get() > 0;
+    }
+
+    public void start(int i)
+    {
+        startedCount.incrementAndGet();
+    }
+
+    public void finish(int i)
+    {
+        finishedCount.incrementAndGet();
+    }
+
+    public int getProcessorCount()
+    {
+        return processorCount;
+    }
+
+    public int getOutputCount()
+    {
+        return outputCount;
+    }
+
+    // index of the output task that the input task writes pages to
+    public int getOutputIndex(int i)
+    {
+        return i % outputCount;
+    }
+
+    public int getStartedCount()
+    {
+        return startedCount.get();
+    }
+
+    public int getFinishedCount()
+    {
+        return finishedCount.get();
+    }
+
+    public void setInputCommitReport(int i, CommitReport inputCommitReport)
+    {
+        if (inputCommitReport == null) {
+            inputCommitReport = Exec.newCommitReport();
+        }
+        this.inputCommitReports[i] = inputCommitReport;
+    }
+
+    public void setOutputCommitReport(int i, CommitReport outputCommitReport)
+    {
+        if (outputCommitReport == null) {
+            outputCommitReport = Exec.newCommitReport();
+        }
+        this.outputCommitReports[i] = outputCommitReport;
+    }
+
+    public boolean isOutputCommitted(int outputIndex)
+    {
+        return outputCommitReports[outputIndex] != null;
+    }
+
+    public boolean isPartitioned()
+    {
+        return partitioned;
+    }
+
+    // true if the output tasks that the input task writes pages to are committed
+    public boolean isCommitted(int i)
+    {
+        if (partitioned) {
+            // the input task writes pages to all output tasks
+            return isAllCommitted();
+        }
+        return isOutputCommitted(getOutputIndex(i));
+    }
+
+    public void setException(int i, Throwable exception)
+    {
+        this.exceptions[i] = exception;
+        if (exception != null && firstFailedIndex < 0) {
+            firstFailedIndex = i;
+        }
+    }
+
+    public boolean hasException(int i)
+    {
+        return exceptions[i] != null;
+    }
+
+    public boolean isAllCommitted()
+    {
+        if (processorCount <= 0) {
+            // not initialized
+            return false;
+        }
+        for (int i=0; i < outputCount; i++) {
+            if (!isOutputCommitted(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isAnyCommitted()
+    {
+        for (int i=0; i < outputCount; i++) {
+            if (isOutputCommitted(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void setOutputConfigDiff(ConfigDiff outputConfigDiff)
+    {
+        if (outputConfigDiff == null) {
+            outputConfigDiff = Exec.newConfigDiff();
+        }
+        this.outputConfigDiff = outputConfigDiff;
+    }
+
+    public void setInputConfigDiff(ConfigDiff inputConfigDiff)
+    {
+        if (inputConfigDiff == null) {
+            inputConfigDiff = Exec.newConfigDiff();
+        }
+        this.inputConfigDiff = inputConfigDiff;
+    }
+
+    public List<CommitReport> getInputCommitReports()
+    {
+        return ImmutableList.copyOf(inputCommitReports);
+    }
+
+    public List<CommitReport> getOutputCommitReports()
+    {
+        return ImmutableList.copyOf(outputCommitReports);
+    }
+
+    public RuntimeException getRepresentativeException()
+    {
+        RuntimeException top = null;
+        List<Throwable> ordered = new ArrayList<Throwable>(Arrays.asList(exceptions));
+        if (firstFailedIndex >= 0) {
+            // the exception that failed first is the cause. Other tasks may have
+            // failed because they were interrupted
+            ordered.add(0, ordered.remove(firstFailedIndex));
+        }
+        for (Throwable ex : ordered) {
+            if (ex != null) {
+                if (top != null) {
+                    top.addSuppressed(ex);
+                } else {
+                    if (ex instanceof RuntimeException) {
+                        top = (RuntimeException) ex;
+                    } else {
+                        top = new RuntimeException(ex);
+                    }
+                }
+            }
+        }
+        if (top == null) {
+            top = new RuntimeException("Some transactions are not committed");
+        }
+        return top;
+    }
+
+    public int getCommittedUnclosedCount()
+    {
+        int count = 0;
+        for (int i=0; i < exceptions.length; i++) {
+            if (exceptions[i] != null && isCommitted(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public ExecutionResult buildExecuteResult()
+    {
+        return buildExecuteResultWithWarningException(null);
+    }
+
+    public ExecutionResult buildExecuteResultWithWarningException(Throwable ex)
+    {
+        ConfigDiff configDiff = Exec.newConfigDiff();
+        if (inputConfigDiff != null) {
+            configDiff.getNestedOrSetEmpty("in").merge(inputConfigDiff);
+        }
+        if (outputConfigDiff != null) {
+            configDiff.getNestedOrSetEmpty("out").merge(outputConfigDiff);
+        }
+
+        ImmutableList.Builder<Throwable> ignoredExceptions = ImmutableList.builder();
+        for (Throwable e : exceptions) {
+            if (e != null) {
+                ignoredExceptions.add(e);
+            }
+        }
+        if (ex != null) {
+            ignoredExceptions.add(ex);
+        }
+
+        return new ExecutionResult(configDiff, ignoredExceptions.build());
+    }
+
+    public PartialExecutionException buildPartialExecuteException(Throwable cause,
+            ExecutorTask task, ExecSession exec)
+    {
+        return new PartialExecutionException(cause, new ResumeState(
+                    exec.getSessionConfigSource(),
+                    task.getInputTask(), task.getOutputTask(),
+                    inputSchema, outputSchema,
+                    Arrays.asList(inputCommitReports), Arrays.asList(outputCommitReports)));
+    }
+}
@@ -0,0 +1,351 @@
+package org.embulk.exec;
+
+import java.io.File;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import com.google.common.collect.ImmutableList;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.ConfigException;
+import org.embulk.config.CommitReport;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Schema;
+import org.embulk.spi.Exec;
+import org.embulk.spi.InputPlugin;
+import org.embulk.spi.FilterPlugin;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.util.Filters;
+import org.embulk.spi.util.PageSorter;
+import org.embulk.spi.util.SortColumnConfig;
+import org.embulk.spi.util.SortingPageOutput;
+import org.embulk.exec.LocalExecutor.ExecutorTask;
+import org.embulk.exec.ProcessorWorker.ExceptionInfo;
+import org.embulk.exec.ProcessorWorker.TaskResult;
+import org.embulk.exec.TaskAttempts.CommitClaimedException;
+
+// Creates processors, which run input, filters and output of a task. LocalExecutor
+// schedules the processors.
+class ProcessorFactory
+{
+    // creates plugins of a task
+    public interface TaskPlugins
+    {
+        public InputPlugin newInputPlugin(ExecutorTask task);
+
+        public List<FilterPlugin> newFilterPlugins(ExecutorTask task);
+
+        public OutputPlugin newOutputPlugin(ExecutorTask task);
+    }
+
+    private final TaskPlugins plugins;
+    private final ProcessorWorkerPool workers;  // null if tasks run in this process
+    private final List<String> partitionKeys;  // empty if records are not partitioned
+    private final ExecutorService pipelineExecutor;  // null if pipelined_execution is false
+    private final int pipelineQueueSize;
+    private final List<SortColumnConfig> sortColumns;  // empty if records are not sorted
+    private final long sortMemoryLimit;
+    private final File sortTempDirectory;
+    private final TaskRetryPolicy retryPolicy;
+    private final ExecutorService filterExecutor;  // null if parallel_filter_threads is 0
+    private final int parallelFilterThreads;
+
+    public ProcessorFactory(ConfigSource systemConfig, TaskPlugins plugins,
+            ProcessorWorkerPool workers, List<String> partitionKeys)
+    {
+        this.plugins = plugins;
+        this.workers = workers;
+        this.partitionKeys = partitionKeys;
+
+        // pipelined_execution: true runs output of each task on another thread so that
+        // input and filters don't wait for output I/O.
+        // pipeline_queue_size: max number of pages buffered between the threads.
+        boolean pipelined = systemConfig.get(Boolean.class, "pipelined_execution", false);
+        this.pipelineQueueSize = systemConfig.get(Integer.class, "pipeline_queue_size", 16);
+        if (pipelineQueueSize <= 0) {
+            throw new ConfigException("pipeline_queue_size must be positive: "+pipelineQueueSize);
+        }
+        if (pipelined) {
+            this.pipelineExecutor = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("embulk-pipeline-%d")
+                            .setDaemon(true)
+                            .build());
+        } else {
+            this.pipelineExecutor = null;
+        }
+
+        // sort_columns: sorts records of each output task by these columns, for example
+        // [{name: time}, {name: id, order: desc}]. Use with max_output_tasks: 1 to sort all records.
+        // sort_memory_limit: records exceeding this size are sorted in runs spilled to
+        // temporary files in page_store_temp_dir and merged when the output task finishes.
+        this.sortColumns = ImmutableList.copyOf(systemConfig.get(SortColumnConfig[].class,
+                    "sort_columns", new SortColumnConfig[0]));
+        this.sortMemoryLimit = systemConfig.get(Long.class, "sort_memory_limit", 64L*1024*1024);
+        if (sortMemoryLimit < 0) {
+            throw new ConfigException("sort_memory_limit must not be negative: "+sortMemoryLimit);
+        }
+        this.sortTempDirectory = new File(systemConfig.get(String.class, "page_store_temp_dir",
+                    System.getProperty("java.io.tmpdir")));
+
+        // retries a failed task in the same process. Tasks writing to a shared
+        // output task (max_output_tasks) are not retried.
+        this.retryPolicy = new TaskRetryPolicy(systemConfig);
+
+        // parallel_filter_threads: filters pages of a task in parallel using this number
+        // of threads shared by tasks. Enabled only if all filters implement ParallelFilterSupport.
+        this.parallelFilterThreads = systemConfig.get(Integer.class, "parallel_filter_threads", 0);
+        if (parallelFilterThreads < 0) {
+            throw new ConfigException("parallel_filter_threads must not be negative: "+parallelFilterThreads);
+        }
+        if (parallelFilterThreads > 0) {
+            this.filterExecutor = Executors.newFixedThreadPool(parallelFilterThreads,
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("embulk-filter-%d")
+                            .setDaemon(true)
+                            .build());
+        } else {
+            this.filterExecutor = null;
+        }
+    }
+
+    // validates the system configs against the output schema of a transaction
+    public void validate(Schema outputSchema)
+    {
+        HashPartitionPageOutput.lookupKeyColumns(outputSchema, partitionKeys);
+        SortColumnConfig.toSortKeys(sortColumns, outputSchema);
+    }
+
+    // attempt is 0 for the first attempt of the task, or larger for speculative attempts
+    public Callable<Throwable> newProcessor(final TaskSource taskSource,
+            final List<Schema> filterSchemas, final TaskAttempts attempts,
+            final int attempt, final ProcessState state)
+    {
+        final int index = attempts.getIndex();
+        final boolean speculative = attempt > 0;
+        return new Callable<Throwable>() {
+            public Throwable call()
+            {
+                if (!speculative) {
+                    state.start(index);
+                }
+                attempts.enter();
+                try {
+                    int retryCount = 0;
+                    while (true) {
+                        try {
+                            if (workers != null) {
+                                runInWorker(taskSource, filterSchemas, attempts, attempt);
+                            } else {
+                                runProcessor(taskSource, filterSchemas, attempts, attempt);
+                            }
+                            return null;
+                        } catch (RuntimeException ex) {
+                            if (ex instanceof CommitClaimedException || attempts.isOutputCommitted() ||
+                                    !retryPolicy.isRetryable(ex, retryCount)) {
+                                throw ex;
+                            }
+                            long waitMillis = retryPolicy.getWaitMillis(retryCount);
+                            retryCount++;
+                            state.getLogger().warn(String.format("Task %d failed. Retrying in %,d ms (retry %d)", index, waitMillis, retryCount), ex);
+                            try {
+                                Thread.sleep(waitMillis);
+                            } catch (InterruptedException interrupted) {
+                                // cancelled
+                                ex.addSuppressed(interrupted);
+                                throw ex;
+                            }
+                        }
+                    }
+                } finally {
+                    attempts.exit();
+                    if (attempts.isOutputCommitted()) {
+                        state.setInputCommitReport(index, attempts.getInputCommitReport());
+                        state.setOutputCommitReport(index, attempts.getOutputCommitReport());
+                    }
+                    if (!speculative) {
+                        state.finish(index);
+                    }
+                }
+            }
+        };
+    }
+
+    // runs input, filters and output of a task once. The output is aborted if it fails
+    // or another attempt of the task commits its output.
+    private void runProcessor(TaskSource taskSource, List<Schema> filterSchemas, TaskAttempts attempts,
+            int attempt)
+    {
+        final int index = attempts.getIndex();
+        final ExecutorTask task = taskSource.loadTask(ExecutorTask.class);
+        final InputPlugin in = plugins.newInputPlugin(task);
+        final List<FilterPlugin> filterPlugins = plugins.newFilterPlugins(task);
+        final OutputPlugin out = plugins.newOutputPlugin(task);
+
+        TransactionalPageOutput tran = out.open(task.getOutputTask(), last(filterSchemas), index);
+        PageOutput closeThis = tran;
+        PipelinedPageOutput pipeline = null;
+        boolean claimed = false;
+        boolean committed = false;
+        try {
+            PageOutput output = tran;
+            pipeline = openPipeline(tran);
+            if (pipeline != null) {
+                output = closeThis = pipeline;
+            }
+            output = closeThis = openSort(last(filterSchemas), output);
+            PageOutput filtered = closeThis = openFilters(filterPlugins, task.getFilterTasks(), filterSchemas, output);
+            CommitReport inputCommitReport = in.run(task.getInputTask(), first(filterSchemas), index, filtered);
+            if (pipeline != null) {
+                pipeline.join();
+            }
+            if (!attempts.claimCommit(attempt)) {
+                throw new CommitClaimedException(index);
+            }
+            claimed = true;
+            attempts.setCommitReports(inputCommitReport, tran.commit());  // TODO check output.finish() is called. wrap or abstract
+            committed = true;
+        } finally {
+            try {
+                if (!committed) {
+                    if (claimed) {
+                        attempts.releaseCommit(attempt);
+                    }
+                    if (pipeline != null) {
+                        // stops the output thread before abort
+                        pipeline.cancel();
+                    }
+                    tran.abort();
+                }
+            } finally {
+                closeThis.close();
+            }
+        }
+    }
+
+    // runs output of the transaction on another thread if pipelined_execution is
+    // true. Returns null if it's false.
+    public PipelinedPageOutput openPipeline(TransactionalPageOutput tran)
+    {
+        if (pipelineExecutor == null) {
+            return null;
+        }
+        return new PipelinedPageOutput(tran, pipelineQueueSize, pipelineExecutor);
+    }
+
+    // sorts pages passed to the output if sort_columns is set
+    public PageOutput openSort(Schema schema, PageOutput output)
+    {
+        if (sortColumns.isEmpty()) {
+            return output;
+        }
+        PageSorter sorter = new PageSorter(Exec.getBufferAllocator(), schema,
+                SortColumnConfig.toSortKeys(sortColumns, schema), sortMemoryLimit, sortTempDirectory);
+        return new SortingPageOutput(sorter, output);
+    }
+
+    private PageOutput openFilters(List<FilterPlugin> filterPlugins, List<TaskSource> filterTasks,
+            List<Schema> filterSchemas, PageOutput output)
+    {
+        if (filterExecutor != null && ParallelFilterPageOutput.isSupported(filterPlugins, filterTasks)) {
+            return new ParallelFilterPageOutput(filterPlugins, filterTasks, filterSchemas, output,
+                    filterExecutor, parallelFilterThreads * 2);
+        }
+        return Filters.open(filterPlugins, filterTasks, filterSchemas, output);
+    }
+
+    // runs a task on a worker process. The worker commits or aborts the output
+    private void runInWorker(TaskSource taskSource, List<Schema> filterSchemas, TaskAttempts attempts,
+            int attempt)
+    {
+        TaskResult result = workers.run(Exec.session(), taskSource, filterSchemas, attempts.getIndex());
+        if (result.isCommitted()) {
+            attempts.claimCommit(attempt);
+            attempts.setCommitReports(result.getInputCommitReport(), result.getOutputCommitReport());
+        }
+        Throwable exception = result.getException();
+        if (exception != null) {
+            throw Throwables.propagate(exception);
+        }
+    }
+
+    // runs a task sent by LocalExecutor of another process. See ProcessorWorker.
+    public TaskResult runTask(TaskSource taskSource, List<Schema> filterSchemas, int index)
+    {
+        TaskAttempts attempts = new TaskAttempts(index);
+        Throwable exception = null;
+        try {
+            runProcessor(taskSource, filterSchemas, attempts, 0);
+        } catch (Throwable ex) {
+            exception = ex;
+        }
+        return new TaskResult(attempts.getInputCommitReport(), attempts.getOutputCommitReport(), ExceptionInfo.of(exception));
+    }
+
+    // the input task writes pages to one of the sessions, or routes records to all of
+    // the sessions if records are partitioned
+    public Callable<Throwable> newSharedProcessor(final TaskSource taskSource,
+            final List<Schema> filterSchemas, final int index,
+            final List<OutputSession> sessions, final ProcessState state)
+    {
+        return new Callable<Throwable>() {
+            public Throwable call()
+            {
+                final ExecutorTask task = taskSource.loadTask(ExecutorTask.class);
+                final InputPlugin in = plugins.newInputPlugin(task);
+                final List<FilterPlugin> filterPlugins = plugins.newFilterPlugins(task);
+                final OutputPlugin out = plugins.newOutputPlugin(task);
+
+                PageOutput filtered = null;
+                boolean succeeded = false;
+                state.start(index);
+                try {
+                    Schema outputSchema = last(filterSchemas);
+                    PageOutput output;
+                    if (state.isPartitioned()) {
+                        List<PageOutput> destinations = new ArrayList<PageOutput>(sessions.size());
+                        for (OutputSession session : sessions) {
+                            destinations.add(session.open(out, task.getOutputTask(), outputSchema));
+                        }
+                        output = new HashPartitionPageOutput(Exec.getBufferAllocator(), outputSchema,
+                                HashPartitionPageOutput.lookupKeyColumns(outputSchema, partitionKeys),
+                                destinations);
+                    } else {
+                        output = sessions.get(0).open(out, task.getOutputTask(), outputSchema);
+                    }
+                    filtered = openFilters(filterPlugins, task.getFilterTasks(), filterSchemas, output);
+                    state.setInputCommitReport(index, in.run(task.getInputTask(), first(filterSchemas), index, filtered));
+                    succeeded = true;
+                    return null;
+                } finally {
+                    try {
+                        try {
+                            if (filtered != null) {
+                                filtered.close();
+                            }
+                        } finally {
+                            OutputSession.finishInputs(sessions, succeeded);
+                        }
+                    } finally {
+                        state.finish(index);
+                    }
+                }
+            }
+        };
+    }
+
+    private static Schema first(List<Schema> filterSchemas)
+    {
+        return filterSchemas.get(0);
+    }
+
+    private static Schema last(List<Schema> filterSchemas)
+    {
+        return filterSchemas.get(filterSchemas.size() - 1);
+    }
+}
@@ -0,0 +1,436 @@
+package org.embulk.exec;
+
+import java.util.List;
+import java.util.Arrays;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Injector;
+import org.embulk.config.CommitReport;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigLoader;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.ModelManager;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.Schema;
+import org.embulk.EmbulkService;
+import org.slf4j.ILoggerFactory;
+import org.slf4j.Logger;
+
+// Worker process that runs input, filters and output of tasks sent by
+// LocalExecutor of another process. See ProcessorWorkerPool.
+//
+// Usage:
+//   java -cp CLASSPATH org.embulk.exec.ProcessorWorker --listen [ADDRESS:]PORT
+//     listens on PORT for LocalExecutors configured with worker_hosts. ADDRESS
+//     is 127.0.0.1 by default.
+//   java -cp CLASSPATH org.embulk.exec.ProcessorWorker --connect HOST:PORT CONNECTIONS
+//     used by forked workers. Exits when all of the connections are closed.
+//
+// Both require a secret because the worker runs any task sent to it, and any
+// local user can connect to a loopback address. The secret is given by
+// EMBULK_WORKER_SECRET environment variable or worker_secret system config.
+//
+// System properties starting with "embulk." are the system config as same as
+// the embulk command.
+//
+// The side that opens a connection sends the secret as the first message, and
+// the other side closes the connection if the secret doesn't match.
+public class ProcessorWorker
+{
+    static final String SECRET_ENVIRONMENT_VARIABLE = "EMBULK_WORKER_SECRET";
+
+    // max time to wait for the secret of a new connection
+    static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+    private final Injector injector;
+    private final ModelManager model;
+    private final LocalExecutor executor;
+    private final Logger logger;
+    private final String secret;
+
+    public ProcessorWorker(Injector injector, String secret)
+    {
+        if (secret == null || secret.isEmpty()) {
+            throw new ConfigException("worker_secret or "+SECRET_ENVIRONMENT_VARIABLE+" environment variable is required");
+        }
+        this.injector = injector;
+        this.model = injector.getInstance(ModelManager.class);
+        this.executor = injector.getInstance(LocalExecutor.class);
+        this.logger = injector.getInstance(ILoggerFactory.class).getLogger(ProcessorWorker.class.getName());
+        this.secret = secret;
+    }
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        ModelManager bootstrapModelManager = new ModelManager(null, new ObjectMapper());
+        ConfigSource systemConfig = new ConfigLoader(bootstrapModelManager).fromPropertiesYamlLiteral(System.getProperties(), "embulk.");
+
+        // worker_secret: shared secret of workers and LocalExecutors
+        String secret = System.getenv(SECRET_ENVIRONMENT_VARIABLE);
+        if (secret == null) {
+            secret = systemConfig.get(String.class, "worker_secret", null);
+        }
+        ProcessorWorker worker = new ProcessorWorker(new EmbulkService(systemConfig).getInjector(), secret);
+
+        if (args.length == 2 && args[0].equals("--listen")) {
+            InetSocketAddress address = parseListenAddress(args[1]);
+            try (ServerSocket server = new ServerSocket(address.getPort(), 50, address.getAddress())) {
+                worker.listen(server);
+            }
+        } else if (args.length == 3 && args[0].equals("--connect")) {
+            worker.connect(parseAddress(args[1]), Integer.parseInt(args[2]));
+        } else {
+            System.err.println("Usage: ProcessorWorker --listen [ADDRESS:]PORT | --connect HOST:PORT CONNECTIONS");
+            System.exit(1);
+        }
+    }
+
+    static InetSocketAddress parseAddress(String hostAndPort)
+    {
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Worker address must be HOST:PORT: "+hostAndPort);
+        }
+        return new InetSocketAddress(hostAndPort.substring(0, colon),
+                Integer.parseInt(hostAndPort.substring(colon + 1)));
+    }
+
+    private static InetSocketAddress parseListenAddress(String address)
+    {
+        if (address.indexOf(':') < 0) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+        }
+        return parseAddress(address);
+    }
+
+    // accepts connections until the server socket is closed
+    public void listen(ServerSocket server)
+            throws IOException
+    {
+        logger.info("Listening on {}", server.getLocalSocketAddress());
+        while (true) {
+            startConnection(server.accept(), false, null);
+        }
+    }
+
+    public void connect(InetSocketAddress address, int connections)
+            throws IOException, InterruptedException
+    {
+        CountDownLatch closed = new CountDownLatch(connections);
+        for (int i=0; i < connections; i++) {
+            startConnection(new Socket(address.getAddress(), address.getPort()), true, closed);
+        }
+        closed.await();
+    }
+
+    private void startConnection(final Socket socket, final boolean opened, final CountDownLatch closed)
+    {
+        Thread thread = new Thread(new Runnable() {
+            public void run()
+            {
+                try {
+                    serve(socket, opened);
+                } finally {
+                    if (closed != null) {
+                        closed.countDown();
+                    }
+                }
+            }
+        }, "embulk-worker-connection");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // runs tasks one by one until the connection is closed. opened is true if
+    // this worker opened the connection.
+    private void serve(Socket socket, boolean opened)
+    {
+        try (Socket s = socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (opened) {
+                sendSecret(out, secret);
+            } else if (!checkSecret(socket, in, secret)) {
+                logger.warn("Closed a connection from {} because its secret doesn't match", socket.getRemoteSocketAddress());
+                return;
+            }
+            BlockingQueue<String> requests = startReader(in);
+            while (true) {
+                String request;
+                try {
+                    request = requests.take();
+                } catch (InterruptedException ex) {
+                    // closed by LocalExecutor
+                    return;
+                }
+                writeMessage(out, model.writeObject(runTask(request)));
+            }
+        } catch (IOException ex) {
+            logger.warn("Connection to LocalExecutor failed", ex);
+        }
+    }
+
+    // reads requests in another thread so that the running task is interrupted
+    // when LocalExecutor closes the connection to cancel the task
+    private BlockingQueue<String> startReader(final DataInputStream in)
+    {
+        final BlockingQueue<String> requests = new LinkedBlockingQueue<String>();
+        final Thread serving = Thread.currentThread();
+        Thread thread = new Thread(new Runnable() {
+            public void run()
+            {
+                try {
+                    while (true) {
+                        requests.add(readMessage(in));
+                    }
+                } catch (IOException ex) {
+                    // closed
+                } finally {
+                    serving.interrupt();
+                }
+            }
+        }, "embulk-worker-reader");
+        thread.setDaemon(true);
+        thread.start();
+        return requests;
+    }
+
+    static void sendSecret(DataOutputStream out, String secret)
+            throws IOException
+    {
+        writeMessage(out, secret);
+    }
+
+    // reads the first message of a connection
+    static boolean checkSecret(Socket socket, DataInputStream in, String secret)
+            throws IOException
+    {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        int length = in.readInt();
+        if (length < 0 || length > 1024) {
+            return false;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        socket.setSoTimeout(0);
+        return MessageDigest.isEqual(bytes, secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private TaskResult runTask(String requestJson)
+    {
+        try {
+            final TaskRequest request = model.readObject(TaskRequest.class, requestJson);
+            ExecSession exec = new ExecSession(injector, request.getExecSessionConfigSource());
+            return Exec.doWith(exec, new ExecAction<TaskResult>() {
+                public TaskResult run()
+                {
+                    return executor.runTask(request.getTaskSource(), request.getSchemas(), request.getIndex());
+                }
+            });
+        } catch (Exception ex) {
+            return new TaskResult(null, null, ExceptionInfo.of(ex));
+        }
+    }
+
+    // a message is a JSON string prefixed by its length
+    static String readMessage(DataInputStream in)
+            throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeMessage(DataOutputStream out, String message)
+            throws IOException
+    {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.flush();
+    }
+
+    public static class TaskRequest
+    {
+        private final ConfigSource execSessionConfigSource;
+        private final TaskSource taskSource;
+        private final List<Schema> schemas;
+        private final int index;
+
+        @JsonCreator
+        public TaskRequest(
+                @JsonProperty("exec_task") ConfigSource execSessionConfigSource,
+                @JsonProperty("task") TaskSource taskSource,
+                @JsonProperty("schemas") List<Schema> schemas,
+                @JsonProperty("index") int index)
+        {
+            this.execSessionConfigSource = execSessionConfigSource;
+            this.taskSource = taskSource;
+            this.schemas = schemas;
+            this.index = index;
+        }
+
+        @JsonProperty("exec_task")
+        public ConfigSource getExecSessionConfigSource()
+        {
+            return execSessionConfigSource;
+        }
+
+        @JsonProperty("task")
+        public TaskSource getTaskSource()
+        {
+            return taskSource;
+        }
+
+        @JsonProperty("schemas")
+        public List<Schema> getSchemas()
+        {
+            return schemas;
+        }
+
+        @JsonProperty("index")
+        public int getIndex()
+        {
+            return index;
+        }
+    }
+
+    // Result of a task. The output is committed if outputCommitReport is set.
+    public static class TaskResult
+    {
+        private final CommitReport inputCommitReport;
+        private final CommitReport outputCommitReport;
+        private final ExceptionInfo exception;
+
+        @JsonCreator
+        public TaskResult(
+                @JsonProperty("in_report") CommitReport inputCommitReport,
+                @JsonProperty("out_report") CommitReport outputCommitReport,
+                @JsonProperty("exception") ExceptionInfo exception)
+        {
+            this.inputCommitReport = inputCommitReport;
+            this.outputCommitReport = outputCommitReport;
+            this.exception = exception;
+        }
+
+        @JsonProperty("in_report")
+        public CommitReport getInputCommitReport()
+        {
+            return inputCommitReport;
+        }
+
+        @JsonProperty("out_report")
+        public CommitReport getOutputCommitReport()
+        {
+            return outputCommitReport;
+        }
+
+        @JsonProperty("exception")
+        public ExceptionInfo getExceptionInfo()
+        {
+            return exception;
+        }
+
+        @JsonIgnore
+        public boolean isCommitted()
+        {
+            return outputCommitReport != null;
+        }
+
+        // returns null if the task succeeded
+        @JsonIgnore
+        public RemoteTaskException getException()
+        {
+            return exception == null ? null : exception.toException();
+        }
+    }
+
+    // An exception sent as plain values instead of the exception object so that
+    // receiving a result never instantiates classes chosen by the sender.
+    public static class ExceptionInfo
+    {
+        private final List<String> classNames;
+        private final String message;
+        private final List<StackTraceElement> stackTrace;
+        private final ExceptionInfo cause;
+
+        @JsonCreator
+        public ExceptionInfo(
+                @JsonProperty("classes") List<String> classNames,
+                @JsonProperty("message") String message,
+                @JsonProperty("stack_trace") List<StackTraceElement> stackTrace,
+                @JsonProperty("cause") ExceptionInfo cause)
+        {
+            this.classNames = classNames;
+            this.message = message;
+            this.stackTrace = stackTrace;
+            this.cause = cause;
+        }
+
+        // returns null if exception is null
+        public static ExceptionInfo of(Throwable exception)
+        {
+            if (exception == null) {
+                return null;
+            }
+            ImmutableList.Builder<String> classNames = ImmutableList.builder();
+            for (Class<?> c = exception.getClass(); c != null; c = c.getSuperclass()) {
+                classNames.add(c.getName());
+            }
+            return new ExceptionInfo(classNames.build(), exception.getMessage(),
+                    Arrays.asList(exception.getStackTrace()), of(exception.getCause()));
+        }
+
+        @JsonProperty("classes")
+        public List<String> getClassNames()
+        {
+            return classNames;
+        }
+
+        @JsonProperty("message")
+        public String getMessage()
+        {
+            return message;
+        }
+
+        @JsonProperty("stack_trace")
+        public List<StackTraceElement> getStackTrace()
+        {
+            return stackTrace;
+        }
+
+        @JsonProperty("cause")
+        public ExceptionInfo getCause()
+        {
+            return cause;
+        }
+
+        public RemoteTaskException toException()
+        {
+            return new RemoteTaskException(classNames, message, stackTrace,
+                    cause == null ? null : cause.toException());
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package org.embulk.exec;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+import com.google.inject.Injector;
+import org.jruby.embed.ScriptingContainer;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ModelManager;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.ExecutionInterruptedException;
+import org.embulk.spi.Schema;
+import org.embulk.exec.ProcessorWorker.TaskRequest;
+import org.embulk.exec.ProcessorWorker.TaskResult;
+
+// Connections to worker processes that run tasks of LocalExecutor. A connection
+// runs one task at a time. Workers are started when the first task runs.
+public class ProcessorWorkerPool
+{
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+
+    private static final List<String> GEM_ENVIRONMENT_VARIABLES = ImmutableList.of("GEM_HOME", "GEM_PATH", "BUNDLE_GEMFILE");
+
+    private final ConfigSource systemConfig;
+    private final Injector injector;
+    private final ModelManager model;
+    private final int processes;
+    private final List<String> hosts;
+    private final int threads;
+    private final List<String> jvmOptions;
+    private final String secret;  // null if worker_hosts is not set
+
+    private final BlockingQueue<Connection> idleConnections = new LinkedBlockingQueue<Connection>();
+    private final List<Process> forkedProcesses = new ArrayList<Process>();
+    private boolean started;
+    private int connectionCount;
+
+    @SuppressWarnings("unchecked")
+    public ProcessorWorkerPool(ConfigSource systemConfig, Injector injector)
+    {
+        this.systemConfig = systemConfig;
+        this.injector = injector;
+        this.model = injector.getInstance(ModelManager.class);
+
+        // worker_processes: number of worker JVMs forked on this machine
+        this.processes = systemConfig.get(Integer.class, "worker_processes", 0);
+
+        // worker_hosts: HOST:PORT of workers started with ProcessorWorker --listen PORT
+        this.hosts = ImmutableList.copyOf((List<String>) systemConfig.get(List.class,
+                    "worker_hosts", ImmutableList.of()));
+
+        // worker_threads: number of tasks that a worker runs at the same time
+        this.threads = systemConfig.get(Integer.class, "worker_threads",
+                Runtime.getRuntime().availableProcessors());
+
+        // worker_jvm_options: options of forked JVMs such as -Xmx
+        this.jvmOptions = ImmutableList.copyOf((List<String>) systemConfig.get(List.class,
+                    "worker_jvm_options", ImmutableList.of()));
+
+        // worker_secret: shared secret of workers and LocalExecutors. Required by
+        // worker_hosts because workers started with --listen require it.
+        this.secret = systemConfig.get(String.class, "worker_secret", null);
+
+        if (processes < 0) {
+            throw new ConfigException("worker_processes must not be negative: "+processes);
+        }
+        if (threads <= 0) {
+            throw new ConfigException("worker_threads must be positive: "+threads);
+        }
+        if (secret != null && secret.isEmpty()) {
+            throw new ConfigException("worker_secret must not be empty");
+        }
+        if (!hosts.isEmpty() && secret == null) {
+            throw new ConfigException("worker_hosts requires worker_secret");
+        }
+    }
+
+    // false if tasks run in this process
+    public boolean isEnabled()
+    {
+        return processes > 0 || !hosts.isEmpty();
+    }
+
+    // number of tasks that the workers can run at the same time
+    public int getCapacity()
+    {
+        return (processes + hosts.size()) * threads;
+    }
+
+    // runs a task on a worker. The worker commits or aborts the output of the task.
+    public TaskResult run(ExecSession exec, TaskSource taskSource, List<Schema> filterSchemas, int index)
+    {
+        String request = model.writeObject(new TaskRequest(exec.getSessionConfigSource(), taskSource, filterSchemas, index));
+        Connection connection = take();
+        boolean succeeded = false;
+        try {
+            try {
+                connection.send(request);
+            } catch (IOException ex) {
+                // the worker didn't receive the task. IOException is retryable by default
+                throw new RuntimeException(String.format("Failed to send task %d to worker %s", index, connection), ex);
+            }
+            String response;
+            try {
+                response = connection.receive();
+            } catch (IOException ex) {
+                // the worker may have committed the output. Retrying the task could commit it twice
+                throw new TaskResultLostException(String.format("Lost the result of task %d on worker %s", index, connection), ex);
+            }
+            TaskResult result = model.readObject(TaskResult.class, response);
+            succeeded = true;
+            return result;
+        } finally {
+            if (succeeded) {
+                idleConnections.add(connection);
+            } else {
+                discard(connection);
+            }
+        }
+    }
+
+    private Connection take()
+    {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (!started) {
+                        start();
+                    }
+                    if (connectionCount == 0) {
+                        throw new IllegalStateException("All connections to workers are closed");
+                    }
+                }
+                Connection connection = idleConnections.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (connection != null) {
+                    return connection;
+                }
+            }
+        } catch (InterruptedException ex) {
+            throw new ExecutionInterruptedException(ex);
+        }
+    }
+
+    private synchronized void discard(Connection connection)
+    {
+        connection.close();
+        connectionCount--;
+    }
+
+    private void start()
+    {
+        started = true;
+        for (String host : hosts) {
+            InetSocketAddress address = ProcessorWorker.parseAddress(host);
+            for (int i=0; i < threads; i++) {
+                try {
+                    Connection connection = new Connection(new Socket(address.getAddress(), address.getPort()));
+                    connection.sendSecret(secret);
+                    addConnection(connection);
+                } catch (IOException ex) {
+                    throw new RuntimeException("Failed to connect to worker "+host, ex);
+                }
+            }
+        }
+        if (processes > 0) {
+            forkWorkers();
+        }
+    }
+
+    // forked workers connect to a port of this process listening on the loopback address.
+    // Other processes on this machine can connect to the port too. Thus workers send
+    // a secret given by an environment variable, which isn't visible to other users.
+    //
+    // Forked workers load Ruby plugins from the same $LOAD_PATH and gems as this
+    // process. GEM_HOME, GEM_PATH and BUNDLE_GEMFILE set by the embulk command are
+    // in ENV of Ruby but not in the environment of this process.
+    private void forkWorkers()
+    {
+        String forkSecret = (secret != null ? secret : newRandomSecret());
+        ScriptingContainer jruby = injector.getInstance(ScriptingContainer.class);
+        List<String> loadPaths = new ArrayList<String>();
+        for (Object path : (List<?>) jruby.runScriptlet("$LOAD_PATH.map {|path| path.to_s }")) {
+            loadPaths.add(path.toString());
+        }
+        try (ServerSocket server = new ServerSocket(0, processes * threads, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout((int) POLL_INTERVAL_MILLIS);
+            String address = server.getInetAddress().getHostAddress() + ":" + server.getLocalPort();
+            for (int i=0; i < processes; i++) {
+                ProcessBuilder builder = new ProcessBuilder(getWorkerCommand(address, loadPaths))
+                        .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT);
+                builder.environment().put(ProcessorWorker.SECRET_ENVIRONMENT_VARIABLE, forkSecret);
+                for (String name : GEM_ENVIRONMENT_VARIABLES) {
+                    Object value = jruby.runScriptlet("ENV['" + name + "']");
+                    if (value == null) {
+                        builder.environment().remove(name);
+                    } else {
+                        builder.environment().put(name, value.toString());
+                    }
+                }
+                forkedProcesses.add(builder.start());
+            }
+            int expected = processes * threads;
+            for (int accepted = 0; accepted < expected; ) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException ex) {
+                    for (Process process : forkedProcesses) {
+                        if (!isAlive(process)) {
+                            throw new RuntimeException("Worker process exited with code "+process.exitValue());
+                        }
+                    }
+                    continue;
+                }
+                Connection connection = new Connection(socket);
+                boolean authenticated = false;
+                try {
+                    authenticated = connection.checkSecret(forkSecret);
+                } catch (IOException ex) {
+                    // not a worker
+                }
+                if (authenticated) {
+                    addConnection(connection);
+                    accepted++;
+                } else {
+                    connection.close();
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to start worker processes", ex);
+        }
+    }
+
+    private static String newRandomSecret()
+    {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        return BaseEncoding.base16().encode(bytes);
+    }
+
+    private List<String> getWorkerCommand(String address, List<String> loadPaths)
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(jvmOptions);
+        // passes the system config as YAML literals. JSON is valid YAML.
+        // worker_secret is passed by an environment variable instead.
+        for (Map.Entry<String, JsonNode> attr : systemConfig.getAttributes()) {
+            if (attr.getKey().equals("worker_secret") || attr.getKey().equals("jruby_load_path")) {
+                continue;
+            }
+            command.add("-Dembulk." + attr.getKey() + "=" + attr.getValue().toString());
+        }
+        // $LOAD_PATH includes jruby_load_path
+        command.add("-Dembulk.jruby_load_path=" + model.writeObject(loadPaths));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ProcessorWorker.class.getName());
+        command.add("--connect");
+        command.add(address);
+        command.add(Integer.toString(threads));
+        return command;
+    }
+
+    private static boolean isAlive(Process process)
+    {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException ex) {
+            return true;
+        }
+    }
+
+    private void addConnection(Connection connection)
+    {
+        idleConnections.add(connection);
+        connectionCount++;
+    }
+
+    private static class Connection
+    {
+        private final Socket socket;
+        private final BufferedInputStream buffered;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        public Connection(Socket socket)
+                throws IOException
+        {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.buffered = new BufferedInputStream(socket.getInputStream());
+            this.in = new DataInputStream(buffered);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        public void send(String request)
+                throws IOException
+        {
+            ProcessorWorker.writeMessage(out, request);
+        }
+
+        // waits for the response. If this thread is interrupted, closes the connection
+        // so that the worker interrupts the task
+        public String receive()
+                throws IOException
+        {
+            socket.setSoTimeout((int) POLL_INTERVAL_MILLIS);
+            while (true) {
+                if (Thread.interrupted()) {
+                    close();
+                    throw new ExecutionInterruptedException(new InterruptedException());
+                }
+                try {
+                    buffered.mark(1);
+                    if (buffered.read() < 0) {
+                        throw new EOFException("Connection closed by worker");
+                    }
+                    buffered.reset();
+                    break;
+                } catch (SocketTimeoutException ex) {
+                    // no response yet
+                }
+            }
+            // the worker sends a response at once
+            socket.setSoTimeout(0);
+            return ProcessorWorker.readMessage(in);
+        }
+
+        public void sendSecret(String secret)
+                throws IOException
+        {
+            ProcessorWorker.sendSecret(out, secret);
+        }
+
+        public boolean checkSecret(String secret)
+                throws IOException
+        {
+            return ProcessorWorker.checkSecret(socket, in, secret);
+        }
+
+        public void close()
+        {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return socket.getRemoteSocketAddress().toString();
+        }
+    }
+}
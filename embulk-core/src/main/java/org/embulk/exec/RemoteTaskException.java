@@ -0,0 +1,36 @@
+package org.embulk.exec;
+
+import java.util.List;
+import com.google.common.collect.ImmutableList;
+
+// Exception of a task that failed in a worker process. The original exception is
+// not sent to LocalExecutor. Instead, this keeps the names of its class and
+// superclasses so that TaskRetryPolicy can decide whether the task is retryable.
+// Causes are RemoteTaskException too.
+public class RemoteTaskException
+        extends RuntimeException
+{
+    private final List<String> classNames;
+
+    public RemoteTaskException(List<String> classNames, String message,
+            List<StackTraceElement> stackTrace, RemoteTaskException cause)
+    {
+        super(message, cause);
+        this.classNames = ImmutableList.copyOf(classNames);
+        setStackTrace(stackTrace.toArray(new StackTraceElement[stackTrace.size()]));
+    }
+
+    // the class name of the original exception comes first
+    public List<String> getClassNames()
+    {
+        return classNames;
+    }
+
+    // prints the original class name in stack traces
+    @Override
+    public String toString()
+    {
+        String message = getLocalizedMessage();
+        return message == null ? classNames.get(0) : classNames.get(0) + ": " + message;
+    }
+}
@@ -0,0 +1,66 @@
+package org.embulk.exec;
+
+import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+// Threads of running processors. cancel() interrupts the threads and makes
+// processors that are not started return without running.
+class RunningProcessors
+{
+    private final Set<Thread> threads = new HashSet<Thread>();
+    private boolean cancelled;
+
+    public synchronized boolean enter()
+    {
+        if (cancelled) {
+            return false;
+        }
+        threads.add(Thread.currentThread());
+        return true;
+    }
+
+    public synchronized void exit()
+    {
+        threads.remove(Thread.currentThread());
+    }
+
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    public synchronized void cancel()
+    {
+        if (!cancelled) {
+            cancelled = true;
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    // wraps a processor so that it returns without running if cancelled. sessions
+    // are the output tasks shared with other input tasks, or empty
+    public Callable<Throwable> cancellable(final Callable<Throwable> processor,
+            final List<OutputSession> sessions)
+    {
+        return new Callable<Throwable>() {
+            public Throwable call()
+                    throws Exception
+            {
+                if (!enter()) {
+                    // aborts the output tasks if this is the last input task
+                    OutputSession.finishInputs(sessions, false);
+                    return null;
+                }
+                try {
+                    return processor.call();
+                } finally {
+                    exit();
+                }
+            }
+        };
+    }
+}
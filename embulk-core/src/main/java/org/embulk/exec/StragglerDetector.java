@@ -0,0 +1,68 @@
+package org.embulk.exec;
+
+import java.util.Arrays;
+
+// Detects tasks running much slower than completed tasks. Speed of a task is
+// measured by elapsed time per cost (for example, bytes of input files) so that
+// large tasks are not considered as slow. Cost is 1 if it's unknown.
+//
+// The median is computed from the last WINDOW_SIZE completed tasks so that
+// memory doesn't grow with the number of tasks.
+public class StragglerDetector
+{
+    static final int WINDOW_SIZE = 1024;
+
+    private final double slowness;
+    private final long minElapsedMillis;
+    private final int minCompletedCount;
+
+    // elapsed millis per cost of the last completed tasks. a ring buffer
+    private final double[] window = new double[WINDOW_SIZE];
+    private int completedCount;
+    private double[] sorted = new double[0];  // cached. null if the window changed
+
+    // a task is a straggler if it runs slowness times longer than expected
+    public StragglerDetector(double slowness, long minElapsedMillis, int minCompletedCount)
+    {
+        this.slowness = slowness;
+        this.minElapsedMillis = minElapsedMillis;
+        this.minCompletedCount = minCompletedCount;
+    }
+
+    public int getCompletedCount()
+    {
+        return completedCount;
+    }
+
+    public void addCompleted(long cost, long elapsedMillis)
+    {
+        window[completedCount % WINDOW_SIZE] = (double) elapsedMillis / Math.max(cost, 1);
+        completedCount++;
+        sorted = null;
+    }
+
+    public double getMedianMillisPerCost()
+    {
+        if (sorted == null) {
+            sorted = Arrays.copyOf(window, Math.min(completedCount, WINDOW_SIZE));
+            Arrays.sort(sorted);
+        }
+        int size = sorted.length;
+        if (size == 0) {
+            return 0.0;
+        } else if (size % 2 == 1) {
+            return sorted[size / 2];
+        } else {
+            return (sorted[size / 2 - 1] + sorted[size / 2]) / 2;
+        }
+    }
+
+    public boolean isStraggler(long cost, long elapsedMillis)
+    {
+        if (getCompletedCount() < minCompletedCount || elapsedMillis < minElapsedMillis) {
+            return false;
+        }
+        double expectedMillis = getMedianMillisPerCost() * Math.max(cost, 1);
+        return elapsedMillis > expectedMillis * slowness;
+    }
+}
@@ -0,0 +1,165 @@
+package org.embulk.exec;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.embulk.config.CommitReport;
+import org.embulk.spi.Exec;
+
+// Attempts of a task. Attempts race to commit the output task and the
+// others are aborted. Attempts are numbered in order of submission.
+// submitted() and completed() are called by the thread that schedules tasks.
+class TaskAttempts
+{
+    private final int index;
+    private final AtomicInteger committingAttempt = new AtomicInteger(-1);
+    private final Set<Thread> threads = new HashSet<Thread>();
+    private final List<Future<Throwable>> futures = new ArrayList<Future<Throwable>>();
+    private volatile long startTime;
+    private volatile CommitReport inputCommitReport;
+    private volatile CommitReport outputCommitReport;
+    private int runningCount;
+    private boolean resolved;
+    private boolean committed;
+    private Throwable exception;
+
+    public TaskAttempts(int index)
+    {
+        this.index = index;
+    }
+
+    public int getIndex()
+    {
+        return index;
+    }
+
+    public synchronized void enter()
+    {
+        if (startTime == 0) {
+            startTime = System.currentTimeMillis();
+        }
+        threads.add(Thread.currentThread());
+    }
+
+    public synchronized void exit()
+    {
+        threads.remove(Thread.currentThread());
+    }
+
+    public synchronized void interruptRunning()
+    {
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    // returns false if another attempt is committing or committed the output
+    public boolean claimCommit(int attempt)
+    {
+        return committingAttempt.compareAndSet(-1, attempt);
+    }
+
+    // lets another attempt commit the output if commit of this attempt failed
+    public void releaseCommit(int attempt)
+    {
+        committingAttempt.compareAndSet(attempt, -1);
+    }
+
+    // called by the attempt that claimed the commit
+    public void setCommitReports(CommitReport inputCommitReport, CommitReport outputCommitReport)
+    {
+        this.inputCommitReport = inputCommitReport;
+        this.outputCommitReport = (outputCommitReport != null ? outputCommitReport : Exec.newCommitReport());
+    }
+
+    public CommitReport getInputCommitReport()
+    {
+        return inputCommitReport;
+    }
+
+    public CommitReport getOutputCommitReport()
+    {
+        return outputCommitReport;
+    }
+
+    public boolean isOutputCommitted()
+    {
+        return outputCommitReport != null;
+    }
+
+    // elapsed time since the first attempt started, or 0 if not started
+    public long getElapsedMillis()
+    {
+        long start = startTime;
+        return start == 0 ? 0 : System.currentTimeMillis() - start;
+    }
+
+    public void submitted(Future<Throwable> future)
+    {
+        futures.add(future);
+        runningCount++;
+    }
+
+    public boolean isSpeculated()
+    {
+        return futures.size() > 1;
+    }
+
+    public boolean isResolved()
+    {
+        return resolved;
+    }
+
+    public boolean isCommitted()
+    {
+        return committed;
+    }
+
+    public Throwable getException()
+    {
+        return exception;
+    }
+
+    // returns true if the result of the task is decided by this attempt. The task
+    // succeeds when an attempt commits. Exceptions of failed attempts are kept until
+    // all attempts complete.
+    public boolean completed(Future<Throwable> future, Throwable attemptException)
+    {
+        runningCount--;
+        if (resolved) {
+            return false;
+        }
+        if (committingAttempt.get() == futures.indexOf(future)) {
+            // exception thrown after commit is kept as same as when the task isn't speculated
+            exception = attemptException;
+            committed = true;
+            resolved = true;
+            return true;
+        }
+        if (attemptException != null) {
+            if (exception == null) {
+                exception = attemptException;
+            } else {
+                exception.addSuppressed(attemptException);
+            }
+        }
+        if (runningCount > 0) {
+            return false;
+        }
+        resolved = true;
+        return true;
+    }
+
+    // thrown by an attempt of a task when another attempt is committing the output
+    public static class CommitClaimedException
+            extends RuntimeException
+    {
+        public CommitClaimedException(int index)
+        {
+            super(String.format("Another attempt of task %d committed the output", index));
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.embulk.exec;
+
+// Thrown when the connection to a worker fails while the worker runs a task.
+// The worker may have committed the output, so TaskRetryPolicy doesn't retry
+// the task.
+public class TaskResultLostException
+        extends RuntimeException
+{
+    public TaskResultLostException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,100 @@
+package org.embulk.exec;
+
+import java.util.List;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import com.google.common.collect.ImmutableList;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.ExecutionInterruptedException;
+
+public class TaskRetryPolicy
+{
+    // exceptions never retried even if a cause is retryable. Interrupted tasks are
+    // cancelled, and tasks whose results are lost may have committed the output.
+    private static final List<String> NON_RETRYABLE_EXCEPTIONS = ImmutableList.of(
+            ExecutionInterruptedException.class.getName(),
+            InterruptedException.class.getName(),
+            InterruptedIOException.class.getName(),
+            ClosedByInterruptException.class.getName(),
+            TaskResultLostException.class.getName());
+
+    private final int retryLimit;
+    private final long initialWaitMillis;
+    private final long maxWaitMillis;
+    private final List<String> retryableExceptions;
+
+    @SuppressWarnings("unchecked")
+    public TaskRetryPolicy(ConfigSource systemConfig)
+    {
+        // task_retry_limit: max number of retries of a failed task. 0 disables retrying.
+        this.retryLimit = systemConfig.get(Integer.class, "task_retry_limit", 0);
+
+        // task_retry_initial_wait_millis: wait before the first retry. It's doubled
+        // for each retry up to task_retry_max_wait_millis.
+        this.initialWaitMillis = systemConfig.get(Long.class, "task_retry_initial_wait_millis", 1000L);
+        this.maxWaitMillis = systemConfig.get(Long.class, "task_retry_max_wait_millis", 60000L);
+
+        // task_retryable_exceptions: a task is retried if the exception or one of
+        // its causes is an instance of these classes
+        this.retryableExceptions = ImmutableList.copyOf((List<String>) systemConfig.get(List.class,
+                    "task_retryable_exceptions", ImmutableList.of("java.io.IOException")));
+
+        if (retryLimit < 0 || initialWaitMillis < 0 || maxWaitMillis < 0) {
+            throw new ConfigException("task_retry_limit, task_retry_initial_wait_millis and task_retry_max_wait_millis must not be negative");
+        }
+    }
+
+    // retryCount is the number of retries done before this failure
+    public boolean isRetryable(Throwable exception, int retryCount)
+    {
+        if (retryCount >= retryLimit) {
+            return false;
+        }
+        for (Throwable ex = exception; ex != null; ex = ex.getCause()) {
+            if (isInstanceOfAny(ex, NON_RETRYABLE_EXCEPTIONS)) {
+                return false;
+            }
+        }
+        for (Throwable ex = exception; ex != null; ex = ex.getCause()) {
+            if (isInstanceOfAny(ex, retryableExceptions)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // compares class names so that exceptions of tasks run in worker processes
+    // are checked by the classes of the original exceptions
+    private static boolean isInstanceOfAny(Throwable ex, List<String> classNames)
+    {
+        for (String name : getClassNames(ex)) {
+            if (classNames.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> getClassNames(Throwable ex)
+    {
+        if (ex instanceof RemoteTaskException) {
+            return ((RemoteTaskException) ex).getClassNames();
+        }
+        ImmutableList.Builder<String> names = ImmutableList.builder();
+        for (Class<?> c = ex.getClass(); c != null; c = c.getSuperclass()) {
+            names.add(c.getName());
+        }
+        return names.build();
+    }
+
+    // exponential backoff
+    public long getWaitMillis(int retryCount)
+    {
+        long millis = initialWaitMillis;
+        for (int i=0; i < retryCount && millis < maxWaitMillis; i++) {
+            millis *= 2;
+        }
+        return Math.min(millis, maxWaitMillis);
+    }
+}
@@ -0,0 +1,44 @@
+package org.embulk.exec;
+
+import java.io.File;
+import com.google.inject.Inject;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.PageStore;
+import org.embulk.spi.PageStoreFactory;
+
+public class TempFilePageStoreFactory
+        implements PageStoreFactory
+{
+    private static final long DEFAULT_MEMORY_LIMIT = 64*1024*1024;
+
+    private final BufferAllocator allocator;
+    private final long memoryLimit;
+    private final File tempDirectory;
+
+    @Inject
+    public TempFilePageStoreFactory(@ForSystemConfig ConfigSource systemConfig, BufferAllocator allocator)
+    {
+        this.allocator = allocator;
+
+        // page_store_memory_limit: pages exceeding this size in a PageStore are spilled to temporary files
+        this.memoryLimit = systemConfig.get(Long.class, "page_store_memory_limit", DEFAULT_MEMORY_LIMIT);
+        if (memoryLimit < 0) {
+            throw new ConfigException("page_store_memory_limit must not be negative: "+memoryLimit);
+        }
+
+        // page_store_temp_dir: directory of the temporary files. Default is java.io.tmpdir
+        this.tempDirectory = new File(systemConfig.get(String.class, "page_store_temp_dir",
+                    System.getProperty("java.io.tmpdir")));
+        if (!tempDirectory.isDirectory()) {
+            throw new ConfigException("page_store_temp_dir is not a directory: "+tempDirectory);
+        }
+    }
+
+    @Override
+    public PageStore newPageStore()
+    {
+        return new PageStore(allocator, memoryLimit, tempDirectory);
+    }
+}
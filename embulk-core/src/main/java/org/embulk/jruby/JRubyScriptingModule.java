@@ -4,6 +4,7 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
 import java.io.File;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.Module;
 import com.google.inject.Binder;
@@ -20,6 +21,7 @@ import org.jruby.embed.ScriptingContainer;
 import org.embulk.plugin.PluginSource;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.ModelManager;
+import org.embulk.exec.ForSystemConfig;
 import org.embulk.spi.BufferAllocator;
 
 public class JRubyScriptingModule
@@ -28,7 +30,6 @@ public class JRubyScriptingModule
     public JRubyScriptingModule(ConfigSource systemConfig)
     {
         // TODO get jruby-home from systemConfig to call jruby.container.setHomeDirectory
-        // TODO get jruby-load-paths from systemConfig to call jruby.container.setLoadPaths
     }
 
     @Override
@@ -45,11 +46,17 @@ public class JRubyScriptingModule
             implements ProviderWithDependencies<ScriptingContainer>
     {
         private final Injector injector;
+        private final List<String> additionalLoadPaths;
 
         @Inject
-        public ScriptingContainerProvider(Injector injector)
+        @SuppressWarnings("unchecked")
+        public ScriptingContainerProvider(Injector injector, @ForSystemConfig ConfigSource systemConfig)
         {
             this.injector = injector;
+
+            // jruby_load_path: directories added to the beginning of $LOAD_PATH.
+            // ProcessorWorkerPool sets $LOAD_PATH of LocalExecutor to forked workers.
+            this.additionalLoadPaths = (List<String>) systemConfig.get(List.class, "jruby_load_path", ImmutableList.of());
         }
 
         public ScriptingContainer get()
@@ -62,7 +69,12 @@ public class JRubyScriptingModule
             // using embulk-cli but it's not set if Embulk is embedded in an application.
             // Here adds this jar's internal resources to $LOAD_PATH for those applciations.
 
-            List<String> loadPaths = new ArrayList<String>(jruby.getLoadPaths());
+            List<String> loadPaths = new ArrayList<String>(additionalLoadPaths);
+            for (String path : jruby.getLoadPaths()) {
+                if (!loadPaths.contains(path)) {
+                    loadPaths.add(path);
+                }
+            }
             String coreJarPath = JRubyScriptingModule.class.getProtectionDomain().getCodeSource().getLocation().getPath();
             if (!loadPaths.contains(coreJarPath)) {
                 loadPaths.add(coreJarPath);
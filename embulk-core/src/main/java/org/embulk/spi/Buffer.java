@@ -1,6 +1,9 @@
 package org.embulk.spi;
 
 import java.util.Arrays;
+import java.nio.ByteBuffer;
+import io.airlift.slice.Slice;
+import io.airlift.slice.Slices;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
@@ -9,6 +12,7 @@ public class Buffer
     public static final Buffer EMPTY = Buffer.allocate(0);
 
     private byte[] array;
+    private ByteBuffer direct;  // set instead of array if this buffer is backed by off-heap memory
     private int offset;
     private int filled;
     private final int capacity;
@@ -25,6 +29,23 @@ public class Buffer
         }
     }
 
+    protected Buffer(ByteBuffer wrap, int offset, int capacity)
+    {
+        if (wrap.hasArray()) {
+            this.array = wrap.array();
+            this.offset = wrap.arrayOffset() + offset;
+        } else {
+            this.direct = wrap;
+            this.offset = offset;
+        }
+        this.capacity = capacity;
+        this.filled = this.offset;
+        if (wrap.capacity() < offset + capacity) {
+            // TODO
+            throw new IllegalStateException("capacity out of bound");
+        }
+    }
+
     public static Buffer allocate(int length)
     {
         return new Buffer(new byte[length], 0, length);
@@ -50,9 +71,24 @@ public class Buffer
         return new Buffer(src, offset, size).limit(size);
     }
 
+    // returned buffer shares the memory of src from its position to its limit
+    public static Buffer wrap(ByteBuffer src)
+    {
+        ByteBuffer slice = src.slice();
+        return new Buffer(slice, 0, slice.remaining()).limit(slice.remaining());
+    }
+
+    public boolean hasArray()
+    {
+        return array != null;
+    }
+
     @SuppressFBWarnings(value = "EI_EXPOSE_REP")
     public byte[] array()
     {
+        if (array == null) {
+            throw new UnsupportedOperationException("Buffer backed by direct memory doesn't have an array. Use toByteBuffer instead");
+        }
         return array;
     }
 
@@ -87,24 +123,79 @@ public class Buffer
         return capacity;
     }
 
+    // returned ByteBuffer shares the memory with this buffer. Its position is 0 and its limit is length.
+    public ByteBuffer toByteBuffer(int index, int length)
+    {
+        if (array != null) {
+            return ByteBuffer.wrap(array, offset + index, length).slice();
+        } else {
+            ByteBuffer dup = direct.duplicate();
+            dup.limit(offset + index + length);
+            dup.position(offset + index);
+            return dup.slice();
+        }
+    }
+
+    // used by PageBuilder and PageReader
+    Slice toSlice(int length)
+    {
+        if (array != null) {
+            return Slices.wrappedBuffer(array, offset, length);
+        } else {
+            return Slices.wrappedBuffer(toByteBuffer(0, length));
+        }
+    }
+
+    public byte getByte(int index)
+    {
+        if (array != null) {
+            return array[offset + index];
+        } else {
+            return direct.get(offset + index);
+        }
+    }
+
+    public void setByte(int index, byte value)
+    {
+        if (array != null) {
+            array[offset + index] = value;
+        } else {
+            direct.put(offset + index, value);
+        }
+    }
+
     public void setBytes(int index, byte[] source, int sourceIndex, int length)
     {
-        System.arraycopy(source, sourceIndex, array, offset + index, length);
+        if (array != null) {
+            System.arraycopy(source, sourceIndex, array, offset + index, length);
+        } else {
+            toByteBuffer(index, length).put(source, sourceIndex, length);
+        }
     }
 
     public void setBytes(int index, Buffer source, int sourceIndex, int length)
     {
-        setBytes(index, source.array(), source.offset() + sourceIndex, length);
+        if (source.hasArray()) {
+            setBytes(index, source.array(), source.offset() + sourceIndex, length);
+        } else if (array != null) {
+            source.getBytes(sourceIndex, array, offset + index, length);
+        } else {
+            toByteBuffer(index, length).put(source.toByteBuffer(sourceIndex, length));
+        }
     }
 
     public void getBytes(int index, byte[] dest, int destIndex, int length)
     {
-        System.arraycopy(array, offset + index, dest, destIndex, length);
+        if (array != null) {
+            System.arraycopy(array, offset + index, dest, destIndex, length);
+        } else {
+            toByteBuffer(index, length).get(dest, destIndex, length);
+        }
     }
 
     public void getBytes(int index, Buffer dest, int destIndex, int length)
     {
-        getBytes(index, dest.array(), dest.offset() + destIndex, length);
+        dest.setBytes(destIndex, this, index, length);
     }
 
     public void release()
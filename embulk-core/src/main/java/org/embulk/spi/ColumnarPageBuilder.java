@@ -0,0 +1,285 @@
+package org.embulk.spi;
+
+import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import io.airlift.slice.Slice;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.StringType;
+
+// Builds pages in the columnar layout (see PageFormat). Values are written
+// to a buffer of the allocator laid out for maxRecordCount records: a null
+// bitmap and a vector for each column followed by variable-length data. The
+// buffer grows if variable-length data doesn't fit in it, and it's passed to
+// the output as a page when the page is flushed.
+// Pages built by this class can be read by PageReader and ColumnarPageReader.
+//
+// Built-in plugins don't use this class. It's for plugins that read many
+// values of a few columns (e.g. aggregation) with ColumnarPageReader.
+public class ColumnarPageBuilder
+        implements AutoCloseable
+{
+    public static final int DEFAULT_MAX_RECORD_COUNT = 1024;
+
+    // flushes a page if variable-length data exceeds this size even if
+    // number of records doesn't reach maxRecordCount
+    private static final int MAX_VARIABLE_LENGTH_DATA_SIZE = 1024*1024;
+
+    private final BufferAllocator allocator;
+    private final PageOutput output;
+    private final Schema schema;
+    private final int maxRecordCount;
+
+    private final int[] columnSizes;
+    private final int[] nullBitmapOffsets;
+    private final int[] columnVectorOffsets;
+    private final int maxNullBitmapSize;
+    private final byte[] nullBitmap;
+    private final int variableLengthDataBase;
+    private final StringDictionary[] stringDictionaries;
+    private int pageGeneration = 0;
+    private Buffer buffer;
+    private Slice bufferSlice;
+    private int variableLengthDataSize;
+
+    private int count;
+
+    public ColumnarPageBuilder(BufferAllocator allocator, Schema schema, PageOutput output)
+    {
+        this(allocator, schema, output, DEFAULT_MAX_RECORD_COUNT);
+    }
+
+    public ColumnarPageBuilder(BufferAllocator allocator, Schema schema, PageOutput output, int maxRecordCount)
+    {
+        this.allocator = allocator;
+        this.output = output;
+        this.schema = schema;
+        this.maxRecordCount = maxRecordCount;
+
+        this.columnSizes = new int[schema.size()];
+        this.nullBitmapOffsets = new int[schema.size()];
+        this.columnVectorOffsets = new int[schema.size()];
+        this.maxNullBitmapSize = PageFormat.nullBitmapSize(maxRecordCount);
+        this.nullBitmap = new byte[maxNullBitmapSize];
+        this.stringDictionaries = new StringDictionary[schema.size()];
+        int offset = PageFormat.columnarPageHeaderSize(schema);
+        for (int i=0; i < schema.size(); i++) {
+            if (schema.getColumnType(i) instanceof StringType) {
+                stringDictionaries[i] = new StringDictionary();
+            }
+            columnSizes[i] = schema.getColumnType(i).getFixedStorageSize();
+            nullBitmapOffsets[i] = offset;
+            columnVectorOffsets[i] = offset + maxNullBitmapSize;
+            offset = columnVectorOffsets[i] + columnSizes[i] * maxRecordCount;
+        }
+        this.variableLengthDataBase = offset;
+        newBuffer();
+    }
+
+    private void newBuffer()
+    {
+        this.pageGeneration++;
+        this.buffer = allocator.allocate(variableLengthDataBase);
+        this.bufferSlice = buffer.toSlice(buffer.capacity());
+        // pooled buffers are not zero-filled
+        Arrays.fill(nullBitmap, (byte) 0);
+        for (int i=0; i < schema.size(); i++) {
+            bufferSlice.setBytes(nullBitmapOffsets[i], nullBitmap);
+        }
+        this.count = 0;
+        this.variableLengthDataSize = 0;
+    }
+
+    public Schema getSchema()
+    {
+        return schema;
+    }
+
+    public void setNull(Column column)
+    {
+        setNull(column.getIndex());
+    }
+
+    public void setNull(int columnIndex)
+    {
+        int offset = nullBitmapOffsets[columnIndex] + (count >>> 3);
+        bufferSlice.setByte(offset, bufferSlice.getByte(offset) | (1 << (count & 7)));
+    }
+
+    public void setBoolean(Column column, boolean value)
+    {
+        // TODO check type?
+        setBoolean(column.getIndex(), value);
+    }
+
+    public void setBoolean(int columnIndex, boolean value)
+    {
+        bufferSlice.setByte(columnVectorOffsets[columnIndex] + count * columnSizes[columnIndex], value ? (byte) 1 : (byte) 0);
+    }
+
+    public void setLong(Column column, long value)
+    {
+        // TODO check type?
+        setLong(column.getIndex(), value);
+    }
+
+    public void setLong(int columnIndex, long value)
+    {
+        bufferSlice.setLong(columnVectorOffsets[columnIndex] + count * columnSizes[columnIndex], value);
+    }
+
+    public void setDouble(Column column, double value)
+    {
+        // TODO check type?
+        setDouble(column.getIndex(), value);
+    }
+
+    public void setDouble(int columnIndex, double value)
+    {
+        bufferSlice.setDouble(columnVectorOffsets[columnIndex] + count * columnSizes[columnIndex], value);
+    }
+
+    public void setString(Column column, String value)
+    {
+        // TODO check type?
+        setString(column.getIndex(), value);
+    }
+
+    public void setString(int columnIndex, String value)
+    {
+        StringDictionary dictionary = stringDictionaries[columnIndex];
+        if (dictionary == null || !dictionary.shouldLookup(value)) {
+            writeString(columnIndex, value.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        int entry = dictionary.find(value);
+        if (entry >= 0) {
+            if (dictionary.getGeneration(entry) == pageGeneration) {
+                // the same string is already written in this page
+                bufferSlice.setInt(columnVectorOffsets[columnIndex] + count * columnSizes[columnIndex], dictionary.getOffset(entry));
+                return;
+            }
+            // written in a previous page. reuse the encoded bytes
+            int offset = writeString(columnIndex, dictionary.getValue(entry));
+            dictionary.setOffset(entry, pageGeneration, offset);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int offset = writeString(columnIndex, bytes);
+            dictionary.add(entry, value, bytes, pageGeneration, offset);
+        }
+    }
+
+    private int writeString(int columnIndex, byte[] bytes)
+    {
+        int offset = reserveVariableLengthData(columnIndex, 4 + bytes.length);
+        bufferSlice.setInt(offset, bytes.length);
+        bufferSlice.setBytes(offset + 4, bytes);
+        return offset;
+    }
+
+    public void setString(Column column, Slice utf8)
+    {
+        // TODO check type?
+        setString(column.getIndex(), utf8);
+    }
+
+    // utf8 must be a valid UTF-8 byte sequence
+    public void setString(int columnIndex, Slice utf8)
+    {
+        int offset = reserveVariableLengthData(columnIndex, 4 + utf8.length());
+        bufferSlice.setInt(offset, utf8.length());
+        bufferSlice.setBytes(offset + 4, utf8, 0, utf8.length());
+    }
+
+    public void setTimestamp(Column column, Timestamp value)
+    {
+        // TODO check type?
+        setTimestamp(column.getIndex(), value);
+    }
+
+    public void setTimestamp(int columnIndex, Timestamp value)
+    {
+        setTimestamp(columnIndex, value.getEpochSecond(), value.getNano());
+    }
+
+    public void setTimestamp(Column column, long epochSecond, int nano)
+    {
+        // TODO check type?
+        setTimestamp(column.getIndex(), epochSecond, nano);
+    }
+
+    public void setTimestamp(int columnIndex, long epochSecond, int nano)
+    {
+        int offset = columnVectorOffsets[columnIndex] + count * columnSizes[columnIndex];
+        bufferSlice.setLong(offset, epochSecond);
+        bufferSlice.setInt(offset + 8, nano);
+    }
+
+    private int reserveVariableLengthData(int columnIndex, int size)
+    {
+        int offset = variableLengthDataBase + variableLengthDataSize;
+        if (buffer.capacity() < offset + size) {
+            Buffer newBuffer = allocator.allocate(Math.max(offset + size, buffer.capacity() * 2));
+            newBuffer.setBytes(0, buffer, 0, offset);
+            buffer.release();
+            buffer = newBuffer;
+            bufferSlice = buffer.toSlice(buffer.capacity());
+        }
+        variableLengthDataSize += size;
+
+        // offset from the beginning of the page
+        bufferSlice.setInt(columnVectorOffsets[columnIndex] + count * columnSizes[columnIndex], offset);
+        return offset;
+    }
+
+    public void addRecord()
+    {
+        count++;
+        if (count >= maxRecordCount || variableLengthDataSize >= MAX_VARIABLE_LENGTH_DATA_SIZE) {
+            flush();
+        }
+    }
+
+    public void flush()
+    {
+        if (count == 0) {
+            return;
+        }
+
+        // null bitmap of a column is followed by its vector. If the page is
+        // not full, the bitmap is shorter than the reserved space.
+        int nullBitmapSize = PageFormat.nullBitmapSize(count);
+        bufferSlice.setInt(0, count | PageFormat.COLUMNAR_PAGE_FLAG);
+        for (int i=0; i < schema.size(); i++) {
+            int offset = columnVectorOffsets[i] - nullBitmapSize;
+            if (nullBitmapSize < maxNullBitmapSize) {
+                bufferSlice.getBytes(nullBitmapOffsets[i], nullBitmap, 0, nullBitmapSize);
+                bufferSlice.setBytes(offset, nullBitmap, 0, nullBitmapSize);
+            }
+            bufferSlice.setInt(PageFormat.PAGE_HEADER_SIZE + 4 * i, offset);
+        }
+        buffer.limit(variableLengthDataBase + variableLengthDataSize);
+
+        Page page = Page.wrap(buffer);
+        buffer = null;
+        bufferSlice = null;
+        output.add(page);
+        newBuffer();
+    }
+
+    public void finish()
+    {
+        flush();
+        output.finish();
+    }
+
+    @Override
+    public void close()
+    {
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+            bufferSlice = null;
+        }
+    }
+}
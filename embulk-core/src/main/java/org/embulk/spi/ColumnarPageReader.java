@@ -0,0 +1,283 @@
+package org.embulk.spi;
+
+import java.nio.charset.StandardCharsets;
+import io.airlift.slice.Slice;
+import org.embulk.spi.time.Timestamp;
+
+// Reads values of a page column by column. Batch methods copy values of
+// length records starting from the row-th record into primitive arrays.
+//
+// Pages built by ColumnarPageBuilder are read by scanning contiguous column
+// vectors. Pages built by PageBuilder are also supported but the values of
+// a column are scattered in records.
+public class ColumnarPageReader
+        implements AutoCloseable
+{
+    private final Schema schema;
+    private final int[] columnOffsets;
+    private final int[] columnSizes;
+
+    private Page page = SENTINEL;
+    private Slice pageSlice = null;
+    private int pageRecordCount = 0;
+    private boolean columnar;
+
+    // columnar page
+    private final int[] nullBitmapOffsets;
+    private final int[] columnVectorOffsets;
+
+    // row page
+    private int[] recordOffsets = new int[0];
+
+    private static final Page SENTINEL = Page.wrap(Buffer.wrap(new byte[4]));  // buffer().release() does nothing
+
+    public ColumnarPageReader(Schema schema)
+    {
+        this.schema = schema;
+        this.columnOffsets = PageFormat.columnOffsets(schema);
+        this.columnSizes = new int[schema.size()];
+        for (int i=0; i < schema.size(); i++) {
+            columnSizes[i] = schema.getColumnType(i).getFixedStorageSize();
+        }
+        this.nullBitmapOffsets = new int[schema.size()];
+        this.columnVectorOffsets = new int[schema.size()];
+    }
+
+    public void setPage(Page page)
+    {
+        this.page.buffer().release();
+        this.page = SENTINEL;
+
+        Buffer pageBuffer = page.buffer();
+        Slice pageSlice = pageBuffer.toSlice(pageBuffer.limit());
+
+        int pageHeader = pageSlice.getInt(0);  // see page format
+        pageRecordCount = PageFormat.recordCount(pageHeader);
+        columnar = PageFormat.isColumnar(pageHeader);
+
+        if (columnar) {
+            int nullBitmapSize = PageFormat.nullBitmapSize(pageRecordCount);
+            for (int i=0; i < schema.size(); i++) {
+                nullBitmapOffsets[i] = pageSlice.getInt(PageFormat.PAGE_HEADER_SIZE + 4 * i);
+                columnVectorOffsets[i] = nullBitmapOffsets[i] + nullBitmapSize;
+            }
+        } else {
+            if (recordOffsets.length < pageRecordCount) {
+                recordOffsets = new int[pageRecordCount];
+            }
+            int position = PageFormat.PAGE_HEADER_SIZE;
+            for (int r=0; r < pageRecordCount; r++) {
+                recordOffsets[r] = position;
+                position += pageSlice.getInt(position);  // record size
+            }
+        }
+
+        this.page = page;
+        this.pageSlice = pageSlice;
+    }
+
+    public Schema getSchema()
+    {
+        return schema;
+    }
+
+    public int getRecordCount()
+    {
+        return pageRecordCount;
+    }
+
+    public boolean isColumnar()
+    {
+        return columnar;
+    }
+
+    public boolean isNull(Column column, int row)
+    {
+        return isNull(column.getIndex(), row);
+    }
+
+    public boolean isNull(int columnIndex, int row)
+    {
+        if (columnar) {
+            return (pageSlice.getByte(nullBitmapOffsets[columnIndex] + (row >>> 3)) & (1 << (row & 7))) != 0;
+        } else {
+            return (pageSlice.getByte(recordOffsets[row] + 4 + (columnIndex >>> 3)) & (1 << (columnIndex & 7))) != 0;
+        }
+    }
+
+    public void getNulls(Column column, int row, boolean[] dest, int destIndex, int length)
+    {
+        getNulls(column.getIndex(), row, dest, destIndex, length);
+    }
+
+    // sets dest[destIndex + i] to true if the value of (row + i)-th record is null
+    public void getNulls(int columnIndex, int row, boolean[] dest, int destIndex, int length)
+    {
+        for (int i=0; i < length; i++) {
+            dest[destIndex + i] = isNull(columnIndex, row + i);
+        }
+    }
+
+    public boolean hasNull(Column column)
+    {
+        return hasNull(column.getIndex());
+    }
+
+    // returns true if at least one value of the column is null in this page
+    public boolean hasNull(int columnIndex)
+    {
+        if (columnar) {
+            int offset = nullBitmapOffsets[columnIndex];
+            int size = PageFormat.nullBitmapSize(pageRecordCount);
+            for (int i=0; i < size; i++) {
+                if (pageSlice.getByte(offset + i) != (byte) 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (int r=0; r < pageRecordCount; r++) {
+            if (isNull(columnIndex, r)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void getBooleans(Column column, int row, boolean[] dest, int destIndex, int length)
+    {
+        getBooleans(column.getIndex(), row, dest, destIndex, length);
+    }
+
+    public void getBooleans(int columnIndex, int row, boolean[] dest, int destIndex, int length)
+    {
+        if (columnar) {
+            int offset = columnVectorOffsets[columnIndex] + row;
+            for (int i=0; i < length; i++) {
+                dest[destIndex + i] = pageSlice.getByte(offset + i) != (byte) 0;
+            }
+        } else {
+            int columnOffset = columnOffsets[columnIndex];
+            for (int i=0; i < length; i++) {
+                dest[destIndex + i] = pageSlice.getByte(recordOffsets[row + i] + columnOffset) != (byte) 0;
+            }
+        }
+    }
+
+    public void getLongs(Column column, int row, long[] dest, int destIndex, int length)
+    {
+        getLongs(column.getIndex(), row, dest, destIndex, length);
+    }
+
+    public void getLongs(int columnIndex, int row, long[] dest, int destIndex, int length)
+    {
+        if (columnar) {
+            int offset = columnVectorOffsets[columnIndex] + row * 8;
+            for (int i=0; i < length; i++) {
+                dest[destIndex + i] = pageSlice.getLong(offset + i * 8);
+            }
+        } else {
+            int columnOffset = columnOffsets[columnIndex];
+            for (int i=0; i < length; i++) {
+                dest[destIndex + i] = pageSlice.getLong(recordOffsets[row + i] + columnOffset);
+            }
+        }
+    }
+
+    public void getDoubles(Column column, int row, double[] dest, int destIndex, int length)
+    {
+        getDoubles(column.getIndex(), row, dest, destIndex, length);
+    }
+
+    public void getDoubles(int columnIndex, int row, double[] dest, int destIndex, int length)
+    {
+        if (columnar) {
+            int offset = columnVectorOffsets[columnIndex] + row * 8;
+            for (int i=0; i < length; i++) {
+                dest[destIndex + i] = pageSlice.getDouble(offset + i * 8);
+            }
+        } else {
+            int columnOffset = columnOffsets[columnIndex];
+            for (int i=0; i < length; i++) {
+                dest[destIndex + i] = pageSlice.getDouble(recordOffsets[row + i] + columnOffset);
+            }
+        }
+    }
+
+    public void getTimestamps(Column column, int row, long[] epochSeconds, int[] nanos, int destIndex, int length)
+    {
+        getTimestamps(column.getIndex(), row, epochSeconds, nanos, destIndex, length);
+    }
+
+    // nanos can be null if nano-of-second is not necessary
+    public void getTimestamps(int columnIndex, int row, long[] epochSeconds, int[] nanos, int destIndex, int length)
+    {
+        for (int i=0; i < length; i++) {
+            int offset = getOffset(columnIndex, row + i);
+            epochSeconds[destIndex + i] = pageSlice.getLong(offset);
+            if (nanos != null) {
+                nanos[destIndex + i] = pageSlice.getInt(offset + 8);
+            }
+        }
+    }
+
+    public boolean getBoolean(int columnIndex, int row)
+    {
+        return pageSlice.getByte(getOffset(columnIndex, row)) != (byte) 0;
+    }
+
+    public long getLong(int columnIndex, int row)
+    {
+        return pageSlice.getLong(getOffset(columnIndex, row));
+    }
+
+    public double getDouble(int columnIndex, int row)
+    {
+        return pageSlice.getDouble(getOffset(columnIndex, row));
+    }
+
+    public String getString(int columnIndex, int row)
+    {
+        int offset = getStringOffset(columnIndex, row);
+        return pageSlice.toString(offset + 4, pageSlice.getInt(offset), StandardCharsets.UTF_8);
+    }
+
+    // returned Slice shares memory with the page. it's available until the next setPage or close
+    public Slice getStringSlice(int columnIndex, int row)
+    {
+        int offset = getStringOffset(columnIndex, row);
+        return pageSlice.slice(offset + 4, pageSlice.getInt(offset));
+    }
+
+    public Timestamp getTimestamp(int columnIndex, int row)
+    {
+        int offset = getOffset(columnIndex, row);
+        return Timestamp.ofEpochSecond(pageSlice.getLong(offset), pageSlice.getInt(offset + 8));
+    }
+
+    private int getOffset(int columnIndex, int row)
+    {
+        if (columnar) {
+            return columnVectorOffsets[columnIndex] + row * columnSizes[columnIndex];
+        } else {
+            return recordOffsets[row] + columnOffsets[columnIndex];
+        }
+    }
+
+    private int getStringOffset(int columnIndex, int row)
+    {
+        int offset = pageSlice.getInt(getOffset(columnIndex, row));
+        if (columnar) {
+            return offset;  // offset from the beginning of the page
+        } else {
+            return recordOffsets[row] + offset;  // offset from the beginning of the record
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        page.buffer().release();
+        page = SENTINEL;
+    }
+}
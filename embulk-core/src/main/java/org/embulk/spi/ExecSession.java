@@ -27,6 +27,7 @@ public class ExecSession
     private final ModelManager modelManager;
     private final PluginManager pluginManager;
     private final BufferAllocator bufferAllocator;
+    private final PageStoreFactory pageStoreFactory;
     private final Timestamp transactionTime;
     private final DateTimeZone transactionTimeZone;
 
@@ -59,6 +60,7 @@ public class ExecSession
         this.modelManager = injector.getInstance(ModelManager.class);
         this.pluginManager = injector.getInstance(PluginManager.class);
         this.bufferAllocator = injector.getInstance(BufferAllocator.class);
+        this.pageStoreFactory = injector.getInstance(PageStoreFactory.class);
 
         this.transactionTime = task.getTransactionTime().or(Timestamp.ofEpochMilli(System.currentTimeMillis()));  // TODO get nanoseconds for default
         this.transactionTimeZone = task.getTransactionTimeZone();
@@ -101,6 +103,11 @@ public class ExecSession
         return bufferAllocator;
     }
 
+    public PageStore newPageStore()
+    {
+        return pageStoreFactory.newPageStore();
+    }
+
     public <T> T newPlugin(Class<T> iface, PluginType type)
     {
         return pluginManager.newPlugin(iface, type);
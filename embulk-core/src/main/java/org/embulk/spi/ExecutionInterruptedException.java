@@ -1,4 +1,4 @@
-package org.embulk.exec;
+package org.embulk.spi;
 
 public class ExecutionInterruptedException
         extends RuntimeException
@@ -14,6 +14,14 @@ public interface FileInputPlugin
                 int processorCount);
     }
 
+    // Optional interface of Control. File inputs may split files into byte
+    // ranges (see SplitFileInput) only if isFileSplitSupported() returns true.
+    public interface SplitControl
+            extends Control
+    {
+        public boolean isFileSplitSupported();
+    }
+
     public ConfigDiff transaction(ConfigSource config,
             FileInputPlugin.Control control);
 
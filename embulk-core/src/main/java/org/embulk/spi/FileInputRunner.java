@@ -13,7 +13,7 @@ import org.embulk.plugin.PluginType;
 import org.embulk.spi.util.Decoders;
 
 public class FileInputRunner
-        implements InputPlugin
+        implements InputPlugin, TaskCostEstimator
 {
     private final FileInputPlugin fileInputPlugin;
 
@@ -69,7 +69,7 @@ public class FileInputRunner
     }
 
     private class RunnerControl
-            implements FileInputPlugin.Control
+            implements FileInputPlugin.SplitControl
     {
         private final RunnerTask task;
         private final List<DecoderPlugin> decoderPlugins;
@@ -85,6 +85,14 @@ public class FileInputRunner
             this.nextControl = nextControl;
         }
 
+        // decoders can't start decoding in the middle of a file
+        @Override
+        public boolean isFileSplitSupported()
+        {
+            return decoderPlugins.isEmpty() && parserPlugin instanceof FileSplitSupport &&
+                ((FileSplitSupport) parserPlugin).isFileSplitSupported(task.getParserConfig());
+        }
+
         @Override
         public List<CommitReport> run(final TaskSource fileInputTaskSource, final int processorCount)
         {
@@ -114,6 +122,16 @@ public class FileInputRunner
         fileInputPlugin.cleanup(taskSource, processorCount, successCommitReports);
     }
 
+    @Override
+    public List<Long> estimateTaskCosts(TaskSource taskSource, int processorCount)
+    {
+        if (!(fileInputPlugin instanceof TaskCostEstimator)) {
+            return null;
+        }
+        final RunnerTask task = taskSource.loadTask(RunnerTask.class);
+        return ((TaskCostEstimator) fileInputPlugin).estimateTaskCosts(task.getFileInputTaskSource(), processorCount);
+    }
+
     @Override
     public CommitReport run(TaskSource taskSource, Schema schema, int processorIndex,
             PageOutput output)
@@ -13,7 +13,7 @@ import org.embulk.plugin.PluginType;
 import org.embulk.spi.util.Encoders;
 
 public class FileOutputRunner
-        implements OutputPlugin
+        implements OutputPlugin, SpeculativeExecutionSupport
 {
     private final FileOutputPlugin fileOutputPlugin;
 
@@ -119,6 +119,16 @@ public class FileOutputRunner
         fileOutputPlugin.cleanup(taskSource, processorCount, successCommitReports);
     }
 
+    @Override
+    public boolean isSpeculativeExecutionSupported(TaskSource taskSource)
+    {
+        if (!(fileOutputPlugin instanceof SpeculativeExecutionSupport)) {
+            return false;
+        }
+        final RunnerTask task = taskSource.loadTask(RunnerTask.class);
+        return ((SpeculativeExecutionSupport) fileOutputPlugin).isSpeculativeExecutionSupported(task.getFileOutputTaskSource());
+    }
+
     @Override
     public TransactionalPageOutput open(TaskSource taskSource, Schema schema, int processorIndex)
     {
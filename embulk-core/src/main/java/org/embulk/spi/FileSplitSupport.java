@@ -0,0 +1,15 @@
+package org.embulk.spi;
+
+import org.embulk.config.ConfigSource;
+
+// Optional interface of ParserPlugin. File inputs may split a large file into
+// byte ranges and read them in parallel if the parser supports it (see
+// SplitFileInput). A parser that supports it finds the first record boundary
+// of a range that doesn't start at the beginning of the file, and parses the
+// records that start in the range. The last record is read beyond the end of
+// the range. If a record can't be found at the boundary (e.g. a quoted value
+// includes a newline), the parser must fail instead of skipping records.
+public interface FileSplitSupport
+{
+    public boolean isFileSplitSupported(ConfigSource config);
+}
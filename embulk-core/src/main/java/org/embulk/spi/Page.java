@@ -1,11 +1,9 @@
 package org.embulk.spi;
 
-import java.util.List;
-
 public class Page
 {
     private final Buffer buffer;
-    private List<String> stringReferences;
+    private PageStatistics statistics;
 
     protected Page(Buffer buffer)
     {
@@ -22,24 +20,25 @@ public class Page
         return new Page(buffer);
     }
 
-    public Page setStringReferences(List<String> values)
+    public void release()
     {
-        this.stringReferences = values;
-        return this;
+        buffer.release();
     }
 
-    public String getStringReference(int index)
+    public Buffer buffer()
     {
-        return stringReferences.get(index);
+        return buffer;
     }
 
-    public void release()
+    // returns null if statistics are not recorded
+    public PageStatistics getStatistics()
     {
-        buffer.release();
+        return statistics;
     }
 
-    public Buffer buffer()
+    public Page setStatistics(PageStatistics statistics)
     {
-        return buffer;
+        this.statistics = statistics;
+        return this;
     }
 }
@@ -1,17 +1,10 @@
 package org.embulk.spi;
 
-import java.io.Serializable;
-import java.util.Map;
-import java.util.List;
 import java.util.Arrays;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Collections;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+import java.nio.charset.StandardCharsets;
 import io.airlift.slice.Slice;
-import io.airlift.slice.Slices;
 import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.StringType;
 
 public class PageBuilder
         implements AutoCloseable
@@ -21,6 +14,7 @@ public class PageBuilder
     private final Schema schema;
     private final int[] columnOffsets;
     private final int fixedRecordSize;
+    private final StringDictionary[] stringDictionaries;
 
     private Buffer buffer;
     private Slice bufferSlice;
@@ -28,11 +22,27 @@ public class PageBuilder
     private int count;
     private int position;
     private final byte[] nullBitSet;
-    private final BiMap<String, Integer> stringReferences = HashBiMap.create();
-    private int stringReferenceSize;
     private int nextVariableLengthDataOffset;
+    private int currentVariableLengthColumn = -1;
+    private int pageGeneration;
+
+    // string columns that refer to a string written by a previous record in this page
+    private final boolean[] backReferencedColumns;
+    private boolean hasBackReferences;
+
+    private final VariableLengthDataWriter variableLengthDataWriter = new VariableLengthDataWriter();
+
+    // set if collectStatistics is true
+    private PageStatistics statistics;
+    private final StatisticsCollector statisticsCollector;
 
     public PageBuilder(BufferAllocator allocator, Schema schema, PageOutput output)
+    {
+        this(allocator, schema, output, false);
+    }
+
+    // if collectStatistics is true, pages have PageStatistics (see Page.getStatistics)
+    public PageBuilder(BufferAllocator allocator, Schema schema, PageOutput output, boolean collectStatistics)
     {
         this.allocator = allocator;
         this.output = output;
@@ -41,17 +51,27 @@ public class PageBuilder
         this.nullBitSet = new byte[PageFormat.nullBitSetSize(schema)];
         this.fixedRecordSize = PageFormat.recordHeaderSize(schema) + PageFormat.totalColumnSize(schema);
         this.nextVariableLengthDataOffset = fixedRecordSize;
+        this.stringDictionaries = new StringDictionary[schema.size()];
+        for (int i=0; i < schema.size(); i++) {
+            if (schema.getColumnType(i) instanceof StringType) {
+                stringDictionaries[i] = new StringDictionary();
+            }
+        }
+        this.backReferencedColumns = new boolean[schema.size()];
+        this.statisticsCollector = collectStatistics ? new StatisticsCollector() : null;
         newBuffer();
     }
 
     private void newBuffer()
     {
+        this.pageGeneration++;
         this.buffer = allocator.allocate(PageFormat.PAGE_HEADER_SIZE + fixedRecordSize);
-        this.bufferSlice = Slices.wrappedBuffer(buffer.array(), buffer.offset(), buffer.capacity());
+        this.bufferSlice = buffer.toSlice(buffer.capacity());
+        if (statisticsCollector != null) {
+            this.statistics = new PageStatistics(schema);
+        }
         this.count = 0;
         this.position = PageFormat.PAGE_HEADER_SIZE;
-        this.stringReferences.clear();
-        this.stringReferenceSize = 0;
     }
 
     public Schema getSchema()
@@ -110,17 +130,58 @@ public class PageBuilder
 
     public void setString(int columnIndex, String value)
     {
-        Integer reuseIndex = stringReferences.get(value);
-        if (reuseIndex != null) {
-            bufferSlice.setInt(getOffset(columnIndex), reuseIndex);
+        StringDictionary dictionary = stringDictionaries[columnIndex];
+        if (dictionary == null || !dictionary.shouldLookup(value)) {
+            writeString(columnIndex, value.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        int entry = dictionary.find(value);
+        if (entry >= 0) {
+            if (dictionary.getGeneration(entry) == pageGeneration) {
+                // the same string is already written in this page
+                int offset = dictionary.getOffset(entry) - position;
+                bufferSlice.setInt(getOffset(columnIndex), offset);
+                if (offset < 0) {
+                    backReferencedColumns[columnIndex] = true;
+                    hasBackReferences = true;
+                }
+                if (columnIndex == currentVariableLengthColumn) {
+                    currentVariableLengthColumn = -1;
+                }
+                return;
+            }
+            // written in a previous page. reuse the encoded bytes
+            writeString(columnIndex, dictionary.getValue(entry));
+            dictionary.setOffset(entry, pageGeneration, position + bufferSlice.getInt(getOffset(columnIndex)));
         } else {
-            int index = stringReferences.size();
-            stringReferences.put(value, index);
-            bufferSlice.setInt(getOffset(columnIndex), index);
-            stringReferenceSize += value.length() * 2 + 4;  // assuming size of char = size of byte * 2 + length
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeString(columnIndex, bytes);
+            dictionary.add(entry, value, bytes, pageGeneration, position + bufferSlice.getInt(getOffset(columnIndex)));
         }
     }
 
+    private void writeString(int columnIndex, byte[] bytes)
+    {
+        setVariableLengthData(columnIndex)
+            .writeInt(bytes.length)
+            .writeBytes(bytes, 0, bytes.length);
+    }
+
+    public void setString(Column column, Slice utf8)
+    {
+        // TODO check type?
+        setString(column.getIndex(), utf8);
+    }
+
+    // utf8 must be a valid UTF-8 byte sequence
+    public void setString(int columnIndex, Slice utf8)
+    {
+        setVariableLengthData(columnIndex)
+            .writeInt(utf8.length())
+            .writeBytes(utf8, 0, utf8.length());
+    }
+
     public void setTimestamp(Column column, Timestamp value)
     {
         // TODO check type?
@@ -129,41 +190,25 @@ public class PageBuilder
 
     public void setTimestamp(int columnIndex, Timestamp value)
     {
-        int offset = getOffset(columnIndex);
-        bufferSlice.setLong(offset, value.getEpochSecond());
-        bufferSlice.setInt(offset + 8, value.getNano());
+        setTimestamp(columnIndex, value.getEpochSecond(), value.getNano());
     }
 
-    private int getOffset(int columnIndex)
+    public void setTimestamp(Column column, long epochSecond, int nano)
     {
-        return position + columnOffsets[columnIndex];
+        // TODO check type?
+        setTimestamp(column.getIndex(), epochSecond, nano);
     }
 
-    private static class StringReferenceSortComparator
-            implements Comparator<Map.Entry<String, Integer>>, Serializable
+    public void setTimestamp(int columnIndex, long epochSecond, int nano)
     {
-        @Override
-        public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2)
-        {
-            return e1.getValue().compareTo(e2.getValue());
-        }
-
-        @Override
-        public boolean equals(Object obj)
-        {
-            return obj instanceof StringReferenceSortComparator;
-        }
+        int offset = getOffset(columnIndex);
+        bufferSlice.setLong(offset, epochSecond);
+        bufferSlice.setInt(offset + 8, nano);
     }
 
-    private List<String> getSortedStringReferences()
+    private int getOffset(int columnIndex)
     {
-        ArrayList<Map.Entry<String, Integer>> s = new ArrayList<>(stringReferences.entrySet());
-        Collections.sort(s, new StringReferenceSortComparator());
-        String[] array = new String[s.size()];
-        for (int i=0; i < array.length; i++) {
-            array[i] = s.get(i).getKey();
-        }
-        return Arrays.asList(array);
+        return position + columnOffsets[columnIndex];
     }
 
     public void addRecord()
@@ -172,13 +217,22 @@ public class PageBuilder
         bufferSlice.setInt(position, nextVariableLengthDataOffset);  // nextVariableLengthDataOffset means record size
         bufferSlice.setBytes(position + 4, nullBitSet);
         count++;
+        if (statisticsCollector != null) {
+            statistics.addRecord();
+            schema.visitColumns(statisticsCollector);
+        }
 
         this.position += nextVariableLengthDataOffset;
         this.nextVariableLengthDataOffset = fixedRecordSize;
+        this.currentVariableLengthColumn = -1;
         Arrays.fill(nullBitSet, (byte) 0);
+        if (hasBackReferences) {
+            Arrays.fill(backReferencedColumns, false);
+            hasBackReferences = false;
+        }
 
         // flush if next record will not fit in this buffer
-        if (buffer.capacity() < position + nextVariableLengthDataOffset + stringReferenceSize) {
+        if (buffer.capacity() < position + nextVariableLengthDataOffset) {
             flush();
         }
     }
@@ -186,12 +240,17 @@ public class PageBuilder
     private void doFlush()
     {
         if (buffer != null && count > 0) {
+            if (Thread.interrupted()) {
+                // the task is cancelled
+                throw new ExecutionInterruptedException(new InterruptedException());
+            }
+
             // write page header
             bufferSlice.setInt(0, count);
             buffer.limit(position);
 
             // flush page
-            Page page = Page.wrap(buffer).setStringReferences(getSortedStringReferences());
+            Page page = Page.wrap(buffer).setStatistics(statistics);
             buffer = null;
             bufferSlice = null;
             output.add(page);
@@ -222,21 +281,90 @@ public class PageBuilder
         }
     }
 
-    /* TODO for variable-length types
-    private void flushAndTakeOverRemaingData()
+    private void flushAndTakeOverRemaingData(int requiredSizeFromPosition)
     {
-        if (page != null) {
+        if (Thread.interrupted()) {
+            // the task is cancelled
+            throw new ExecutionInterruptedException(new InterruptedException());
+        }
+
+        // moves the record being built to a new buffer. offsets of variable-length
+        // data are relative to the beginning of the record so that they don't change.
+        Buffer lastBuffer = buffer;
+        Slice lastBufferSlice = bufferSlice;
+        int lastPosition = position;
+        int lastCount = count;
+        PageStatistics lastStatistics = statistics;
+
+        // strings referred by back references are copied to the new buffer
+        int backReferencedDataSize = 0;
+        if (hasBackReferences) {
+            for (int i=0; i < backReferencedColumns.length; i++) {
+                if (backReferencedColumns[i]) {
+                    int offset = lastPosition + lastBufferSlice.getInt(lastPosition + columnOffsets[i]);
+                    backReferencedDataSize += 4 + lastBufferSlice.getInt(offset);
+                }
+            }
+        }
+
+        this.buffer = allocator.allocate(PageFormat.PAGE_HEADER_SIZE + Math.max(fixedRecordSize, requiredSizeFromPosition + backReferencedDataSize));
+        this.bufferSlice = buffer.toSlice(buffer.capacity());
+        this.count = 0;
+        this.position = PageFormat.PAGE_HEADER_SIZE;
+        this.pageGeneration++;
+        if (statisticsCollector != null) {
+            this.statistics = new PageStatistics(schema);
+        }
+        buffer.setBytes(position, lastBuffer, lastPosition, nextVariableLengthDataOffset);
+        if (hasBackReferences) {
+            copyBackReferencedData(lastBufferSlice, lastPosition);
+        }
+
+        if (lastCount > 0) {
             // page header
-            page.setInt(0, count);
+            lastBufferSlice.setInt(0, lastCount);
+            lastBuffer.limit(lastPosition);
+            output.add(Page.wrap(lastBuffer).setStatistics(lastStatistics));
+        } else {
+            // the buffer was too small for the first record
+            lastBuffer.release();
+        }
+    }
 
-            Page lastPage = page;
+    private void copyBackReferencedData(Slice lastBufferSlice, int lastPosition)
+    {
+        // the column being written by VariableLengthDataWriter must stay at the
+        // end of the record. copies strings before it and moves it after them.
+        int writingDataOffset = nextVariableLengthDataOffset;
+        if (currentVariableLengthColumn >= 0) {
+            writingDataOffset = bufferSlice.getInt(getOffset(currentVariableLengthColumn));
+        }
+        int writingDataSize = nextVariableLengthDataOffset - writingDataOffset;
+
+        int offset = writingDataOffset;
+        for (int i=0; i < backReferencedColumns.length; i++) {
+            if (backReferencedColumns[i]) {
+                int src = lastPosition + lastBufferSlice.getInt(lastPosition + columnOffsets[i]);
+                int size = 4 + lastBufferSlice.getInt(src);
+                bufferSlice.setBytes(position + offset, lastBufferSlice, src, size);
+                bufferSlice.setInt(getOffset(i), offset);
+                offset += size;
+                backReferencedColumns[i] = false;
+            }
+        }
+        hasBackReferences = false;
 
-            this.page = allocator.allocatePage(Page.PAGE_HEADER_SIZE + fixedRecordSize + nextVariableLengthDataOffset);
-            page.setBytes(Page.PAGE_HEADER_SIZE, lastPage, position, nextVariableLengthDataOffset);
-            this.count = 0;
-            this.position = Page.PAGE_HEADER_SIZE;
+        if (currentVariableLengthColumn >= 0) {
+            bufferSlice.setBytes(position + offset, lastBufferSlice, lastPosition + writingDataOffset, writingDataSize);
+            bufferSlice.setInt(getOffset(currentVariableLengthColumn), offset);
+        }
+        nextVariableLengthDataOffset = offset + writingDataSize;
+    }
 
-            output.add(lastPage);
+    private void ensureVariableLengthDataCapacity(int requiredSizeFromPosition)
+    {
+        if (buffer.capacity() < position + requiredSizeFromPosition) {
+            flushAndTakeOverRemaingData(requiredSizeFromPosition);
         }
     }
 
@@ -245,83 +373,151 @@ public class PageBuilder
         return nextVariableLengthDataOffset;
     }
 
-    public VariableLengthDataWriter setVariableLengthData(int columnIndex, int intData)
+    public VariableLengthDataWriter setVariableLengthData(Column column)
+    {
+        return setVariableLengthData(column.getIndex());
+    }
+
+    public VariableLengthDataWriter setVariableLengthData(int columnIndex)
     {
         // Page.VARIABLE_LENGTH_COLUMN_SIZE is 4 bytes
-        page.setInt(position + columnOffsets[columnIndex], intData);
-        return new VariableLengthDataWriter(nextVariableLengthDataOffset);
+        bufferSlice.setInt(getOffset(columnIndex), nextVariableLengthDataOffset);
+        currentVariableLengthColumn = columnIndex;
+        if (backReferencedColumns[columnIndex]) {
+            backReferencedColumns[columnIndex] = false;
+        }
+        return variableLengthDataWriter;
     }
 
-    Page ensureVariableLengthDataCapacity(int requiredOffsetFromPosition)
+    // Reads values of the current record and adds them to the statistics
+    private class StatisticsCollector
+            implements SchemaVisitor
     {
-        if (page.capacity() < position + requiredOffsetFromPosition) {
-            flushAndTakeOverRemaingData();
+        private boolean isNull(int columnIndex)
+        {
+            if ((nullBitSet[columnIndex >>> 3] & (1 << (columnIndex & 7))) != 0) {
+                statistics.addNull(columnIndex);
+                return true;
+            }
+            return false;
+        }
+
+        public void booleanColumn(Column column)
+        {
+            int i = column.getIndex();
+            if (!isNull(i)) {
+                statistics.addLong(i, bufferSlice.getByte(getOffset(i)) != (byte) 0 ? 1L : 0L);
+            }
+        }
+
+        public void longColumn(Column column)
+        {
+            int i = column.getIndex();
+            if (!isNull(i)) {
+                statistics.addLong(i, bufferSlice.getLong(getOffset(i)));
+            }
+        }
+
+        public void doubleColumn(Column column)
+        {
+            int i = column.getIndex();
+            if (!isNull(i)) {
+                statistics.addDouble(i, bufferSlice.getDouble(getOffset(i)));
+            }
+        }
+
+        public void stringColumn(Column column)
+        {
+            int i = column.getIndex();
+            if (!isNull(i)) {
+                int offset = position + bufferSlice.getInt(getOffset(i));
+                statistics.addString(i, bufferSlice.slice(offset + 4, bufferSlice.getInt(offset)));
+            }
+        }
+
+        public void timestampColumn(Column column)
+        {
+            int i = column.getIndex();
+            if (!isNull(i)) {
+                int offset = getOffset(i);
+                statistics.addTimestamp(i, bufferSlice.getLong(offset), bufferSlice.getInt(offset + 8));
+            }
         }
-        return page;
     }
 
+    // Appends data to the variable-length data area of the current record.
+    // Only the last column set by setVariableLengthData can be written.
     public class VariableLengthDataWriter
     {
-        private int offsetFromPosition;
+        VariableLengthDataWriter() { }
 
-        VariableLengthDataWriter(int offsetFromPosition)
+        public VariableLengthDataWriter writeByte(byte value)
         {
-            this.offsetFromPosition = offsetFromPosition;
+            ensureVariableLengthDataCapacity(nextVariableLengthDataOffset + 1);
+            bufferSlice.setByte(position + nextVariableLengthDataOffset, value);
+            nextVariableLengthDataOffset += 1;
+            return this;
         }
 
-        public void writeByte(byte value)
+        public VariableLengthDataWriter writeShort(short value)
         {
-            ensureVariableLengthDataCapacity(offsetFromPosition + 1);
-            page.setByte(position + offsetFromPosition, value);
-            offsetFromPosition += 1;
+            ensureVariableLengthDataCapacity(nextVariableLengthDataOffset + 2);
+            bufferSlice.setShort(position + nextVariableLengthDataOffset, value);
+            nextVariableLengthDataOffset += 2;
+            return this;
         }
 
-        public void writeShort(short value)
+        public VariableLengthDataWriter writeInt(int value)
         {
-            ensureVariableLengthDataCapacity(offsetFromPosition + 2);
-            page.setShort(position + offsetFromPosition, value);
-            offsetFromPosition += 2;
+            ensureVariableLengthDataCapacity(nextVariableLengthDataOffset + 4);
+            bufferSlice.setInt(position + nextVariableLengthDataOffset, value);
+            nextVariableLengthDataOffset += 4;
+            return this;
         }
 
-        public void writeInt(int value)
+        public VariableLengthDataWriter writeLong(long value)
         {
-            ensureVariableLengthDataCapacity(offsetFromPosition + 4);
-            page.setInt(position + offsetFromPosition, value);
-            offsetFromPosition += 4;
+            ensureVariableLengthDataCapacity(nextVariableLengthDataOffset + 8);
+            bufferSlice.setLong(position + nextVariableLengthDataOffset, value);
+            nextVariableLengthDataOffset += 8;
+            return this;
         }
 
-        public void writeLong(long value)
+        public VariableLengthDataWriter writeFloat(float value)
         {
-            ensureVariableLengthDataCapacity(offsetFromPosition + 8);
-            page.setLong(position + offsetFromPosition, value);
-            offsetFromPosition += 8;
+            ensureVariableLengthDataCapacity(nextVariableLengthDataOffset + 4);
+            bufferSlice.setFloat(position + nextVariableLengthDataOffset, value);
+            nextVariableLengthDataOffset += 4;
+            return this;
         }
 
-        public void writeFloat(float value)
+        public VariableLengthDataWriter writeDouble(double value)
         {
-            ensureVariableLengthDataCapacity(offsetFromPosition + 4);
-            page.setFloat(position + offsetFromPosition, value);
-            offsetFromPosition += 4;
+            ensureVariableLengthDataCapacity(nextVariableLengthDataOffset + 8);
+            bufferSlice.setDouble(position + nextVariableLengthDataOffset, value);
+            nextVariableLengthDataOffset += 8;
+            return this;
         }
 
-        public void writeDouble(double value)
+        public VariableLengthDataWriter writeBytes(byte[] data)
         {
-            ensureVariableLengthDataCapacity(offsetFromPosition + 8);
-            page.setDouble(position + offsetFromPosition, value);
-            offsetFromPosition += 8;
+            return writeBytes(data, 0, data.length);
         }
 
-        public void writeBytes(byte[] data)
+        public VariableLengthDataWriter writeBytes(byte[] data, int off, int len)
         {
-            writeBytes(data, 0, data.length);
+            ensureVariableLengthDataCapacity(nextVariableLengthDataOffset + len);
+            bufferSlice.setBytes(position + nextVariableLengthDataOffset, data, off, len);
+            nextVariableLengthDataOffset += len;
+            return this;
         }
 
-        public void writeBytes(byte[] data, int off, int len)
+        public VariableLengthDataWriter writeBytes(Slice data, int off, int len)
         {
-            ensureVariableLengthDataCapacity(offsetFromPosition + len);
-            page.setBytes(position + offsetFromPosition, data, off, len);
-            offsetFromPosition += len;
+            ensureVariableLengthDataCapacity(nextVariableLengthDataOffset + len);
+            bufferSlice.setBytes(position + nextVariableLengthDataOffset, data, off, len);
+            nextVariableLengthDataOffset += len;
+            return this;
         }
     }
-    */
 }
@@ -8,10 +8,67 @@ abstract class PageFormat
     // +---+
     // count (number of records)
 
+    // Record
+    // +---+--------------+-------------------+----------------------+
+    // | 4 | null bit set | fixed-size column | variable-length data |
+    // +---+--------------+-------------------+----------------------+
+    // record size (including variable-length data)
+    //
+    // A string column stores the offset of its variable-length data from the
+    // beginning of the record. The variable-length data of a string is an
+    // UTF-8 byte sequence prefixed by its length:
+    // +---+---------------+
+    // | 4 | UTF-8 bytes   |
+    // +---+---------------+
+    //
+    // The offset is negative if the string is a back-reference to the same
+    // string written by an earlier record of the page (see StringDictionary).
+    // Thus a record is not self-contained: its bytes can't be copied to
+    // another page as they are. Records must be copied through PageReader
+    // (e.g. RecordCopier). Whole pages can be copied as they are.
+
+    // Columnar page (written by ColumnarPageBuilder)
+    // +---+---------------------+----------+-----+----------+----------------------+
+    // | 4 | 4 * number of cols  | vector 0 | ... | vector N | variable-length data |
+    // +---+---------------------+----------+-----+----------+----------------------+
+    // count | COLUMNAR_PAGE_FLAG, offsets of column vectors from the beginning of the page
+    //
+    // Column vector
+    // +-------------+-------------------------------+
+    // | null bitmap | fixed-size column * count     |
+    // +-------------+-------------------------------+
+    // (count + 7) / 8 bytes. bit i is set if the value of i-th record is null.
+    // Vectors may be followed by unused bytes; readers use the offsets in the header.
+    //
+    // A string column of a columnar page stores the offset of its variable-length
+    // data from the beginning of the page.
+
     private PageFormat() { }
 
     static final int PAGE_HEADER_SIZE = 4;
 
+    static final int COLUMNAR_PAGE_FLAG = 0x80000000;
+
+    static boolean isColumnar(int pageHeader)
+    {
+        return (pageHeader & COLUMNAR_PAGE_FLAG) != 0;
+    }
+
+    static int recordCount(int pageHeader)
+    {
+        return pageHeader & ~COLUMNAR_PAGE_FLAG;
+    }
+
+    static int columnarPageHeaderSize(Schema schema)
+    {
+        return PAGE_HEADER_SIZE + 4 * schema.size();
+    }
+
+    static int nullBitmapSize(int recordCount)
+    {
+        return (recordCount + 7) / 8;
+    }
+
     // PageBuilder.setVariableLengthData and PageReader.readVariableLengthData
     // uses 4 bytes integer
     static final int VARIABLE_LENGTH_COLUMN_SIZE = 4;
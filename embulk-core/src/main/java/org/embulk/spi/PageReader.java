@@ -1,8 +1,7 @@
 package org.embulk.spi;
 
-import java.util.Iterator;
+import java.nio.charset.StandardCharsets;
 import io.airlift.slice.Slice;
-import io.airlift.slice.Slices;
 import org.embulk.spi.time.Timestamp;
 
 public class PageReader
@@ -10,6 +9,7 @@ public class PageReader
 {
     private final Schema schema;
     private final int[] columnOffsets;
+    private final int[] columnSizes;
 
     private Page page = SENTINEL;
     private Slice pageSlice = null;
@@ -18,6 +18,14 @@ public class PageReader
     private int readCount = 0;
     private int position;
     private final byte[] nullBitSet;
+    private int variableLengthDataBase;
+
+    // set if the current page is a columnar page
+    private boolean columnar;
+    private final int[] nullBitmapOffsets;
+    private final int[] columnVectorOffsets;
+
+    private final VariableLengthDataReader variableLengthDataReader = new VariableLengthDataReader();
 
     private static final Page SENTINEL = Page.wrap(Buffer.wrap(new byte[4]));  // buffer().release() does nothing
 
@@ -26,13 +34,26 @@ public class PageReader
         this.schema = schema;
         this.columnOffsets = PageFormat.columnOffsets(schema);
         this.nullBitSet = new byte[PageFormat.nullBitSetSize(schema)];
+        this.columnSizes = new int[schema.size()];
+        for (int i=0; i < schema.size(); i++) {
+            columnSizes[i] = schema.getColumnType(i).getFixedStorageSize();
+        }
+        this.nullBitmapOffsets = new int[schema.size()];
+        this.columnVectorOffsets = new int[schema.size()];
     }
 
     public static int getRecordCount(Page page)
     {
         Buffer pageBuffer = page.buffer();
-        Slice pageSlice = Slices.wrappedBuffer(pageBuffer.array(), pageBuffer.offset(), pageBuffer.limit());
-        return pageSlice.getInt(0);  // see page format
+        Slice pageSlice = pageBuffer.toSlice(pageBuffer.limit());
+        return PageFormat.recordCount(pageSlice.getInt(0));  // see page format
+    }
+
+    public static boolean isColumnar(Page page)
+    {
+        Buffer pageBuffer = page.buffer();
+        Slice pageSlice = pageBuffer.toSlice(pageBuffer.limit());
+        return PageFormat.isColumnar(pageSlice.getInt(0));
     }
 
     public void setPage(Page page)
@@ -41,12 +62,24 @@ public class PageReader
         this.page = SENTINEL;
 
         Buffer pageBuffer = page.buffer();
-        Slice pageSlice = Slices.wrappedBuffer(pageBuffer.array(), pageBuffer.offset(), pageBuffer.limit());
+        Slice pageSlice = pageBuffer.toSlice(pageBuffer.limit());
 
-        pageRecordCount = pageSlice.getInt(0);  // see page format
+        int pageHeader = pageSlice.getInt(0);  // see page format
+        pageRecordCount = PageFormat.recordCount(pageHeader);
         readCount = 0;
         position = PageFormat.PAGE_HEADER_SIZE;
 
+        // columnar pages are read through the same row API
+        columnar = PageFormat.isColumnar(pageHeader);
+        if (columnar) {
+            int nullBitmapSize = PageFormat.nullBitmapSize(pageRecordCount);
+            for (int i=0; i < schema.size(); i++) {
+                nullBitmapOffsets[i] = pageSlice.getInt(PageFormat.PAGE_HEADER_SIZE + 4 * i);
+                columnVectorOffsets[i] = nullBitmapOffsets[i] + nullBitmapSize;
+            }
+            variableLengthDataBase = 0;
+        }
+
         this.page = page;
         this.pageSlice = pageSlice;
     }
@@ -63,6 +96,10 @@ public class PageReader
 
     public boolean isNull(int columnIndex)
     {
+        if (columnar) {
+            int row = readCount - 1;
+            return (pageSlice.getByte(nullBitmapOffsets[columnIndex] + (row >>> 3)) & (1 << (row & 7))) != 0;
+        }
         return (nullBitSet[columnIndex >>> 3] & (1 << (columnIndex & 7))) != 0;
     }
 
@@ -107,8 +144,49 @@ public class PageReader
 
     public String getString(int columnIndex)
     {
-        int index = pageSlice.getInt(getOffset(columnIndex));
-        return page.getStringReference(index);
+        int offset = getStringOffset(columnIndex);
+        return pageSlice.toString(offset + 4, pageSlice.getInt(offset), StandardCharsets.UTF_8);
+    }
+
+    public int getStringByteLength(Column column)
+    {
+        return getStringByteLength(column.getIndex());
+    }
+
+    public int getStringByteLength(int columnIndex)
+    {
+        return pageSlice.getInt(getStringOffset(columnIndex));
+    }
+
+    public Slice getStringSlice(Column column)
+    {
+        return getStringSlice(column.getIndex());
+    }
+
+    // returned Slice shares memory with the page. it's available until the next setPage or close
+    public Slice getStringSlice(int columnIndex)
+    {
+        int offset = getStringOffset(columnIndex);
+        return pageSlice.slice(offset + 4, pageSlice.getInt(offset));
+    }
+
+    public int getStringBytes(Column column, byte[] dest, int destIndex)
+    {
+        return getStringBytes(column.getIndex(), dest, destIndex);
+    }
+
+    // copies UTF-8 bytes of the string to dest and returns number of the copied bytes
+    public int getStringBytes(int columnIndex, byte[] dest, int destIndex)
+    {
+        int offset = getStringOffset(columnIndex);
+        int length = pageSlice.getInt(offset);
+        pageSlice.getBytes(offset + 4, dest, destIndex, length);
+        return length;
+    }
+
+    private int getStringOffset(int columnIndex)
+    {
+        return variableLengthDataBase + pageSlice.getInt(getOffset(columnIndex));
     }
 
     public Timestamp getTimestamp(Column column)
@@ -125,8 +203,35 @@ public class PageReader
         return Timestamp.ofEpochSecond(sec, nsec);
     }
 
+    public long getTimestampEpochSecond(Column column)
+    {
+        // TODO check type?
+        return getTimestampEpochSecond(column.getIndex());
+    }
+
+    // same as getTimestamp(columnIndex).getEpochSecond() without allocating a Timestamp
+    public long getTimestampEpochSecond(int columnIndex)
+    {
+        return pageSlice.getLong(getOffset(columnIndex));
+    }
+
+    public int getTimestampNano(Column column)
+    {
+        // TODO check type?
+        return getTimestampNano(column.getIndex());
+    }
+
+    // same as getTimestamp(columnIndex).getNano() without allocating a Timestamp
+    public int getTimestampNano(int columnIndex)
+    {
+        return pageSlice.getInt(getOffset(columnIndex) + 8);
+    }
+
     private int getOffset(int columnIndex)
     {
+        if (columnar) {
+            return columnVectorOffsets[columnIndex] + (readCount - 1) * columnSizes[columnIndex];
+        }
         return position + columnOffsets[columnIndex];
     }
 
@@ -136,6 +241,11 @@ public class PageReader
             return false;
         }
 
+        if (columnar) {
+            readCount++;
+            return true;
+        }
+
         if (readCount > 0) {
             // advance position excepting the first record
             int lastRecordSize = pageSlice.getInt(position);
@@ -144,10 +254,28 @@ public class PageReader
 
         readCount++;
         pageSlice.getBytes(position + 4, nullBitSet, 0, nullBitSet.length);
+        variableLengthDataBase = position;
 
         return true;
     }
 
+    // opaque position of the current record in the page. setRecordPosition
+    // moves back to the record. nextRecord continues from there.
+    public long getRecordPosition()
+    {
+        return ((long) (readCount - 1) << 32) | (columnar ? 0 : position);
+    }
+
+    public void setRecordPosition(long recordPosition)
+    {
+        readCount = (int) (recordPosition >>> 32) + 1;
+        if (!columnar) {
+            position = (int) recordPosition;
+            pageSlice.getBytes(position + 4, nullBitSet, 0, nullBitSet.length);
+            variableLengthDataBase = position;
+        }
+    }
+
     @Override
     public void close()
     {
@@ -155,60 +283,64 @@ public class PageReader
         page = SENTINEL;
     }
 
-    /* TODO for variable-length types
-    public VariableLengthDataReader getVariableLengthData(int columnIndex, int variableLengthDataOffset)
+    public VariableLengthDataReader getVariableLengthData(Column column)
     {
-        return new VariableLengthDataReader(variableLengthDataOffset);
+        return getVariableLengthData(column.getIndex());
     }
 
+    public VariableLengthDataReader getVariableLengthData(int columnIndex)
+    {
+        variableLengthDataReader.offset = variableLengthDataBase + pageSlice.getInt(getOffset(columnIndex));
+        return variableLengthDataReader;
+    }
+
+    // Reads variable-length data of a column set by PageBuilder.setVariableLengthData.
+    // The returned reader is reused by the next call of getVariableLengthData.
     public class VariableLengthDataReader
     {
-        private int offsetFromPosition;
+        private int offset;
 
-        VariableLengthDataReader(int offsetFromPosition)
-        {
-            this.offsetFromPosition = offsetFromPosition;
-        }
+        VariableLengthDataReader() { }
 
         public byte readByte()
         {
-            byte value = page.getByte(position + offsetFromPosition);
-            offsetFromPosition += 1;
+            byte value = pageSlice.getByte(offset);
+            offset += 1;
             return value;
         }
 
         public short readShort()
         {
-            short value = page.getShort(position + offsetFromPosition);
-            offsetFromPosition += 2;
+            short value = pageSlice.getShort(offset);
+            offset += 2;
             return value;
         }
 
         public int readInt()
         {
-            int value = page.getInt(position + offsetFromPosition);
-            offsetFromPosition += 4;
+            int value = pageSlice.getInt(offset);
+            offset += 4;
             return value;
         }
 
         public long readLong()
         {
-            long value = page.getLong(position + offsetFromPosition);
-            offsetFromPosition += 8;
+            long value = pageSlice.getLong(offset);
+            offset += 8;
             return value;
         }
 
         public float readFloat()
         {
-            float value = page.getFloat(position + offsetFromPosition);
-            offsetFromPosition += 4;
+            float value = pageSlice.getFloat(offset);
+            offset += 4;
             return value;
         }
 
         public double readDouble()
         {
-            double value = page.getDouble(position + offsetFromPosition);
-            offsetFromPosition += 8;
+            double value = pageSlice.getDouble(offset);
+            offset += 8;
             return value;
         }
 
@@ -219,9 +351,8 @@ public class PageReader
 
         public void readBytes(byte[] data, int off, int len)
         {
-            page.getBytes(position + offsetFromPosition, data, off, len);
-            offsetFromPosition += len;
+            pageSlice.getBytes(offset, data, off, len);
+            offset += len;
         }
     }
-    */
 }
@@ -0,0 +1,304 @@
+package org.embulk.spi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import com.google.common.collect.ImmutableList;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+
+// Binary stream format of pages:
+//
+// stream:
+// +--------+---------+-------+--------+---------+---------+-----+-----------+
+// | "EMBP" | version | flags | schema | frame 1 | frame 2 | ... | int -1    |
+// +--------+---------+-------+--------+---------+---------+-----+-----------+
+//
+// schema:
+// +-----------+--------------------------------------------------+-----+
+// | int count | int name length | UTF-8 name | int type length | type | ...
+// +-----------+--------------------------------------------------+-----+
+//
+// frame:
+// +------------+---------------------------------+------------+
+// | int length | int CRC32 (if FLAG_CHECKSUM)    | page bytes |
+// +------------+---------------------------------+------------+
+//
+// Integers are little-endian. Page bytes are copied as is (see PageFormat)
+// including strings and references to strings.
+//
+// Page statistics are not serialized. Pages returned by Reader don't have
+// statistics. PageStore keeps statistics of spilled pages in memory instead,
+// and PageSorter builds new pages without statistics.
+public class PageSerde
+{
+    public static final int VERSION = 1;
+    public static final int FLAG_CHECKSUM = 1;
+
+    private static final byte[] MAGIC = new byte[] { 'E', 'M', 'B', 'P' };
+    private static final int END_OF_STREAM = -1;
+
+    private static final Type[] TYPES = new Type[] {
+        Types.BOOLEAN, Types.LONG, Types.DOUBLE, Types.STRING, Types.TIMESTAMP
+    };
+
+    private PageSerde() { }
+
+    public static class Writer
+            implements AutoCloseable
+    {
+        private final WritableByteChannel channel;
+        private final boolean checksum;
+        private final ByteBuffer frameHeader = newByteBuffer(8);
+        private final Checksum crc = new Checksum();
+        private boolean finished;
+
+        public Writer(WritableByteChannel channel, Schema schema, boolean checksum)
+                throws IOException
+        {
+            this.channel = channel;
+            this.checksum = checksum;
+
+            byte[][] names = new byte[schema.size()][];
+            byte[][] types = new byte[schema.size()][];
+            int size = MAGIC.length + 12;
+            for (int i=0; i < schema.size(); i++) {
+                names[i] = schema.getColumnName(i).getBytes(StandardCharsets.UTF_8);
+                types[i] = schema.getColumnType(i).getName().getBytes(StandardCharsets.UTF_8);
+                size += 8 + names[i].length + types[i].length;
+            }
+
+            ByteBuffer header = newByteBuffer(size);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(checksum ? FLAG_CHECKSUM : 0);
+            header.putInt(schema.size());
+            for (int i=0; i < schema.size(); i++) {
+                header.putInt(names[i].length);
+                header.put(names[i]);
+                header.putInt(types[i].length);
+                header.put(types[i]);
+            }
+            header.flip();
+            writeFully(header);
+        }
+
+        // the page is not released
+        public void write(Page page)
+                throws IOException
+        {
+            Buffer buffer = page.buffer();
+            int length = buffer.limit();
+
+            frameHeader.clear();
+            frameHeader.putInt(length);
+            if (checksum) {
+                frameHeader.putInt(crc.compute(buffer, length));
+            }
+            frameHeader.flip();
+
+            // the page buffer is written without copying
+            ByteBuffer body = buffer.toByteBuffer(0, length);
+            if (channel instanceof GatheringByteChannel) {
+                ByteBuffer[] buffers = new ByteBuffer[] { frameHeader, body };
+                while (body.hasRemaining()) {
+                    ((GatheringByteChannel) channel).write(buffers);
+                }
+            } else {
+                writeFully(frameHeader);
+                writeFully(body);
+            }
+        }
+
+        // writes the end-of-stream marker
+        public void finish()
+                throws IOException
+        {
+            if (!finished) {
+                frameHeader.clear();
+                frameHeader.putInt(END_OF_STREAM);
+                frameHeader.flip();
+                writeFully(frameHeader);
+                finished = true;
+            }
+        }
+
+        private void writeFully(ByteBuffer src)
+                throws IOException
+        {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    public static class Reader
+            implements AutoCloseable
+    {
+        private final ReadableByteChannel channel;
+        private final BufferAllocator allocator;
+        private final Schema schema;
+        private final boolean checksum;
+        private final ByteBuffer frameHeader = newByteBuffer(8);
+        private final Checksum crc = new Checksum();
+        private boolean finished;
+
+        // pages are read into buffers allocated by the allocator so that they are
+        // released to the allocator by Page.release()
+        public Reader(ReadableByteChannel channel, BufferAllocator allocator)
+                throws IOException
+        {
+            this.channel = channel;
+            this.allocator = allocator;
+
+            ByteBuffer header = readFully(newByteBuffer(MAGIC.length + 12));
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            for (int i=0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException("Invalid page stream header");
+                }
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported page stream version %d", version));
+            }
+            this.checksum = (header.getInt() & FLAG_CHECKSUM) != 0;
+
+            int count = header.getInt();
+            ImmutableList.Builder<Column> columns = ImmutableList.builder();
+            for (int i=0; i < count; i++) {
+                String name = readString();
+                columns.add(new Column(i, name, typeOf(readString())));
+            }
+            this.schema = new Schema(columns.build());
+        }
+
+        public Schema getSchema()
+        {
+            return schema;
+        }
+
+        // returns null at the end of the stream. Caller owns the returned page
+        public Page read()
+                throws IOException
+        {
+            if (finished) {
+                return null;
+            }
+            frameHeader.clear();
+            frameHeader.limit(4);
+            readFully(frameHeader);
+            int length = frameHeader.getInt();
+            if (length == END_OF_STREAM) {
+                finished = true;
+                return null;
+            }
+            if (length < 0) {
+                throw new IOException(String.format("Invalid page length %d", length));
+            }
+            int expectedChecksum = 0;
+            if (checksum) {
+                frameHeader.clear();
+                frameHeader.limit(4);
+                expectedChecksum = readFully(frameHeader).getInt();
+            }
+
+            Buffer buffer = allocator.allocate(length);
+            try {
+                readFully(buffer.toByteBuffer(0, length));
+            } catch (IOException | RuntimeException ex) {
+                buffer.release();
+                throw ex;
+            }
+            buffer.limit(length);
+
+            if (checksum && crc.compute(buffer, length) != expectedChecksum) {
+                buffer.release();
+                throw new IOException("Page checksum mismatch");
+            }
+            return Page.wrap(buffer);
+        }
+
+        private String readString()
+                throws IOException
+        {
+            ByteBuffer length = readFully(newByteBuffer(4));
+            ByteBuffer bytes = readFully(newByteBuffer(length.getInt()));
+            return new String(bytes.array(), 0, bytes.limit(), StandardCharsets.UTF_8);
+        }
+
+        private ByteBuffer readFully(ByteBuffer dst)
+                throws IOException
+        {
+            while (dst.hasRemaining()) {
+                if (channel.read(dst) < 0) {
+                    throw new EOFException("Unexpected end of page stream");
+                }
+            }
+            dst.flip();
+            return dst;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    private static class Checksum
+    {
+        private final CRC32 crc = new CRC32();
+        private byte[] copyBuffer;
+
+        public int compute(Buffer buffer, int length)
+        {
+            crc.reset();
+            if (buffer.hasArray()) {
+                crc.update(buffer.array(), buffer.offset(), length);
+            } else {
+                // CRC32 of java 7 doesn't support ByteBuffer
+                if (copyBuffer == null) {
+                    copyBuffer = new byte[8192];
+                }
+                for (int i=0; i < length; i += copyBuffer.length) {
+                    int n = Math.min(copyBuffer.length, length - i);
+                    buffer.getBytes(i, copyBuffer, 0, n);
+                    crc.update(copyBuffer, 0, n);
+                }
+            }
+            return (int) crc.getValue();
+        }
+    }
+
+    private static ByteBuffer newByteBuffer(int size)
+    {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static Type typeOf(String name)
+            throws IOException
+    {
+        for (Type type : TYPES) {
+            if (type.getName().equals(name)) {
+                return type;
+            }
+        }
+        throw new IOException(String.format("Unknown type name '%s'", name));
+    }
+}
@@ -0,0 +1,285 @@
+package org.embulk.spi;
+
+import java.util.Arrays;
+import io.airlift.slice.Slice;
+import io.airlift.slice.Slices;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.DoubleType;
+import org.embulk.spi.type.StringType;
+
+// Statistics of columns of a page recorded by PageBuilder. Statistics of
+// multiple pages can be merged to get statistics of a file or a task.
+// They're recorded only if a plugin enables collectStatistics of PageBuilder.
+// Built-in plugins don't use them.
+//
+// min and max of a boolean column are stored as long (false = 0, true = 1).
+// min and max of a string column are compared by UTF-8 bytes.
+// Distinct count is an estimate by HyperLogLog with 64 registers (error ~13%).
+public class PageStatistics
+{
+    private static final int HLL_REGISTER_BITS = 6;
+    private static final int HLL_REGISTERS = 1 << HLL_REGISTER_BITS;
+    private static final double HLL_ALPHA = 0.709;  // for 64 registers
+
+    private final Schema schema;
+    private int recordCount;
+    private final int[] nullCounts;
+    private final boolean[] hasValues;
+    private final long[] longMins;  // boolean, long and seconds of timestamp
+    private final long[] longMaxs;
+    private final int[] nanoMins;
+    private final int[] nanoMaxs;
+    private final double[] doubleMins;
+    private final double[] doubleMaxs;
+    private final Slice[] stringMins;
+    private final Slice[] stringMaxs;
+    private final byte[][] registers;
+
+    public PageStatistics(Schema schema)
+    {
+        this.schema = schema;
+        int size = schema.size();
+        this.nullCounts = new int[size];
+        this.hasValues = new boolean[size];
+        this.longMins = new long[size];
+        this.longMaxs = new long[size];
+        this.nanoMins = new int[size];
+        this.nanoMaxs = new int[size];
+        this.doubleMins = new double[size];
+        this.doubleMaxs = new double[size];
+        this.stringMins = new Slice[size];
+        this.stringMaxs = new Slice[size];
+        this.registers = new byte[size][HLL_REGISTERS];
+    }
+
+    public Schema getSchema()
+    {
+        return schema;
+    }
+
+    public int getRecordCount()
+    {
+        return recordCount;
+    }
+
+    public int getNullCount(int columnIndex)
+    {
+        return nullCounts[columnIndex];
+    }
+
+    // returns false if all values of the column are null. min and max are not available in that case
+    public boolean hasValue(int columnIndex)
+    {
+        return hasValues[columnIndex];
+    }
+
+    public boolean getBooleanMin(int columnIndex)
+    {
+        return longMins[columnIndex] != 0;
+    }
+
+    public boolean getBooleanMax(int columnIndex)
+    {
+        return longMaxs[columnIndex] != 0;
+    }
+
+    public long getLongMin(int columnIndex)
+    {
+        return longMins[columnIndex];
+    }
+
+    public long getLongMax(int columnIndex)
+    {
+        return longMaxs[columnIndex];
+    }
+
+    public double getDoubleMin(int columnIndex)
+    {
+        return doubleMins[columnIndex];
+    }
+
+    public double getDoubleMax(int columnIndex)
+    {
+        return doubleMaxs[columnIndex];
+    }
+
+    public Timestamp getTimestampMin(int columnIndex)
+    {
+        return Timestamp.ofEpochSecond(longMins[columnIndex], nanoMins[columnIndex]);
+    }
+
+    public Timestamp getTimestampMax(int columnIndex)
+    {
+        return Timestamp.ofEpochSecond(longMaxs[columnIndex], nanoMaxs[columnIndex]);
+    }
+
+    public Slice getStringMin(int columnIndex)
+    {
+        return stringMins[columnIndex];
+    }
+
+    public Slice getStringMax(int columnIndex)
+    {
+        return stringMaxs[columnIndex];
+    }
+
+    public long getDistinctCountEstimate(int columnIndex)
+    {
+        byte[] regs = registers[columnIndex];
+        double sum = 0;
+        int zeros = 0;
+        for (int i=0; i < HLL_REGISTERS; i++) {
+            sum += 1.0 / (1L << regs[i]);
+            if (regs[i] == 0) {
+                zeros++;
+            }
+        }
+        double estimate = HLL_ALPHA * HLL_REGISTERS * HLL_REGISTERS / sum;
+        if (estimate <= 2.5 * HLL_REGISTERS && zeros > 0) {
+            // linear counting for small cardinality
+            estimate = HLL_REGISTERS * Math.log((double) HLL_REGISTERS / zeros);
+        }
+        return Math.min(Math.round(estimate), recordCount - nullCounts[columnIndex]);
+    }
+
+    public void merge(PageStatistics other)
+    {
+        recordCount += other.recordCount;
+        for (int i=0; i < nullCounts.length; i++) {
+            nullCounts[i] += other.nullCounts[i];
+            for (int r=0; r < HLL_REGISTERS; r++) {
+                if (registers[i][r] < other.registers[i][r]) {
+                    registers[i][r] = other.registers[i][r];
+                }
+            }
+            if (!other.hasValues[i]) {
+                continue;
+            }
+            if (!hasValues[i]) {
+                hasValues[i] = true;
+                longMins[i] = other.longMins[i];
+                longMaxs[i] = other.longMaxs[i];
+                nanoMins[i] = other.nanoMins[i];
+                nanoMaxs[i] = other.nanoMaxs[i];
+                doubleMins[i] = other.doubleMins[i];
+                doubleMaxs[i] = other.doubleMaxs[i];
+                stringMins[i] = other.stringMins[i];
+                stringMaxs[i] = other.stringMaxs[i];
+                continue;
+            }
+            Column column = schema.getColumn(i);
+            if (column.getType() instanceof DoubleType) {
+                doubleMins[i] = Math.min(doubleMins[i], other.doubleMins[i]);
+                doubleMaxs[i] = Math.max(doubleMaxs[i], other.doubleMaxs[i]);
+            } else if (column.getType() instanceof StringType) {
+                if (other.stringMins[i].compareTo(stringMins[i]) < 0) {
+                    stringMins[i] = other.stringMins[i];
+                }
+                if (other.stringMaxs[i].compareTo(stringMaxs[i]) > 0) {
+                    stringMaxs[i] = other.stringMaxs[i];
+                }
+            } else {
+                updateLongMinMax(i, other.longMins[i], other.nanoMins[i]);
+                updateLongMinMax(i, other.longMaxs[i], other.nanoMaxs[i]);
+            }
+        }
+    }
+
+    void addRecord()
+    {
+        recordCount++;
+    }
+
+    void addNull(int columnIndex)
+    {
+        nullCounts[columnIndex]++;
+    }
+
+    void addLong(int columnIndex, long value)
+    {
+        addHash(columnIndex, value);
+        updateLongMinMax(columnIndex, value, 0);
+    }
+
+    void addTimestamp(int columnIndex, long epochSecond, int nano)
+    {
+        addHash(columnIndex, epochSecond * 31 + nano);
+        updateLongMinMax(columnIndex, epochSecond, nano);
+    }
+
+    void addDouble(int columnIndex, double value)
+    {
+        addHash(columnIndex, Double.doubleToLongBits(value));
+        if (!hasValues[columnIndex]) {
+            hasValues[columnIndex] = true;
+            doubleMins[columnIndex] = value;
+            doubleMaxs[columnIndex] = value;
+        } else {
+            doubleMins[columnIndex] = Math.min(doubleMins[columnIndex], value);
+            doubleMaxs[columnIndex] = Math.max(doubleMaxs[columnIndex], value);
+        }
+    }
+
+    // utf8 can be a view of a page buffer. it's copied if it's stored as min or max
+    void addString(int columnIndex, Slice utf8)
+    {
+        addHash(columnIndex, utf8.hashCode());
+        if (!hasValues[columnIndex]) {
+            hasValues[columnIndex] = true;
+            stringMins[columnIndex] = copyOf(utf8);
+            stringMaxs[columnIndex] = stringMins[columnIndex];
+        } else if (utf8.compareTo(stringMins[columnIndex]) < 0) {
+            stringMins[columnIndex] = copyOf(utf8);
+        } else if (utf8.compareTo(stringMaxs[columnIndex]) > 0) {
+            stringMaxs[columnIndex] = copyOf(utf8);
+        }
+    }
+
+    private static Slice copyOf(Slice slice)
+    {
+        return Slices.wrappedBuffer(slice.getBytes());
+    }
+
+    private void updateLongMinMax(int columnIndex, long value, int nano)
+    {
+        if (!hasValues[columnIndex]) {
+            hasValues[columnIndex] = true;
+            longMins[columnIndex] = value;
+            nanoMins[columnIndex] = nano;
+            longMaxs[columnIndex] = value;
+            nanoMaxs[columnIndex] = nano;
+            return;
+        }
+        if (value < longMins[columnIndex] || (value == longMins[columnIndex] && nano < nanoMins[columnIndex])) {
+            longMins[columnIndex] = value;
+            nanoMins[columnIndex] = nano;
+        }
+        if (value > longMaxs[columnIndex] || (value == longMaxs[columnIndex] && nano > nanoMaxs[columnIndex])) {
+            longMaxs[columnIndex] = value;
+            nanoMaxs[columnIndex] = nano;
+        }
+    }
+
+    private void addHash(int columnIndex, long value)
+    {
+        // murmur3 fmix64
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        int index = (int) (h >>> (64 - HLL_REGISTER_BITS));
+        int rank = Long.numberOfLeadingZeros((h << HLL_REGISTER_BITS) | (1L << (HLL_REGISTER_BITS - 1))) + 1;
+        if (registers[columnIndex][index] < rank) {
+            registers[columnIndex][index] = (byte) rank;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("PageStatistics{records=%d, nulls=%s}", recordCount, Arrays.toString(nullCounts));
+    }
+}
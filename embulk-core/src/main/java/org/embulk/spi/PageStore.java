@@ -0,0 +1,206 @@
+package org.embulk.spi;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+// Queue of pages that keeps pages in memory up to memoryLimit bytes and
+// spills the rest to a temporary file. Spilled pages are read back into
+// buffers allocated by the allocator. Pages are polled in the order they were added.
+//
+// The temporary file is truncated when all spilled pages are polled, and
+// deleted when this store is closed. Pages returned by poll() are still
+// available after close.
+public class PageStore
+        implements AutoCloseable
+{
+    private final BufferAllocator allocator;
+    private final long memoryLimit;
+    private final File tempDirectory;
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    private long memoryUsage;
+    private long spilledSize;
+    private int spilledPageCount;
+
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private long filePosition;
+
+    private static class Entry
+    {
+        private final Page page;  // null if spilled
+        private final PageStatistics statistics;
+        private final long position;
+        private final int length;
+
+        public Entry(Page page, PageStatistics statistics, long position, int length)
+        {
+            this.page = page;
+            this.statistics = statistics;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    public PageStore(BufferAllocator allocator, long memoryLimit, File tempDirectory)
+    {
+        this.allocator = allocator;
+        this.memoryLimit = memoryLimit;
+        this.tempDirectory = tempDirectory;
+    }
+
+    // takes ownership of the page
+    public synchronized void add(Page page)
+    {
+        int length = page.buffer().limit();
+        if (memoryUsage + length <= memoryLimit) {
+            memoryUsage += length;
+            entries.addLast(new Entry(page, page.getStatistics(), -1, length));
+            return;
+        }
+
+        try {
+            long position = spill(page.buffer(), length);
+            entries.addLast(new Entry(null, page.getStatistics(), position, length));
+        } finally {
+            page.release();
+        }
+    }
+
+    // returns null if this store is empty. Caller owns the returned page
+    public synchronized Page poll()
+    {
+        Entry entry = entries.pollFirst();
+        if (entry == null) {
+            return null;
+        }
+        if (entry.page != null) {
+            memoryUsage -= entry.length;
+            return entry.page;
+        }
+        Buffer buffer = read(entry.position, entry.length);
+        spilledSize -= entry.length;
+        spilledPageCount--;
+        if (spilledPageCount == 0) {
+            // pages are polled in order. no entries point to the file any more
+            truncate();
+        }
+        return Page.wrap(buffer).setStatistics(entry.statistics);
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return entries.isEmpty();
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized int getSpilledPageCount()
+    {
+        return spilledPageCount;
+    }
+
+    public synchronized long getMemoryUsage()
+    {
+        return memoryUsage;
+    }
+
+    public synchronized long getSpilledSize()
+    {
+        return spilledSize;
+    }
+
+    // size of the temporary file including pages already polled
+    public synchronized long getSpillFileSize()
+    {
+        return filePosition;
+    }
+
+    private long spill(Buffer buffer, int length)
+    {
+        try {
+            if (channel == null) {
+                file = File.createTempFile("embulk-page-store-", ".tmp", tempDirectory);
+                randomAccessFile = new RandomAccessFile(file, "rw");
+                channel = randomAccessFile.getChannel();
+            }
+            long position = filePosition;
+            ByteBuffer src = buffer.toByteBuffer(0, length);
+            while (src.hasRemaining()) {
+                channel.write(src, filePosition + src.position());
+            }
+            filePosition += length;
+            spilledSize += length;
+            spilledPageCount++;
+            return position;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void truncate()
+    {
+        try {
+            channel.truncate(0);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        filePosition = 0;
+    }
+
+    private Buffer read(long position, int length)
+    {
+        Buffer buffer = allocator.allocate(length);
+        try {
+            ByteBuffer dst = buffer.toByteBuffer(0, length);
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, position + dst.position()) < 0) {
+                    throw new EOFException("Unexpected end of page store file");
+                }
+            }
+        } catch (IOException ex) {
+            buffer.release();
+            throw new RuntimeException(ex);
+        }
+        buffer.limit(length);
+        return buffer;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        Entry entry;
+        while ((entry = entries.pollFirst()) != null) {
+            if (entry.page != null) {
+                entry.page.release();
+            }
+        }
+        memoryUsage = 0;
+        spilledSize = 0;
+        spilledPageCount = 0;
+
+        if (channel != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+                channel = null;
+                randomAccessFile = null;
+                file = null;
+            }
+        }
+    }
+}
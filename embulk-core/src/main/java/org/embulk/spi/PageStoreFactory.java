@@ -0,0 +1,6 @@
+package org.embulk.spi;
+
+public interface PageStoreFactory
+{
+    public PageStore newPageStore();
+}
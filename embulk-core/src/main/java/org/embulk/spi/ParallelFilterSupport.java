@@ -0,0 +1,14 @@
+package org.embulk.spi;
+
+import org.embulk.config.TaskSource;
+
+// Optional interface of FilterPlugin. Executors may filter pages of a task in
+// parallel if all filters support it. A supported filter must be stateless:
+// output of a page doesn't depend on other pages. open() may be called for
+// each thread concurrently, and finish() of the output is called after each
+// page to flush the pages of the page. add() may be called again after
+// finish(). Executors reorder filtered pages back into the input order.
+public interface ParallelFilterSupport
+{
+    public boolean isParallelFilterSupported(TaskSource taskSource);
+}
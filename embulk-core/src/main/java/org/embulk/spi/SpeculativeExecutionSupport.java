@@ -0,0 +1,12 @@
+package org.embulk.spi;
+
+import org.embulk.config.TaskSource;
+
+// Optional interface of OutputPlugin and FileOutputPlugin. Executors may run
+// another attempt of a slow task with the same processor index at the same time
+// if the output supports it. Only one of the attempts is committed and the
+// others are aborted, so outputs of the attempts must not conflict with each other.
+public interface SpeculativeExecutionSupport
+{
+    public boolean isSpeculativeExecutionSupported(TaskSource taskSource);
+}
@@ -0,0 +1,15 @@
+package org.embulk.spi;
+
+// Optional interface of FileInput. If the current file is a byte range of a
+// split file, poll() returns data from getSplitOffset() of the file to the end
+// of the file, and the parser parses the records that start in the range.
+// File inputs split files only if FileInputPlugin.Control allows it.
+public interface SplitFileInput
+        extends FileInput
+{
+    // offset of the range in the file. 0 if the current file is not split
+    public long getSplitOffset();
+
+    // length of the range. -1 if the current file is not split
+    public long getSplitLength();
+}
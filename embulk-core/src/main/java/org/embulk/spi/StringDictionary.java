@@ -0,0 +1,203 @@
+package org.embulk.spi;
+
+import java.util.Arrays;
+
+// Open-addressing hash table from String to its UTF-8 bytes and the offset
+// where the bytes are written in a page. Used by PageBuilder and
+// ColumnarPageBuilder to deduplicate strings of a column.
+//
+// Entries are kept across pages so that low-cardinality columns don't encode
+// the same strings again. Offsets are valid only while generation of the entry
+// matches the generation of the page being built.
+//
+// Memory is bounded by the number of entries and the total size of keys and
+// values. Long strings are not deduplicated because they are rarely repeated
+// and hashing them costs as much as encoding them.
+//
+// Lookups are disabled if hit rate of the column is low (e.g. unique IDs)
+// and enabled again after RETRY_INTERVAL strings are skipped.
+class StringDictionary
+{
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_SIZE = 8192;
+    private static final long MAX_BYTES = 1024*1024;
+    private static final int MAX_KEY_LENGTH = 256;
+
+    private static final int SAMPLE_SIZE = 1024;
+    private static final int MIN_HIT_PERCENT = 25;
+    private static final int RETRY_INTERVAL = 64*1024;
+
+    private String[] keys;
+    private int[] hashes;
+    private byte[][] values;
+    private int[] offsets;
+    private int[] generations;
+    private int mask;
+    private int size;
+    private long bytes;
+
+    private boolean enabled = true;
+    private int lookupCount;
+    private int hitCount;
+    private int skipCount;
+
+    StringDictionary()
+    {
+        allocateTable(INITIAL_CAPACITY);
+    }
+
+    private void allocateTable(int capacity)
+    {
+        this.keys = new String[capacity];
+        this.hashes = new int[capacity];
+        this.values = new byte[capacity][];
+        this.offsets = new int[capacity];
+        this.generations = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    // returns false if the key is too long or lookups of this column are currently disabled
+    boolean shouldLookup(String key)
+    {
+        if (key.length() > MAX_KEY_LENGTH) {
+            return false;
+        }
+        if (!enabled) {
+            skipCount++;
+            if (skipCount < RETRY_INTERVAL) {
+                return false;
+            }
+            enabled = true;
+            skipCount = 0;
+        }
+        return true;
+    }
+
+    // returns index of the entry or (-(insertion point) - 1) if the key is not found
+    int find(String key)
+    {
+        int index = probe(key, key.hashCode());
+        recordLookup(index >= 0);
+        if (!enabled) {
+            // disabled and cleared by this lookup
+            return -1;
+        }
+        return index;
+    }
+
+    private int probe(String key, int hash)
+    {
+        int index = mix(hash) & mask;
+        while (true) {
+            String k = keys[index];
+            if (k == null) {
+                return -index - 1;
+            }
+            if (hashes[index] == hash && k.equals(key)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    // adds an entry at the insertion point returned by find. This doesn't add
+    // the entry if the dictionary is full or disabled by the last lookup.
+    void add(int insertionPoint, String key, byte[] value, int generation, int offset)
+    {
+        long entryBytes = 2L * key.length() + value.length;
+        if (!enabled || size >= MAX_SIZE || bytes + entryBytes > MAX_BYTES) {
+            return;
+        }
+        if (keys.length < (size + 1) * 2) {
+            rehash(keys.length * 2);
+            insertionPoint = probe(key, key.hashCode());
+        }
+        int index = -insertionPoint - 1;
+        keys[index] = key;
+        hashes[index] = key.hashCode();
+        values[index] = value;
+        offsets[index] = offset;
+        generations[index] = generation;
+        size++;
+        bytes += entryBytes;
+    }
+
+    byte[] getValue(int index)
+    {
+        return values[index];
+    }
+
+    int getOffset(int index)
+    {
+        return offsets[index];
+    }
+
+    int getGeneration(int index)
+    {
+        return generations[index];
+    }
+
+    void setOffset(int index, int generation, int offset)
+    {
+        offsets[index] = offset;
+        generations[index] = generation;
+    }
+
+    private void recordLookup(boolean hit)
+    {
+        lookupCount++;
+        if (hit) {
+            hitCount++;
+        }
+        if (lookupCount >= SAMPLE_SIZE) {
+            if (hitCount * 100 < lookupCount * MIN_HIT_PERCENT) {
+                enabled = false;
+                clear();
+            }
+            lookupCount = 0;
+            hitCount = 0;
+        }
+    }
+
+    private void clear()
+    {
+        if (keys.length > INITIAL_CAPACITY) {
+            allocateTable(INITIAL_CAPACITY);
+        } else {
+            Arrays.fill(keys, null);
+            Arrays.fill(values, null);
+        }
+        size = 0;
+        bytes = 0;
+    }
+
+    private void rehash(int capacity)
+    {
+        String[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        byte[][] oldValues = values;
+        int[] oldOffsets = offsets;
+        int[] oldGenerations = generations;
+        allocateTable(capacity);
+        for (int i=0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int index = mix(oldHashes[i]) & mask;
+                while (keys[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                hashes[index] = oldHashes[i];
+                values[index] = oldValues[i];
+                offsets[index] = oldOffsets[i];
+                generations[index] = oldGenerations[i];
+            }
+        }
+    }
+
+    private static int mix(int hash)
+    {
+        // spread lower bits because String.hashCode of similar strings differs only in lower bits
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
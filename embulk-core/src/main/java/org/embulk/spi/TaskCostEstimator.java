@@ -0,0 +1,14 @@
+package org.embulk.spi;
+
+import java.util.List;
+import org.embulk.config.TaskSource;
+
+// Optional interface of InputPlugin and FileInputPlugin. LocalExecutor starts
+// tasks with larger cost earlier if largest_task_first is true.
+public interface TaskCostEstimator
+{
+    // returns relative cost (for example, number of bytes) of each task, or
+    // null if it's unknown. Size of the list must be same with processorCount.
+    public List<Long> estimateTaskCosts(TaskSource taskSource,
+            int processorCount);
+}
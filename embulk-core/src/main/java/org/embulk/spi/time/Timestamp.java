@@ -90,7 +90,12 @@ public class Timestamp
 
     public RubyTime getRubyTime(Ruby runtime)
     {
-        RubyTime time = new RubyTime(runtime, runtime.getClass("Time"), new DateTime(toEpochMilli())).gmtime();
+        return toRubyTime(runtime, seconds, nano);
+    }
+
+    public static RubyTime toRubyTime(Ruby runtime, long epochSecond, int nano)
+    {
+        RubyTime time = new RubyTime(runtime, runtime.getClass("Time"), new DateTime(epochSecond * 1000 + nano / 1000000)).gmtime();
         time.setNSec(nano % 1000000);
         return time;
     }
@@ -46,10 +46,15 @@ public class TimestampFormatter
     }
 
     public String format(Timestamp value)
+    {
+        return format(value.getEpochSecond(), value.getNano());
+    }
+
+    public String format(long epochSecond, int nano)
     {
         // TODO optimize by using reused StringBuilder
-        dateFormat.setDateTime(new DateTime(value.toEpochMilli(), timeZone));
-        dateFormat.setNSec(value.getNano());
+        dateFormat.setDateTime(new DateTime(epochSecond * 1000 + nano / 1000000, timeZone));
+        dateFormat.setNSec(nano);
         return dateFormat.format(null);
     }
 }
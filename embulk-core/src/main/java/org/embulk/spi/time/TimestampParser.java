@@ -40,6 +40,12 @@ public class TimestampParser
     }
 
     public Timestamp parse(String text) throws TimestampParseException
+    {
+        return Timestamp.ofEpochMilli(parseEpochMilli(text));
+    }
+
+    // same as parse(text).toEpochMilli() without allocating a Timestamp
+    public long parseEpochMilli(String text) throws TimestampParseException
     {
         long localMillis = helper.strptime(text);
         String zone = helper.getZone();
@@ -53,8 +59,6 @@ public class TimestampParser
             }
         }
 
-        long milli = timeZone.convertLocalToUTC(localMillis, false);
-
-        return Timestamp.ofEpochMilli(milli);
+        return timeZone.convertLocalToUTC(localMillis, false);
     }
 }
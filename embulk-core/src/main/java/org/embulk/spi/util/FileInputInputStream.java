@@ -3,6 +3,7 @@ package org.embulk.spi.util;
 import java.io.InputStream;
 import org.embulk.spi.Buffer;
 import org.embulk.spi.FileInput;
+import org.embulk.spi.ExecutionInterruptedException;
 
 public class FileInputInputStream
         extends InputStream
@@ -41,7 +42,7 @@ public class FileInputInputStream
                 return -1;
             }
         }
-        byte b = buffer.array()[buffer.offset() + pos];
+        byte b = buffer.getByte(pos);
         pos++;
         if (pos >= buffer.limit()) {
             releaseBuffer();
@@ -86,6 +87,10 @@ public class FileInputInputStream
     private boolean nextBuffer()
     {
         releaseBuffer();
+        if (Thread.interrupted()) {
+            // the task is cancelled
+            throw new ExecutionInterruptedException(new InterruptedException());
+        }
         Buffer b = in.poll();
         if (b == null) {
             return false;
@@ -5,9 +5,13 @@ import java.util.Iterator;
 import java.io.InputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.FileInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import org.embulk.spi.Buffer;
 import org.embulk.spi.FileInput;
 import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.ExecutionInterruptedException;
 
 public class InputStreamFileInput
         implements FileInput
@@ -52,6 +56,7 @@ public class InputStreamFileInput
     private final BufferAllocator allocator;
     private final Provider provider;
     private InputStream current;
+    private ReadableByteChannel currentChannel;
 
     public InputStreamFileInput(BufferAllocator allocator, Provider provider)
     {
@@ -66,9 +71,18 @@ public class InputStreamFileInput
         if (current == null) {
             throw new IllegalStateException("openNext must be called before poll()");
         }
+        if (Thread.interrupted()) {
+            // the task is cancelled
+            throw new ExecutionInterruptedException(new InterruptedException());
+        }
         Buffer buffer = allocator.allocate();
         try {
-            int n = current.read(buffer.array(), buffer.offset(), buffer.capacity());
+            int n;
+            if (buffer.hasArray()) {
+                n = current.read(buffer.array(), buffer.offset(), buffer.capacity());
+            } else {
+                n = readToDirectBuffer(buffer);
+            }
             if (n < 0) {
                 return null;
             }
@@ -86,12 +100,26 @@ public class InputStreamFileInput
         }
     }
 
+    private int readToDirectBuffer(Buffer buffer) throws IOException
+    {
+        if (currentChannel == null) {
+            if (current instanceof FileInputStream) {
+                // FileChannel reads data into direct memory without copying
+                currentChannel = ((FileInputStream) current).getChannel();
+            } else {
+                currentChannel = Channels.newChannel(current);
+            }
+        }
+        return currentChannel.read(buffer.toByteBuffer(0, buffer.capacity()));
+    }
+
     public boolean nextFile()
     {
         try {
             if (current != null) {
                 current.close();
                 current = null;
+                currentChannel = null;
             }
             current = provider.openNext();
             return current != null;
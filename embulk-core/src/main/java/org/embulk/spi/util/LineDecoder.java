@@ -1,11 +1,14 @@
 package org.embulk.spi.util;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.io.Reader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
@@ -13,6 +16,7 @@ import org.embulk.config.Task;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
 import org.embulk.spi.FileInput;
+import org.embulk.spi.SplitFileInput;
 
 public class LineDecoder
         implements AutoCloseable, Iterable<String>
@@ -31,27 +35,92 @@ public class LineDecoder
         public Newline getNewline();
     }
 
+    private final FileInput in;
     private final FileInputInputStream inputStream;
     private final BufferedReader reader;
 
+    // Lines of a split file (see SplitFileInput) are read from bytes so that
+    // positions of lines are known. A line is owned by the range if it starts
+    // after the offset of the range and at or before its end. The first line
+    // of the file is owned by the first range.
+    private final CharsetDecoder splitDecoder;
+    private long splitLength = -1;  // -1 if the current file is not split
+    private boolean headOfFile = true;
+    private long splitPosition;  // number of bytes read from the offset
+    private boolean endOfSplit;
+    private final byte[] splitBuffer = new byte[8192];
+    private int splitBufferPos;
+    private int splitBufferLimit;
+    private byte[] lineBytes = new byte[256];
+
     public LineDecoder(FileInput in, DecoderTask task)
     {
-        CharsetDecoder decoder = task.getCharset()
+        CharsetDecoder decoder = newDecoder(task.getCharset());
+        this.in = in;
+        this.inputStream = new FileInputInputStream(in);
+        this.reader = new BufferedReader(new InputStreamReader(inputStream, decoder));
+        this.splitDecoder = newDecoder(task.getCharset());
+    }
+
+    private static CharsetDecoder newDecoder(Charset charset)
+    {
+        return charset
             .newDecoder()
             .onMalformedInput(CodingErrorAction.REPLACE)  // TODO configurable?
             .onUnmappableCharacter(CodingErrorAction.REPLACE);  // TODO configurable?
-        this.inputStream = new FileInputInputStream(in);
-        this.reader = new BufferedReader(new InputStreamReader(inputStream, decoder));
+    }
+
+    // Lines of split files are found by scanning bytes for CR and LF.
+    // Charsets where these bytes may be a part of other characters (e.g.
+    // UTF-16) can't be split.
+    public static boolean isFileSplitSupported(Charset charset)
+    {
+        return Arrays.equals("\r\n".getBytes(charset), new byte[] { '\r', '\n' });
     }
 
     public boolean nextFile()
     {
-        return inputStream.nextFile();
+        if (!inputStream.nextFile()) {
+            return false;
+        }
+        splitLength = -1;
+        headOfFile = true;
+        endOfSplit = false;
+        if (in instanceof SplitFileInput && ((SplitFileInput) in).getSplitLength() >= 0) {
+            SplitFileInput split = (SplitFileInput) in;
+            splitLength = split.getSplitLength();
+            headOfFile = split.getSplitOffset() == 0;
+            splitPosition = 0;
+            splitBufferPos = 0;
+            splitBufferLimit = 0;
+            if (!headOfFile) {
+                // skips the line that starts before the range
+                readSplitLine(false);
+            }
+        }
+        return true;
+    }
+
+    // false if the current file is a byte range of a split file that doesn't
+    // start at the beginning of the file. Its first line is not a header.
+    public boolean isHeadOfFile()
+    {
+        return headOfFile;
+    }
+
+    // true if the last poll() returned null because the next line is owned
+    // by the next range of the split file
+    public boolean isEndOfSplit()
+    {
+        return endOfSplit;
     }
 
     public String poll()
     {
         try {
+            if (splitLength >= 0) {
+                return pollSplitLine();
+            }
             return reader.readLine();
         } catch (IOException ex) {
             // unexpected
@@ -59,6 +128,66 @@ public class LineDecoder
         }
     }
 
+    private String pollSplitLine()
+            throws CharacterCodingException
+    {
+        if (peekSplitByte() < 0) {
+            return null;
+        }
+        if (splitPosition > splitLength) {
+            endOfSplit = true;
+            return null;
+        }
+        int length = readSplitLine(true);
+        return splitDecoder.decode(ByteBuffer.wrap(lineBytes, 0, length)).toString();
+    }
+
+    // reads bytes until CR, LF or CRLF like BufferedReader.readLine
+    private int readSplitLine(boolean keep)
+    {
+        int length = 0;
+        while (true) {
+            int b = readSplitByte();
+            if (b < 0 || b == '\n') {
+                return length;
+            } else if (b == '\r') {
+                if (peekSplitByte() == '\n') {
+                    readSplitByte();
+                }
+                return length;
+            }
+            if (keep) {
+                if (length == lineBytes.length) {
+                    lineBytes = Arrays.copyOf(lineBytes, length * 2);
+                }
+                lineBytes[length++] = (byte) b;
+            }
+        }
+    }
+
+    private int readSplitByte()
+    {
+        int b = peekSplitByte();
+        if (b >= 0) {
+            splitBufferPos++;
+            splitPosition++;
+        }
+        return b;
+    }
+
+    private int peekSplitByte()
+    {
+        if (splitBufferPos == splitBufferLimit) {
+            int n = inputStream.read(splitBuffer, 0, splitBuffer.length);
+            if (n < 0) {
+                return -1;
+            }
+            splitBufferPos = 0;
+            splitBufferLimit = n;
+        }
+        return splitBuffer[splitBufferPos] & 0xff;
+    }
+
     public void close()
     {
         try {
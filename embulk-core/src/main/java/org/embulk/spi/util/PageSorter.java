@@ -0,0 +1,545 @@
+package org.embulk.spi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Column;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.PageSerde;
+import org.embulk.spi.Schema;
+import org.embulk.spi.SchemaVisitor;
+
+// External merge sort of records. Added pages are kept in memory as they are
+// up to memoryLimit bytes (size of the page buffers and the record index).
+// Records are sorted by an index of (page, record position) entries without
+// decoding them. When the limit is exceeded, the records are sorted and
+// spilled to a temporary file as a run in the PageSerde format. writeTo()
+// merges the runs and the records in memory. Sort is stable.
+//
+// Strings are compared by UTF-8 bytes so that the order is the same as
+// the min and max of PageStatistics. Nulls are smaller than any values.
+//
+// Temporary files are deleted when this sorter is closed.
+public class PageSorter
+        implements AutoCloseable
+{
+    // max number of runs merged at once. More runs are merged into larger runs first
+    private static final int MAX_MERGE_RUNS = 64;
+
+    // memory used by an entry of the record index (page, position and sort order)
+    private static final int INDEX_ENTRY_SIZE = 16;
+
+    public static class SortKey
+    {
+        private final Column column;
+        private final boolean descending;
+
+        public SortKey(Column column, boolean descending)
+        {
+            this.column = column;
+            this.descending = descending;
+        }
+
+        public Column getColumn()
+        {
+            return column;
+        }
+
+        public boolean isDescending()
+        {
+            return descending;
+        }
+    }
+
+    private final BufferAllocator allocator;
+    private final Schema schema;
+    private final RecordComparator comparator;
+    private final RecordCopier copier;
+    private final long memoryLimit;
+    private final File tempDirectory;
+
+    // pages are released when records are written. Views share the memory of
+    // the pages so that readers can switch pages without releasing them
+    private final List<Page> pages = new ArrayList<Page>();
+    private final List<Page> pageViews = new ArrayList<Page>();
+    private final PageReader indexReader;
+    private final PageReader leftReader;
+    private final PageReader rightReader;
+    private int leftPage = -1;
+    private int rightPage = -1;
+    private int[] recordPages = new int[0];
+    private long[] recordPositions = new long[0];
+    private int recordCount;
+    private long memoryUsage;
+    private final List<File> runFiles = new ArrayList<File>();
+
+    public PageSorter(BufferAllocator allocator, Schema schema, List<SortKey> keys,
+            long memoryLimit, File tempDirectory)
+    {
+        this.allocator = allocator;
+        this.schema = schema;
+        this.comparator = new RecordComparator(keys);
+        this.copier = new RecordCopier(schema);
+        this.memoryLimit = memoryLimit;
+        this.tempDirectory = tempDirectory;
+        this.indexReader = new PageReader(schema);
+        this.leftReader = new PageReader(schema);
+        this.rightReader = new PageReader(schema);
+    }
+
+    // takes ownership of the page
+    public void add(Page page)
+    {
+        int pageIndex = pages.size();
+        Page view = newView(page);
+        pages.add(page);
+        pageViews.add(view);
+        memoryUsage += page.buffer().capacity();
+
+        indexReader.setPage(view);
+        while (indexReader.nextRecord()) {
+            if (recordCount == recordPages.length) {
+                int capacity = Math.max(16, recordCount * 2);
+                recordPages = Arrays.copyOf(recordPages, capacity);
+                recordPositions = Arrays.copyOf(recordPositions, capacity);
+            }
+            recordPages[recordCount] = pageIndex;
+            recordPositions[recordCount] = indexReader.getRecordPosition();
+            recordCount++;
+            memoryUsage += INDEX_ENTRY_SIZE;
+        }
+
+        if (memoryUsage > memoryLimit) {
+            spill();
+        }
+    }
+
+    private static Page newView(Page page)
+    {
+        Buffer buffer = page.buffer();
+        return Page.wrap(Buffer.wrap(buffer.toByteBuffer(0, buffer.limit())));
+    }
+
+    public int getSpilledRunCount()
+    {
+        return runFiles.size();
+    }
+
+    // writes all records in sorted order. This doesn't call output.finish()
+    public void writeTo(PageOutput output)
+    {
+        try (PageBuilder builder = new PageBuilder(allocator, schema, output)) {
+            if (runFiles.isEmpty()) {
+                MemoryRun run = new MemoryRun(sortRecords());
+                try {
+                    while (run.next()) {
+                        copier.copy(run.reader, builder);
+                    }
+                } finally {
+                    run.close();
+                }
+            } else {
+                while (runFiles.size() > MAX_MERGE_RUNS) {
+                    mergeRuns();
+                }
+                List<Run> runs = new ArrayList<Run>();
+                try {
+                    for (File file : runFiles) {
+                        runs.add(new FileRun(file));
+                    }
+                    runs.add(new MemoryRun(sortRecords()));
+                    merge(runs, builder);
+                } finally {
+                    closeRuns(runs);
+                }
+            }
+            builder.flush();
+        } finally {
+            clearRecords();
+        }
+    }
+
+    private void spill()
+    {
+        List<Run> runs = new ArrayList<Run>();
+        runs.add(new MemoryRun(sortRecords()));
+        try {
+            runFiles.add(writeRunFile(runs));
+        } finally {
+            closeRuns(runs);
+            clearRecords();
+        }
+    }
+
+    private void clearRecords()
+    {
+        for (Page page : pages) {
+            page.release();
+        }
+        pages.clear();
+        pageViews.clear();
+        leftPage = -1;
+        rightPage = -1;
+        recordCount = 0;
+        memoryUsage = 0;
+    }
+
+    // returns record numbers in sorted order
+    private int[] sortRecords()
+    {
+        int[] order = new int[recordCount];
+        for (int i=0; i < order.length; i++) {
+            order[i] = i;
+        }
+        mergeSort(order, new int[order.length], 0, order.length);
+        return order;
+    }
+
+    // stable merge sort of record numbers
+    private void mergeSort(int[] order, int[] work, int from, int to)
+    {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(order, work, from, mid);
+        mergeSort(order, work, mid, to);
+        if (compareRecords(order[mid - 1], order[mid]) <= 0) {
+            // already in order
+            return;
+        }
+        System.arraycopy(order, from, work, from, to - from);
+        int i = from;
+        int j = mid;
+        int k = from;
+        while (i < mid && j < to) {
+            // takes the left one if equal
+            if (compareRecords(work[j], work[i]) < 0) {
+                order[k++] = work[j++];
+            } else {
+                order[k++] = work[i++];
+            }
+        }
+        while (i < mid) {
+            order[k++] = work[i++];
+        }
+        while (j < to) {
+            order[k++] = work[j++];
+        }
+    }
+
+    private int compareRecords(int a, int b)
+    {
+        leftPage = seekRecord(leftReader, leftPage, a);
+        rightPage = seekRecord(rightReader, rightPage, b);
+        return comparator.compare(leftReader, rightReader);
+    }
+
+    // moves the reader to the record and returns the page index. setPage is
+    // skipped if the reader already reads the page
+    private int seekRecord(PageReader reader, int currentPage, int record)
+    {
+        int pageIndex = recordPages[record];
+        if (pageIndex != currentPage) {
+            reader.setPage(pageViews.get(pageIndex));
+        }
+        reader.setRecordPosition(recordPositions[record]);
+        return pageIndex;
+    }
+
+    // merges the oldest runs into a run so that runs keep the input order
+    private void mergeRuns()
+    {
+        List<File> files = new ArrayList<File>(runFiles.subList(0, MAX_MERGE_RUNS));
+        runFiles.subList(0, MAX_MERGE_RUNS).clear();
+        List<Run> runs = new ArrayList<Run>();
+        try {
+            for (File file : files) {
+                runs.add(new FileRun(file));
+            }
+            runFiles.add(0, writeRunFile(runs));
+        } finally {
+            closeRuns(runs);
+            for (File file : files) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    private File writeRunFile(List<Run> runs)
+    {
+        File file;
+        try {
+            file = File.createTempFile("embulk-sort-", ".tmp", tempDirectory);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        boolean succeeded = false;
+        try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+                final PageSerde.Writer writer = new PageSerde.Writer(channel, schema, false)) {
+            PageOutput output = new PageOutput() {
+                public void add(Page page)
+                {
+                    try {
+                        writer.write(page);
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    } finally {
+                        page.release();
+                    }
+                }
+
+                public void finish()
+                { }
+
+                public void close()
+                { }
+            };
+            try (PageBuilder builder = new PageBuilder(allocator, schema, output)) {
+                merge(runs, builder);
+                builder.flush();
+            }
+            writer.finish();
+            succeeded = true;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            if (!succeeded) {
+                deleteFile(file);
+            }
+        }
+        return file;
+    }
+
+    // k-way merge. Records of earlier runs come first if keys are equal
+    private void merge(List<Run> runs, PageBuilder builder)
+    {
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(runs.size(), 1), new Comparator<Run>() {
+            public int compare(Run a, Run b)
+            {
+                int c = comparator.compare(a.reader, b.reader);
+                if (c != 0) {
+                    return c;
+                }
+                return Integer.compare(a.order, b.order);
+            }
+        });
+        for (int i=0; i < runs.size(); i++) {
+            Run run = runs.get(i);
+            run.order = i;
+            if (run.next()) {
+                queue.add(run);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Run run = queue.poll();
+            copier.copy(run.reader, builder);
+            if (run.next()) {
+                queue.add(run);
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        indexReader.close();
+        leftReader.close();
+        rightReader.close();
+        clearRecords();
+        for (File file : runFiles) {
+            deleteFile(file);
+        }
+        runFiles.clear();
+    }
+
+    private static void deleteFile(File file)
+    {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private static void closeRuns(List<Run> runs)
+    {
+        for (Run run : runs) {
+            run.close();
+        }
+    }
+
+    private abstract class Run
+    {
+        protected final PageReader reader = new PageReader(schema);
+        private int order;
+
+        // moves the reader to the next record. false at the end of the run
+        public abstract boolean next();
+
+        public void close()
+        {
+            reader.close();
+        }
+    }
+
+    private class MemoryRun
+            extends Run
+    {
+        private final int[] order;
+        private int index;
+        private int currentPage = -1;
+
+        public MemoryRun(int[] order)
+        {
+            this.order = order;
+        }
+
+        @Override
+        public boolean next()
+        {
+            if (index >= order.length) {
+                return false;
+            }
+            currentPage = seekRecord(reader, currentPage, order[index++]);
+            return true;
+        }
+    }
+
+    private class FileRun
+            extends Run
+    {
+        private final PageSerde.Reader serde;
+
+        public FileRun(File file)
+        {
+            FileChannel channel = null;
+            try {
+                channel = new RandomAccessFile(file, "r").getChannel();
+                this.serde = new PageSerde.Reader(channel, allocator);
+            } catch (IOException ex) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException closeException) {
+                        ex.addSuppressed(closeException);
+                    }
+                }
+                throw new RuntimeException(ex);
+            }
+        }
+
+        @Override
+        public boolean next()
+        {
+            while (!reader.nextRecord()) {
+                Page page;
+                try {
+                    page = serde.read();
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                if (page == null) {
+                    return false;
+                }
+                reader.setPage(page);
+            }
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+            super.close();
+            try {
+                serde.close();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    // compares the current records of two readers
+    private static class RecordComparator
+            implements SchemaVisitor
+    {
+        private final Column[] columns;
+        private final boolean[] descending;
+        private PageReader left;
+        private PageReader right;
+        private int result;
+
+        public RecordComparator(List<SortKey> keys)
+        {
+            this.columns = new Column[keys.size()];
+            this.descending = new boolean[keys.size()];
+            for (int i=0; i < columns.length; i++) {
+                columns[i] = keys.get(i).getColumn();
+                descending[i] = keys.get(i).isDescending();
+            }
+        }
+
+        public int compare(PageReader left, PageReader right)
+        {
+            this.left = left;
+            this.right = right;
+            for (int i=0; i < columns.length; i++) {
+                Column column = columns[i];
+                boolean leftNull = left.isNull(column);
+                boolean rightNull = right.isNull(column);
+                if (leftNull || rightNull) {
+                    result = (leftNull ? (rightNull ? 0 : -1) : 1);
+                } else {
+                    column.visit(this);
+                }
+                if (result != 0) {
+                    return descending[i] ? -result : result;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public void booleanColumn(Column column)
+        {
+            result = Boolean.compare(left.getBoolean(column), right.getBoolean(column));
+        }
+
+        @Override
+        public void longColumn(Column column)
+        {
+            result = Long.compare(left.getLong(column), right.getLong(column));
+        }
+
+        @Override
+        public void doubleColumn(Column column)
+        {
+            result = Double.compare(left.getDouble(column), right.getDouble(column));
+        }
+
+        @Override
+        public void stringColumn(Column column)
+        {
+            // UTF-8 bytes without decoding. Same as PageStatistics
+            result = left.getStringSlice(column).compareTo(right.getStringSlice(column));
+        }
+
+        @Override
+        public void timestampColumn(Column column)
+        {
+            result = Long.compare(left.getTimestampEpochSecond(column), right.getTimestampEpochSecond(column));
+            if (result == 0) {
+                result = Integer.compare(left.getTimestampNano(column), right.getTimestampNano(column));
+            }
+        }
+    }
+}
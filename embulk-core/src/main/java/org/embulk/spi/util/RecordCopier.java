@@ -0,0 +1,86 @@
+package org.embulk.spi.util;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.SchemaVisitor;
+
+// Copies the current record of a PageReader to a PageBuilder of the same schema.
+// Strings are copied as bytes without decoding.
+public class RecordCopier
+{
+    private final Schema schema;
+    private final CopyVisitor visitor = new CopyVisitor();
+
+    public RecordCopier(Schema schema)
+    {
+        this.schema = schema;
+    }
+
+    // copies the record and calls builder.addRecord()
+    public void copy(PageReader reader, PageBuilder builder)
+    {
+        visitor.reader = reader;
+        visitor.builder = builder;
+        schema.visitColumns(visitor);
+        builder.addRecord();
+    }
+
+    private static class CopyVisitor
+            implements SchemaVisitor
+    {
+        private PageReader reader;
+        private PageBuilder builder;
+
+        @Override
+        public void booleanColumn(Column column)
+        {
+            if (reader.isNull(column)) {
+                builder.setNull(column);
+            } else {
+                builder.setBoolean(column, reader.getBoolean(column));
+            }
+        }
+
+        @Override
+        public void longColumn(Column column)
+        {
+            if (reader.isNull(column)) {
+                builder.setNull(column);
+            } else {
+                builder.setLong(column, reader.getLong(column));
+            }
+        }
+
+        @Override
+        public void doubleColumn(Column column)
+        {
+            if (reader.isNull(column)) {
+                builder.setNull(column);
+            } else {
+                builder.setDouble(column, reader.getDouble(column));
+            }
+        }
+
+        @Override
+        public void stringColumn(Column column)
+        {
+            if (reader.isNull(column)) {
+                builder.setNull(column);
+            } else {
+                builder.setString(column, reader.getStringSlice(column));
+            }
+        }
+
+        @Override
+        public void timestampColumn(Column column)
+        {
+            if (reader.isNull(column)) {
+                builder.setNull(column);
+            } else {
+                builder.setTimestamp(column, reader.getTimestampEpochSecond(column), reader.getTimestampNano(column));
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.embulk.spi.util;
+
+import java.util.List;
+import com.google.common.collect.ImmutableList;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+
+// {"name": "time", "order": "desc"}. order is "asc" (default) or "desc"
+public class SortColumnConfig
+{
+    private final String name;
+    private final String order;
+
+    @JsonCreator
+    public SortColumnConfig(
+            @JsonProperty("name") String name,
+            @JsonProperty("order") String order)
+    {
+        this.name = name;
+        this.order = (order == null ? "asc" : order);
+    }
+
+    @JsonProperty("name")
+    public String getName()
+    {
+        return name;
+    }
+
+    @JsonProperty("order")
+    public String getOrder()
+    {
+        return order;
+    }
+
+    public PageSorter.SortKey toSortKey(Schema schema)
+    {
+        boolean descending;
+        if (order.equals("asc")) {
+            descending = false;
+        } else if (order.equals("desc")) {
+            descending = true;
+        } else {
+            throw new ConfigException(String.format("Sort order of column '%s' must be 'asc' or 'desc': %s", name, order));
+        }
+        for (Column column : schema.getColumns()) {
+            if (column.getName().equals(name)) {
+                return new PageSorter.SortKey(column, descending);
+            }
+        }
+        throw new ConfigException(String.format("Sort column '%s' does not exist", name));
+    }
+
+    public static List<PageSorter.SortKey> toSortKeys(List<SortColumnConfig> configs, Schema schema)
+    {
+        ImmutableList.Builder<PageSorter.SortKey> builder = ImmutableList.builder();
+        for (SortColumnConfig config : configs) {
+            builder.add(config.toSortKey(schema));
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("SortColumnConfig[%s, %s]", name, order);
+    }
+}
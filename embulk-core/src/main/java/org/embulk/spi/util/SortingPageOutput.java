@@ -0,0 +1,42 @@
+package org.embulk.spi.util;
+
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+
+// PageOutput that sorts all records using a PageSorter and passes them to the
+// next output when finish() is called.
+public class SortingPageOutput
+        implements PageOutput
+{
+    private final PageSorter sorter;
+    private final PageOutput next;
+
+    public SortingPageOutput(PageSorter sorter, PageOutput next)
+    {
+        this.sorter = sorter;
+        this.next = next;
+    }
+
+    @Override
+    public void add(Page page)
+    {
+        sorter.add(page);
+    }
+
+    @Override
+    public void finish()
+    {
+        sorter.writeTo(next);
+        next.finish();
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            sorter.close();
+        } finally {
+            next.close();
+        }
+    }
+}
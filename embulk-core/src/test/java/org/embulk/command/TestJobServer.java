@@ -0,0 +1,331 @@
+package org.embulk.command;
+
+import static org.embulk.plugin.InjectedPluginSource.registerPluginTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Module;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.CommitReport;
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.spi.FileInputPlugin;
+import org.embulk.spi.GuessPlugin;
+import org.embulk.spi.InputPlugin;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalFileInput;
+import org.embulk.spi.TransactionalPageOutput;
+
+public class TestJobServer
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final String TOKEN = "test-token";
+
+    // a file of a line
+    public static class LineInputPlugin
+            implements FileInputPlugin
+    {
+        @Override
+        public ConfigDiff transaction(ConfigSource config, FileInputPlugin.Control control)
+        {
+            control.run(Exec.newTaskSource(), 1);
+            return Exec.newConfigDiff().set("last_path", "line");
+        }
+
+        @Override
+        public ConfigDiff resume(TaskSource taskSource, int processorCount, FileInputPlugin.Control control)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void cleanup(TaskSource taskSource, int processorCount, List<CommitReport> successCommitReports)
+        { }
+
+        @Override
+        public TransactionalFileInput open(TaskSource taskSource, int processorIndex)
+        {
+            byte[] line = "line\n".getBytes(StandardCharsets.UTF_8);
+            final Buffer buffer = Exec.getBufferAllocator().allocate(line.length);
+            buffer.setBytes(0, line, 0, line.length);
+            buffer.limit(line.length);
+            return new TransactionalFileInput() {
+                private Buffer next = buffer;
+                private boolean opened = false;
+
+                public boolean nextFile()
+                {
+                    if (opened) {
+                        return false;
+                    }
+                    opened = true;
+                    return true;
+                }
+
+                public Buffer poll()
+                {
+                    Buffer b = next;
+                    next = null;
+                    return b;
+                }
+
+                public void close()
+                {
+                    if (next != null) {
+                        next.release();
+                        next = null;
+                    }
+                }
+
+                public void abort()
+                { }
+
+                public CommitReport commit()
+                {
+                    return Exec.newCommitReport();
+                }
+            };
+        }
+    }
+
+    // counts records
+    public static class CountOutputPlugin
+            implements OutputPlugin
+    {
+        static final AtomicInteger records = new AtomicInteger();
+
+        @Override
+        public ConfigDiff transaction(ConfigSource config, Schema schema, int processorCount,
+                OutputPlugin.Control control)
+        {
+            control.run(Exec.newTaskSource());
+            return Exec.newConfigDiff();
+        }
+
+        @Override
+        public ConfigDiff resume(TaskSource taskSource, Schema schema, int processorCount,
+                OutputPlugin.Control control)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void cleanup(TaskSource taskSource, Schema schema, int processorCount,
+                List<CommitReport> successCommitReports)
+        { }
+
+        @Override
+        public TransactionalPageOutput open(TaskSource taskSource, final Schema schema, int processorIndex)
+        {
+            return new TransactionalPageOutput() {
+                private final PageReader reader = new PageReader(schema);
+
+                public void add(Page page)
+                {
+                    reader.setPage(page);
+                    while (reader.nextRecord()) {
+                        records.incrementAndGet();
+                    }
+                }
+
+                public void finish()
+                { }
+
+                public void close()
+                {
+                    reader.close();
+                }
+
+                public void abort()
+                { }
+
+                public CommitReport commit()
+                {
+                    return Exec.newCommitReport();
+                }
+            };
+        }
+    }
+
+    // guesses the mock parser
+    public static class MockParserGuessPlugin
+            implements GuessPlugin
+    {
+        @Override
+        public ConfigDiff guess(ConfigSource config, Buffer sample)
+        {
+            return Exec.newConfigDiff().set("parser", Exec.newConfigDiff().set("type", "mock"));
+        }
+    }
+
+    private JobServer server;
+
+    @Before
+    public void startServer()
+            throws IOException
+    {
+        Module plugins = new Module() {
+            public void configure(Binder binder)
+            {
+                registerPluginTo(binder, InputPlugin.class, "line", LineInputPlugin.class);
+                registerPluginTo(binder, OutputPlugin.class, "count", CountOutputPlugin.class);
+                registerPluginTo(binder, GuessPlugin.class, "mock", MockParserGuessPlugin.class);
+            }
+        };
+        server = new JobServer(Guice.createInjector(new EmbulkTestRuntime.TestRuntimeModule(), plugins),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, TOKEN);
+        server.start();
+        CountOutputPlugin.records.set(0);
+    }
+
+    @After
+    public void stopServer()
+    {
+        server.stop();
+    }
+
+    private static class Response
+    {
+        private final int status;
+        private final JsonNode body;
+
+        public Response(int status, JsonNode body)
+        {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private Response post(String path, String token, String body)
+            throws IOException
+    {
+        URL url = new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            if (token != null) {
+                connection.setRequestProperty("Authorization", "Bearer " + token);
+            }
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            int status = connection.getResponseCode();
+            InputStream in = (status < 400 ? connection.getInputStream() : connection.getErrorStream());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    bytes.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            return new Response(status, new ObjectMapper().readTree(bytes.toByteArray()));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static final String RUN_CONFIG =
+        "{\"in\": {\"type\": \"line\", \"parser\": {\"type\": \"mock\", \"columns\": [{\"name\": \"c\", \"type\": \"long\"}]}}," +
+        " \"out\": {\"type\": \"count\"}}";
+
+    @Test
+    public void testRun()
+            throws IOException
+    {
+        Response response = post("/run", TOKEN, RUN_CONFIG);
+        assertEquals(200, response.status);
+        assertEquals(1, CountOutputPlugin.records.get());
+        assertEquals("line", response.body.get("config_diff").get("in").get("last_path").asText());
+        assertEquals("line", response.body.get("next_config").get("in").get("last_path").asText());
+        assertEquals("count", response.body.get("next_config").get("out").get("type").asText());
+    }
+
+    @Test
+    public void testGuess()
+            throws IOException
+    {
+        Response response = post("/guess", TOKEN,
+                "{\"exec\": {\"guess_plugins\": [\"mock\"], \"exclude_guess_plugins\": [\"gzip\", \"charset\", \"newline\", \"csv\"]}," +
+                " \"in\": {\"type\": \"line\"}}");
+        assertEquals(200, response.status);
+        assertEquals("mock", response.body.get("config_diff").get("in").get("parser").get("type").asText());
+        assertEquals("line", response.body.get("next_config").get("in").get("type").asText());
+    }
+
+    @Test
+    public void testUnauthorized()
+            throws IOException
+    {
+        assertEquals(401, post("/run", null, RUN_CONFIG).status);
+        Response response = post("/run", "wrong", RUN_CONFIG);
+        assertEquals(401, response.status);
+        assertTrue(response.body.has("error"));
+        assertEquals(0, CountOutputPlugin.records.get());
+    }
+
+    @Test
+    public void testConfigError()
+            throws IOException
+    {
+        // columns of the parser are not set
+        Response response = post("/run", TOKEN,
+                "{\"in\": {\"type\": \"line\", \"parser\": {\"type\": \"mock\"}}, \"out\": {\"type\": \"count\"}}");
+        assertEquals(400, response.status);
+        assertTrue(response.body.get("error").asText().contains("columns"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testTokenIsRequired()
+            throws IOException
+    {
+        new JobServer(Guice.createInjector(new EmbulkTestRuntime.TestRuntimeModule()),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1, null);
+    }
+
+    @Test
+    public void testLoadToken()
+            throws IOException
+    {
+        File file = new File(tempFolder.getRoot(), "dir/token");
+        String token = JobServer.loadToken(file.toPath());
+        assertEquals(64, token.length());
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+        // the existing token is reused
+        assertEquals(token, JobServer.loadToken(file.toPath()));
+    }
+}
@@ -0,0 +1,108 @@
+package org.embulk.config;
+
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import com.google.common.collect.ImmutableList;
+import org.embulk.spi.Exec;
+import org.embulk.EmbulkTestRuntime;
+
+public class TestReadOnlyTaskSource
+{
+    private static interface NestedTask
+            extends Task
+    {
+        public List<String> getFiles();
+        public void setFiles(List<String> v);
+
+        public TaskSource getChild();
+        public void setChild(TaskSource v);
+
+        public List<TaskSource> getChildren();
+        public void setChildren(List<TaskSource> v);
+
+        public int getInt();
+        public void setInt(int v);
+    }
+
+    private static interface ChildTask
+            extends Task
+    {
+        public String getName();
+        public void setName(String v);
+    }
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private TaskSource newTaskSource()
+    {
+        TaskSource child = Exec.newTaskSource().set("Name", "child");
+        return Exec.newTaskSource()
+            .set("Files", ImmutableList.of("a", "b", "c"))
+            .setNested("Child", child)
+            .set("Children", ImmutableList.of(child, child))
+            .set("Int", 1);
+    }
+
+    @Test
+    public void testLoadTask()
+    {
+        TaskSource taskSource = ReadOnlyTaskSource.of(newTaskSource());
+        NestedTask task1 = taskSource.loadTask(NestedTask.class);
+        NestedTask task2 = taskSource.loadTask(NestedTask.class);
+
+        assertEquals(ImmutableList.of("a", "b", "c"), task1.getFiles());
+        assertEquals(task1, task2);
+
+        // deserialized values are shared
+        assertSame(task1.getFiles(), task2.getFiles());
+        assertSame(task1.getChild(), task2.getChild());
+
+        // setters don't affect other tasks
+        task1.setInt(2);
+        assertEquals(2, task1.getInt());
+        assertEquals(1, task2.getInt());
+        assertEquals(1, taskSource.loadTask(NestedTask.class).getInt());
+
+        // dump creates a modifiable TaskSource
+        assertEquals(2, task1.dump().set("Files", ImmutableList.of()).loadTask(NestedTask.class).getInt());
+    }
+
+    @Test
+    public void testNestedTaskSources()
+    {
+        NestedTask task = ReadOnlyTaskSource.of(newTaskSource()).loadTask(NestedTask.class);
+        assertTrue(task.getChild() instanceof ReadOnlyTaskSource);
+        assertTrue(task.getChildren().get(1) instanceof ReadOnlyTaskSource);
+
+        ChildTask child1 = task.getChild().loadTask(ChildTask.class);
+        ChildTask child2 = task.getChild().loadTask(ChildTask.class);
+        assertEquals("child", child1.getName());
+        assertEquals(child1, child2);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSet()
+    {
+        ReadOnlyTaskSource.of(newTaskSource()).set("Int", 2);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSetNestedTaskSource()
+    {
+        NestedTask task = ReadOnlyTaskSource.of(newTaskSource()).loadTask(NestedTask.class);
+        task.getChild().set("Name", "modified");
+    }
+
+    @Test
+    public void testDeepCopy()
+    {
+        TaskSource copy = ReadOnlyTaskSource.of(newTaskSource()).deepCopy();
+        copy.set("Int", 3);
+        assertEquals(3, copy.loadTask(NestedTask.class).getInt());
+    }
+}
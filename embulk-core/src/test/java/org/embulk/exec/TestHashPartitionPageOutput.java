@@ -0,0 +1,163 @@
+package org.embulk.exec;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import com.google.common.collect.ImmutableList;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Column;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.util.Pages;
+import static org.embulk.spi.type.Types.BOOLEAN;
+import static org.embulk.spi.type.Types.DOUBLE;
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.embulk.spi.type.Types.TIMESTAMP;
+
+public class TestHashPartitionPageOutput
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private static class RecordingOutput
+            implements PageOutput
+    {
+        private final Schema schema;
+        private final List<Object[]> records = new ArrayList<Object[]>();
+        private boolean finished;
+        private boolean closed;
+
+        public RecordingOutput(Schema schema)
+        {
+            this.schema = schema;
+        }
+
+        @Override
+        public void add(Page page)
+        {
+            records.addAll(Pages.toObjects(schema, page));
+            page.release();
+        }
+
+        @Override
+        public void finish()
+        {
+            finished = true;
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+    private final Schema schema = PageTestUtils.newSchema(
+            PageTestUtils.newColumn("key", STRING),
+            PageTestUtils.newColumn("id", LONG),
+            PageTestUtils.newColumn("flag", BOOLEAN),
+            PageTestUtils.newColumn("score", DOUBLE),
+            PageTestUtils.newColumn("time", TIMESTAMP));
+
+    private List<RecordingOutput> partition(List<String> keys, int count, Object... values)
+    {
+        List<RecordingOutput> outputs = new ArrayList<RecordingOutput>();
+        for (int i=0; i < count; i++) {
+            outputs.add(new RecordingOutput(schema));
+        }
+        try (HashPartitionPageOutput output = new HashPartitionPageOutput(runtime.getBufferAllocator(), schema,
+                    HashPartitionPageOutput.lookupKeyColumns(schema, keys),
+                    ImmutableList.<PageOutput>copyOf(outputs))) {
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values)) {
+                output.add(page);
+            }
+            output.finish();
+        }
+        return outputs;
+    }
+
+    @Test
+    public void testSameKeysToSameOutput()
+    {
+        Timestamp time = Timestamp.ofEpochSecond(1420070400L);
+        List<Object> values = new ArrayList<Object>();
+        for (int i=0; i < 300; i++) {
+            values.add(i % 3 == 0 ? null : "customer" + (i % 10));
+            values.add((long) i);
+            values.add(i % 2 == 0);
+            values.add(i * 0.5);
+            values.add(time);
+        }
+        List<RecordingOutput> outputs = partition(ImmutableList.of("key"), 4, values.toArray());
+
+        Map<Object, Integer> outputOfKey = new HashMap<Object, Integer>();
+        int total = 0;
+        for (int i=0; i < outputs.size(); i++) {
+            RecordingOutput output = outputs.get(i);
+            assertTrue(output.finished);
+            assertTrue(output.closed);
+            for (Object[] record : output.records) {
+                Integer previous = outputOfKey.put(record[0], i);
+                if (previous != null) {
+                    assertEquals((int) previous, i);
+                }
+                // values are copied
+                long id = (Long) record[1];
+                assertEquals(id % 2 == 0, record[2]);
+                assertEquals(id * 0.5, (Double) record[3], 0.0);
+                assertEquals(time, record[4]);
+                total++;
+            }
+        }
+        assertEquals(300, total);
+    }
+
+    @Test
+    public void testSequentialKeysAreSpread()
+    {
+        List<Object> values = new ArrayList<Object>();
+        for (int i=0; i < 1000; i++) {
+            values.add("k");
+            values.add((long) i);
+            values.add(true);
+            values.add(0.0);
+            values.add(null);
+        }
+        List<RecordingOutput> outputs = partition(ImmutableList.of("id"), 4, values.toArray());
+        for (RecordingOutput output : outputs) {
+            assertTrue(output.records.size() > 150);
+        }
+    }
+
+    @Test
+    public void testGetPartition()
+    {
+        for (int hash : new int[] { 0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE }) {
+            int partition = HashPartitionPageOutput.getPartition(hash, 7);
+            assertTrue(0 <= partition && partition < 7);
+        }
+    }
+
+    @Test
+    public void testLookupKeyColumns()
+    {
+        List<Column> columns = HashPartitionPageOutput.lookupKeyColumns(schema, ImmutableList.of("time", "key"));
+        assertEquals(ImmutableList.of(schema.getColumn(4), schema.getColumn(0)), columns);
+        try {
+            HashPartitionPageOutput.lookupKeyColumns(schema, ImmutableList.of("unknown"));
+            fail();
+        } catch (ConfigException ex) {
+        }
+    }
+}
@@ -0,0 +1,570 @@
+package org.embulk.exec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.CommitReport;
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecutionInterruptedException;
+import org.embulk.spi.InputPlugin;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TaskCostEstimator;
+import org.embulk.spi.TransactionalPageOutput;
+import org.embulk.spi.type.Types;
+
+public class TestLocalExecutor
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private static final Schema SCHEMA = PageTestUtils.newSchema(
+            PageTestUtils.newColumn("id", Types.LONG),
+            PageTestUtils.newColumn("key", Types.STRING));
+
+    // task i writes records of id i*1000 to i*1000+recordsPerTask-1. Tasks in
+    // failingTasks throw an exception after failLatch is released. Tasks in
+    // blockingTasks wait until they're interrupted. Tasks in retryableFailures
+    // throw an IOException as many times as the count.
+    private static class MockInputPlugin
+            implements InputPlugin
+    {
+        private final int taskCount;
+        private final int recordsPerTask;
+        final Set<Integer> failingTasks = Sets.newConcurrentHashSet();
+        final Set<Integer> blockingTasks = Sets.newConcurrentHashSet();
+        final Set<Integer> startedTasks = Sets.newConcurrentHashSet();
+        final Set<Integer> interruptedTasks = Sets.newConcurrentHashSet();
+        final Map<Integer, AtomicInteger> retryableFailures = new ConcurrentHashMap<Integer, AtomicInteger>();
+        final Map<Integer, AtomicInteger> runCounts = new ConcurrentHashMap<Integer, AtomicInteger>();
+        final List<Integer> startOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        CountDownLatch failLatch = new CountDownLatch(0);
+        List<CommitReport> commitReports;
+
+        public MockInputPlugin(int taskCount, int recordsPerTask)
+        {
+            this.taskCount = taskCount;
+            this.recordsPerTask = recordsPerTask;
+        }
+
+        @Override
+        public ConfigDiff transaction(ConfigSource config, InputPlugin.Control control)
+        {
+            return resume(Exec.newTaskSource(), SCHEMA, taskCount, control);
+        }
+
+        @Override
+        public ConfigDiff resume(TaskSource taskSource, Schema schema, int processorCount,
+                InputPlugin.Control control)
+        {
+            commitReports = control.run(taskSource, schema, processorCount);
+            return Exec.newConfigDiff();
+        }
+
+        @Override
+        public void cleanup(TaskSource taskSource, Schema schema, int processorCount,
+                List<CommitReport> successCommitReports)
+        { }
+
+        @Override
+        public CommitReport run(TaskSource taskSource, Schema schema, int processorIndex,
+                PageOutput output)
+        {
+            startedTasks.add(processorIndex);
+            startOrder.add(processorIndex);
+            runCounts.putIfAbsent(processorIndex, new AtomicInteger());
+            runCounts.get(processorIndex).incrementAndGet();
+            try (PageBuilder builder = new PageBuilder(Exec.getBufferAllocator(), schema, output)) {
+                for (int i=0; i < recordsPerTask; i++) {
+                    long id = processorIndex * 1000L + i;
+                    builder.setLong(0, id);
+                    builder.setString(1, "key" + (id % 7));
+                    builder.addRecord();
+                }
+                if (blockingTasks.contains(processorIndex)) {
+                    waitForInterrupt(processorIndex);
+                }
+                if (failingTasks.contains(processorIndex)) {
+                    awaitLatch(failLatch);
+                    throw new IllegalStateException("task " + processorIndex + " failed");
+                }
+                AtomicInteger failures = retryableFailures.get(processorIndex);
+                if (failures != null && failures.getAndDecrement() > 0) {
+                    throw new RuntimeException(new IOException("task " + processorIndex + " failed"));
+                }
+                builder.finish();
+            }
+            return Exec.newCommitReport().set("index", processorIndex);
+        }
+
+        private void waitForInterrupt(int processorIndex)
+        {
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException ex) {
+                interruptedTasks.add(processorIndex);
+                throw new ExecutionInterruptedException(ex);
+            }
+            throw new IllegalStateException("task " + processorIndex + " is not interrupted");
+        }
+    }
+
+    // cost of task i is costs[i]
+    private static class CostedInputPlugin
+            extends MockInputPlugin
+            implements TaskCostEstimator
+    {
+        private final List<Long> costs;
+
+        public CostedInputPlugin(int recordsPerTask, List<Long> costs)
+        {
+            super(costs.size(), recordsPerTask);
+            this.costs = costs;
+        }
+
+        @Override
+        public List<Long> estimateTaskCosts(TaskSource taskSource, int processorCount)
+        {
+            return costs;
+        }
+    }
+
+    // collects ids of the records written to each output task
+    private static class MockOutputPlugin
+            implements OutputPlugin
+    {
+        final Map<Integer, List<Long>> committed = new ConcurrentHashMap<Integer, List<Long>>();
+        final Set<Integer> aborted = Sets.newConcurrentHashSet();
+        CountDownLatch commitLatch = new CountDownLatch(0);
+        List<CommitReport> commitReports;
+
+        @Override
+        public ConfigDiff transaction(ConfigSource config, Schema schema, int processorCount,
+                OutputPlugin.Control control)
+        {
+            return resume(Exec.newTaskSource(), schema, processorCount, control);
+        }
+
+        @Override
+        public ConfigDiff resume(TaskSource taskSource, Schema schema, int processorCount,
+                OutputPlugin.Control control)
+        {
+            commitReports = control.run(taskSource);
+            return Exec.newConfigDiff();
+        }
+
+        @Override
+        public void cleanup(TaskSource taskSource, Schema schema, int processorCount,
+                List<CommitReport> successCommitReports)
+        { }
+
+        @Override
+        public TransactionalPageOutput open(TaskSource taskSource, final Schema schema, final int processorIndex)
+        {
+            return new TransactionalPageOutput() {
+                private final List<Long> ids = new ArrayList<Long>();
+                private final PageReader reader = new PageReader(schema);
+
+                public void add(Page page)
+                {
+                    reader.setPage(page);
+                    while (reader.nextRecord()) {
+                        ids.add(reader.getLong(0));
+                    }
+                }
+
+                public void finish()
+                { }
+
+                public void close()
+                {
+                    reader.close();
+                }
+
+                public void abort()
+                {
+                    aborted.add(processorIndex);
+                }
+
+                public CommitReport commit()
+                {
+                    committed.put(processorIndex, ids);
+                    commitLatch.countDown();
+                    return Exec.newCommitReport().set("records", ids.size());
+                }
+            };
+        }
+    }
+
+    private LocalExecutor newExecutor(ConfigSource systemConfig,
+            final MockInputPlugin input, final MockOutputPlugin output)
+    {
+        return new LocalExecutor(runtime.getInjector(), systemConfig, new MemoryBudget(systemConfig)) {
+            @Override
+            protected InputPlugin newInputPlugin(ExecutorTask task)
+            {
+                return input;
+            }
+
+            @Override
+            protected OutputPlugin newOutputPlugin(ExecutorTask task)
+            {
+                return output;
+            }
+        };
+    }
+
+    private ConfigSource newConfig()
+    {
+        return runtime.getExec().newConfigSource()
+            .set("in", ImmutableMap.of("type", "mock"))
+            .set("out", ImmutableMap.of("type", "mock"));
+    }
+
+    private static List<Long> expectedIds(int recordsPerTask, int... tasks)
+    {
+        List<Long> ids = new ArrayList<Long>();
+        for (int task : tasks) {
+            for (int i=0; i < recordsPerTask; i++) {
+                ids.add(task * 1000L + i);
+            }
+        }
+        return ids;
+    }
+
+    private static List<Long> sorted(List<Long> ids)
+    {
+        List<Long> copy = new ArrayList<Long>(ids);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private static void awaitLatch(CountDownLatch latch)
+    {
+        try {
+            if (!latch.await(30, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("timed out");
+            }
+        } catch (InterruptedException ex) {
+            throw new ExecutionInterruptedException(ex);
+        }
+    }
+
+    @Test
+    public void testFailFastInterruptsRunningTasks()
+    {
+        MockInputPlugin input = new MockInputPlugin(8, 10);
+        MockOutputPlugin output = new MockOutputPlugin();
+        // task 3 fails after tasks 0 and 1 commit. The others wait until they're
+        // interrupted, or return without running if they're not started
+        input.failingTasks.add(3);
+        input.failLatch = output.commitLatch = new CountDownLatch(2);
+        input.blockingTasks.addAll(Sets.newHashSet(2, 4, 5, 6, 7));
+
+        ConfigSource systemConfig = runtime.getExec().newConfigSource()
+            .set("fail_fast", true)
+            .set("max_threads", 4);
+        try {
+            newExecutor(systemConfig, input, output).run(runtime.getExec(), newConfig());
+            fail();
+        } catch (PartialExecutionException ex) {
+            // the exception of the task that failed first is the cause
+            assertEquals("task 3 failed", ex.getCause().getMessage());
+
+            // running tasks are interrupted
+            assertTrue(input.startedTasks.contains(2));
+            assertEquals(Sets.difference(input.startedTasks, Sets.newHashSet(0, 1, 3)), input.interruptedTasks);
+
+            // only the committed tasks are in the resume state
+            ResumeState resume = ex.getResumeState();
+            for (int i=0; i < 8; i++) {
+                if (i == 0 || i == 1) {
+                    assertEquals(i, (int) resume.getInputCommitReports().get(i).get(Integer.class, "index"));
+                    assertEquals(10, (int) resume.getOutputCommitReports().get(i).get(Integer.class, "records"));
+                } else {
+                    assertNull(resume.getInputCommitReports().get(i));
+                    assertNull(resume.getOutputCommitReports().get(i));
+                }
+            }
+            assertEquals(Sets.newHashSet(0, 1), output.committed.keySet());
+            assertEquals(input.interruptedTasks.size() + 1, output.aborted.size());
+        }
+    }
+
+    @Test
+    public void testCommitReportsOfEachTask()
+    {
+        MockInputPlugin input = new MockInputPlugin(4, 10);
+        MockOutputPlugin output = new MockOutputPlugin();
+        newExecutor(runtime.getExec().newConfigSource(), input, output).run(runtime.getExec(), newConfig());
+
+        assertEquals(4, input.commitReports.size());
+        assertEquals(4, output.commitReports.size());
+        for (int i=0; i < 4; i++) {
+            assertEquals(i, (int) input.commitReports.get(i).get(Integer.class, "index"));
+            assertEquals(10, (int) output.commitReports.get(i).get(Integer.class, "records"));
+            assertEquals(expectedIds(10, i), output.committed.get(i));
+        }
+        assertTrue(output.aborted.isEmpty());
+    }
+
+    @Test
+    public void testResumeRunsOnlyFailedTasks()
+    {
+        MockInputPlugin input = new MockInputPlugin(4, 10);
+        MockOutputPlugin output = new MockOutputPlugin();
+        input.failingTasks.add(2);
+        LocalExecutor executor = newExecutor(runtime.getExec().newConfigSource(), input, output);
+
+        ResumeState resume = null;
+        try {
+            executor.run(runtime.getExec(), newConfig());
+            fail();
+        } catch (PartialExecutionException ex) {
+            assertEquals("task 2 failed", ex.getCause().getMessage());
+            resume = ex.getResumeState();
+        }
+        // the other tasks run to the end without fail_fast
+        assertEquals(Sets.newHashSet(0, 1, 3), output.committed.keySet());
+        assertEquals(Sets.newHashSet(2), output.aborted);
+        for (int i=0; i < 4; i++) {
+            if (i == 2) {
+                assertNull(resume.getInputCommitReports().get(i));
+                assertNull(resume.getOutputCommitReports().get(i));
+            } else {
+                assertNotNull(resume.getInputCommitReports().get(i));
+                assertNotNull(resume.getOutputCommitReports().get(i));
+            }
+        }
+
+        input.failingTasks.clear();
+        input.startedTasks.clear();
+        executor.resume(newConfig(), resume);
+
+        assertEquals(Sets.newHashSet(2), input.startedTasks);
+        assertEquals(Sets.newHashSet(0, 1, 2, 3), output.committed.keySet());
+        for (int i=0; i < 4; i++) {
+            assertEquals(i, (int) input.commitReports.get(i).get(Integer.class, "index"));
+            assertEquals(10, (int) output.commitReports.get(i).get(Integer.class, "records"));
+        }
+    }
+
+    @Test
+    public void testMaxOutputTasks()
+    {
+        MockInputPlugin input = new MockInputPlugin(5, 10);
+        MockOutputPlugin output = new MockOutputPlugin();
+        ConfigSource systemConfig = runtime.getExec().newConfigSource()
+            .set("max_output_tasks", 2);
+        newExecutor(systemConfig, input, output).run(runtime.getExec(), newConfig());
+
+        // input task i writes to output task i % 2
+        assertEquals(5, input.commitReports.size());
+        assertEquals(2, output.commitReports.size());
+        assertEquals(30, (int) output.commitReports.get(0).get(Integer.class, "records"));
+        assertEquals(20, (int) output.commitReports.get(1).get(Integer.class, "records"));
+        assertEquals(expectedIds(10, 0, 2, 4), sorted(output.committed.get(0)));
+        assertEquals(expectedIds(10, 1, 3), sorted(output.committed.get(1)));
+    }
+
+    @Test
+    public void testFailedInputTaskAbortsSharedOutputTask()
+    {
+        MockInputPlugin input = new MockInputPlugin(4, 10);
+        MockOutputPlugin output = new MockOutputPlugin();
+        input.failingTasks.add(1);
+        ConfigSource systemConfig = runtime.getExec().newConfigSource()
+            .set("max_output_tasks", 2);
+        LocalExecutor executor = newExecutor(systemConfig, input, output);
+
+        ResumeState resume = null;
+        try {
+            executor.run(runtime.getExec(), newConfig());
+            fail();
+        } catch (PartialExecutionException ex) {
+            resume = ex.getResumeState();
+        }
+        // output task 1 is shared by input tasks 1 and 3
+        assertEquals(Sets.newHashSet(0), output.committed.keySet());
+        assertEquals(Sets.newHashSet(1), output.aborted);
+        assertNotNull(resume.getOutputCommitReports().get(0));
+        assertNull(resume.getOutputCommitReports().get(1));
+
+        // resuming runs all input tasks of the output task again
+        input.failingTasks.clear();
+        input.startedTasks.clear();
+        executor.resume(newConfig(), resume);
+
+        assertEquals(Sets.newHashSet(1, 3), input.startedTasks);
+        assertEquals(expectedIds(10, 1, 3), sorted(output.committed.get(1)));
+    }
+
+    @Test
+    public void testHashPartitionKeys()
+    {
+        MockInputPlugin input = new MockInputPlugin(4, 50);
+        MockOutputPlugin output = new MockOutputPlugin();
+        ConfigSource systemConfig = runtime.getExec().newConfigSource()
+            .set("max_output_tasks", 3)
+            .set("hash_partition_keys", ImmutableList.of("key"));
+        newExecutor(systemConfig, input, output).run(runtime.getExec(), newConfig());
+
+        assertEquals(3, output.commitReports.size());
+        List<Long> all = new ArrayList<Long>();
+        Map<Long, Integer> outputOfKey = new ConcurrentHashMap<Long, Integer>();
+        for (Map.Entry<Integer, List<Long>> entry : output.committed.entrySet()) {
+            for (long id : entry.getValue()) {
+                // all records of a key are written to the same output task
+                Integer previous = outputOfKey.put(id % 7, entry.getKey());
+                assertTrue(previous == null || previous.equals(entry.getKey()));
+            }
+            all.addAll(entry.getValue());
+        }
+        assertEquals(expectedIds(50, 0, 1, 2, 3), sorted(all));
+    }
+
+    @Test
+    public void testSortColumns()
+    {
+        MockInputPlugin input = new MockInputPlugin(3, 20);
+        MockOutputPlugin output = new MockOutputPlugin();
+        ConfigSource systemConfig = runtime.getExec().newConfigSource()
+            .set("max_output_tasks", 1)
+            .set("sort_columns", ImmutableList.of(ImmutableMap.of("name", "id", "order", "desc")));
+        newExecutor(systemConfig, input, output).run(runtime.getExec(), newConfig());
+
+        List<Long> expected = expectedIds(20, 0, 1, 2);
+        Collections.sort(expected, Collections.reverseOrder());
+        assertEquals(expected, output.committed.get(0));
+    }
+
+    @Test
+    public void testRetryFailedTask()
+    {
+        MockInputPlugin input = new MockInputPlugin(3, 10);
+        MockOutputPlugin output = new MockOutputPlugin();
+        input.retryableFailures.put(1, new AtomicInteger(2));
+        ConfigSource systemConfig = runtime.getExec().newConfigSource()
+            .set("task_retry_limit", 2)
+            .set("task_retry_initial_wait_millis", 1);
+        newExecutor(systemConfig, input, output).run(runtime.getExec(), newConfig());
+
+        assertEquals(3, input.runCounts.get(1).get());
+        assertEquals(1, input.runCounts.get(0).get());
+        assertEquals(Sets.newHashSet(0, 1, 2), output.committed.keySet());
+        assertEquals(expectedIds(10, 1), output.committed.get(1));
+        // outputs of the failed attempts are aborted
+        assertEquals(Sets.newHashSet(1), output.aborted);
+    }
+
+    @Test
+    public void testRetryLimit()
+    {
+        MockInputPlugin input = new MockInputPlugin(3, 10);
+        MockOutputPlugin output = new MockOutputPlugin();
+        input.retryableFailures.put(1, new AtomicInteger(3));
+        ConfigSource systemConfig = runtime.getExec().newConfigSource()
+            .set("task_retry_limit", 2)
+            .set("task_retry_initial_wait_millis", 1);
+        try {
+            newExecutor(systemConfig, input, output).run(runtime.getExec(), newConfig());
+            fail();
+        } catch (PartialExecutionException ex) {
+            assertTrue(ex.getCause().getCause() instanceof IOException);
+        }
+        assertEquals(3, input.runCounts.get(1).get());
+        assertEquals(Sets.newHashSet(0, 2), output.committed.keySet());
+    }
+
+    @Test
+    public void testInterruptAbortsOutputTasksOfTasksNotSubmitted()
+        throws Exception
+    {
+        // with max_threads: 1, only 2 tasks are submitted at a time. Output task 0
+        // is shared by input tasks 0, 2, 4, 6 and 8
+        final MockInputPlugin input = new MockInputPlugin(10, 10);
+        final MockOutputPlugin output = new MockOutputPlugin();
+        input.blockingTasks.add(0);
+        ConfigSource systemConfig = runtime.getExec().newConfigSource()
+            .set("max_threads", 1)
+            .set("max_output_tasks", 2);
+        final LocalExecutor executor = newExecutor(systemConfig, input, output);
+        final ConfigSource config = newConfig();
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread thread = new Thread() {
+            public void run()
+            {
+                try {
+                    executor.run(runtime.getExec(), config);
+                } catch (Throwable ex) {
+                    error.set(ex);
+                }
+            }
+        };
+        thread.start();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (!input.startedTasks.contains(0)) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        thread.interrupt();
+        thread.join(TimeUnit.SECONDS.toMillis(30));
+
+        assertTrue(error.get() instanceof PartialExecutionException);
+        assertEquals(Sets.newHashSet(0), input.startedTasks);
+        assertEquals(Sets.newHashSet(0), input.interruptedTasks);
+        // output task 1 is never opened
+        assertTrue(output.committed.isEmpty());
+        assertEquals(Sets.newHashSet(0), output.aborted);
+    }
+
+    @Test
+    public void testLargestTaskFirst()
+    {
+        // a thread runs the tasks in the order they're submitted
+        ConfigSource systemConfig = runtime.getExec().newConfigSource()
+            .set("max_threads", 1);
+        CostedInputPlugin input = new CostedInputPlugin(10, ImmutableList.of(1L, 3L, 2L, 3L));
+        newExecutor(systemConfig, input, new MockOutputPlugin()).run(runtime.getExec(), newConfig());
+        // disabled by default
+        assertEquals(ImmutableList.of(0, 1, 2, 3), input.startOrder);
+
+        systemConfig.set("largest_task_first", true);
+        input = new CostedInputPlugin(10, ImmutableList.of(1L, 3L, 2L, 3L));
+        MockOutputPlugin output = new MockOutputPlugin();
+        newExecutor(systemConfig, input, output).run(runtime.getExec(), newConfig());
+        assertEquals(ImmutableList.of(1, 3, 2, 0), input.startOrder);
+        // commit reports are in index order
+        for (int i=0; i < 4; i++) {
+            assertEquals(i, (int) input.commitReports.get(i).get(Integer.class, "index"));
+        }
+    }
+}
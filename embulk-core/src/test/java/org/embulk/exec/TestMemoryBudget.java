@@ -0,0 +1,180 @@
+package org.embulk.exec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Buffer;
+
+public class TestMemoryBudget
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private MemoryBudget newBudget(long hardLimit, long softLimit)
+    {
+        return new MemoryBudget(runtime.getExec().newConfigSource()
+                .set("buffer_memory_limit", hardLimit)
+                .set("buffer_memory_soft_limit", softLimit)
+                .set("buffer_memory_throttle_millis", 10));
+    }
+
+    @Test
+    public void testUnlimited()
+    {
+        MemoryBudget budget = new MemoryBudget(runtime.getExec().newConfigSource());
+        assertEquals(false, budget.isLimited());
+        budget.reserve(1L << 40);
+        assertEquals(1L << 40, budget.getUsage());
+        budget.release(1L << 40);
+        assertEquals(0L, budget.getUsage());
+        assertEquals(1L << 40, budget.getPeakUsage());
+    }
+
+    @Test
+    public void testAllowsLargeBufferIfEmpty()
+    {
+        MemoryBudget budget = newBudget(100, 0);
+        budget.reserve(200);
+        assertEquals(200L, budget.getUsage());
+        budget.release(200);
+    }
+
+    @Test
+    public void testSoftLimitThrottles()
+    {
+        MemoryBudget budget = newBudget(100, 50);
+        budget.reserve(40);
+        long start = System.nanoTime();
+        budget.reserve(60);  // exceeds soft limit up to hard limit
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(100L, budget.getUsage());
+    }
+
+    @Test
+    public void testThrottleGrowsWithExcess()
+    {
+        MemoryBudget budget = new MemoryBudget(runtime.getExec().newConfigSource()
+                .set("buffer_memory_limit", 101000)
+                .set("buffer_memory_soft_limit", 1000)
+                .set("buffer_memory_throttle_millis", 1000));
+        budget.reserve(1000);
+
+        // slightly over the soft limit. These reservations don't wait 1 ms
+        long start = System.nanoTime();
+        for (int i=0; i < 99; i++) {
+            budget.reserve(1);
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+        // half way to the hard limit waits half of buffer_memory_throttle_millis
+        start = System.nanoTime();
+        budget.reserve(49901);
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(1000));
+        assertEquals(51000L, budget.getUsage());
+    }
+
+    @Test
+    public void testThrottleEndsWhenBufferIsReleased() throws Exception
+    {
+        final MemoryBudget budget = new MemoryBudget(runtime.getExec().newConfigSource()
+                .set("buffer_memory_soft_limit", 100)
+                .set("buffer_memory_throttle_millis", 60000));
+
+        // a producer reserving over the soft limit proceeds as fast as a consumer releases
+        budget.reserve(100);
+        final CountDownLatch produced = new CountDownLatch(1);
+        Thread consumer = new Thread() {
+            public void run()
+            {
+                try {
+                    while (!produced.await(1, TimeUnit.MILLISECONDS)) {
+                        synchronized (budget) {
+                            if (budget.getUsage() >= 10) {
+                                budget.release(10);
+                            }
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    // finish
+                }
+            }
+        };
+        consumer.start();
+        long start = System.nanoTime();
+        for (int i=0; i < 100; i++) {
+            budget.reserve(10);
+        }
+        produced.countDown();
+        consumer.join();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @Test
+    public void testHardLimitBlocksUntilRelease() throws Exception
+    {
+        final MemoryBudget budget = newBudget(100, 0);
+        budget.reserve(80);
+
+        final CountDownLatch reserved = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            public void run()
+            {
+                budget.reserve(40);
+                reserved.countDown();
+            }
+        };
+        thread.start();
+
+        assertEquals(false, reserved.await(100, TimeUnit.MILLISECONDS));
+        budget.release(80);
+        assertEquals(true, reserved.await(10, TimeUnit.SECONDS));
+        thread.join();
+        assertEquals(40L, budget.getUsage());
+    }
+
+    @Test
+    public void testHardLimitFailsIfNoBuffersAreReleased()
+    {
+        MemoryBudget budget = new MemoryBudget(runtime.getExec().newConfigSource()
+                .set("buffer_memory_limit", 100)
+                .set("buffer_memory_wait_timeout_millis", 50));
+        budget.reserve(80);
+        try {
+            budget.reserve(40);
+            fail();
+        } catch (IllegalStateException ex) {
+            assertTrue(ex.getMessage().contains("Usage is 80 bytes and buffer_memory_limit is 100 bytes"));
+        }
+        assertEquals(80L, budget.getUsage());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testSoftLimitLargerThanHardLimit()
+    {
+        newBudget(100, 200);
+    }
+
+    @Test
+    public void testPooledBufferAllocatorUsage()
+    {
+        MemoryBudget budget = newBudget(1024*1024, 0);
+        PooledBufferAllocator allocator = new PooledBufferAllocator(runtime.getExec().newConfigSource()
+                .set("io_buffer_size", 64*1024)
+                .set("page_buffer_size", 32*1024), budget);
+
+        Buffer io = allocator.allocate();
+        Buffer page = allocator.allocate(100);
+        assertEquals(96L*1024, budget.getUsage());
+        io.release();
+        page.release();
+        assertEquals(0L, budget.getUsage());
+    }
+}
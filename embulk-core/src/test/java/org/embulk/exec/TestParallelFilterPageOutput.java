@@ -0,0 +1,226 @@
+package org.embulk.exec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.collect.ImmutableList;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.spi.FilterPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.ParallelFilterSupport;
+import org.embulk.spi.Schema;
+
+public class TestParallelFilterPageOutput
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup()
+    {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void destroy()
+    {
+        executor.shutdownNow();
+    }
+
+    // increments the first byte. Pages of even numbers are duplicated.
+    private static class IncrementFilterPlugin
+            implements FilterPlugin, ParallelFilterSupport
+    {
+        private final Random random = new Random();
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+
+        @Override
+        public void transaction(ConfigSource config, Schema inputSchema,
+                FilterPlugin.Control control)
+        {
+            control.run(Exec.newTaskSource(), inputSchema);
+        }
+
+        @Override
+        public boolean isParallelFilterSupported(TaskSource taskSource)
+        {
+            return true;
+        }
+
+        @Override
+        public PageOutput open(TaskSource taskSource, Schema inputSchema,
+                Schema outputSchema, final PageOutput output)
+        {
+            opened.incrementAndGet();
+            return new PageOutput() {
+                public void add(Page page)
+                {
+                    byte b = page.buffer().getByte(0);
+                    page.release();
+                    try {
+                        // finishes out of order
+                        Thread.sleep(random.nextInt(3));
+                    } catch (InterruptedException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    if (b == 100) {
+                        throw new IllegalStateException("failed");
+                    }
+                    output.add(newPage(b + 1));
+                    if (b % 2 == 0) {
+                        output.add(newPage(b + 1));
+                    }
+                }
+
+                public void finish()
+                {
+                    output.finish();
+                }
+
+                public void close()
+                {
+                    closed.incrementAndGet();
+                    output.close();
+                }
+            };
+        }
+    }
+
+    private static class RecordingOutput
+            implements PageOutput
+    {
+        private final List<Byte> values = new ArrayList<Byte>();
+        private boolean finished;
+        private boolean closed;
+
+        @Override
+        public void add(Page page)
+        {
+            values.add(page.buffer().getByte(0));
+            page.release();
+        }
+
+        @Override
+        public void finish()
+        {
+            finished = true;
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+    private static Page newPage(int i)
+    {
+        Buffer buffer = Buffer.allocate(4);
+        buffer.setByte(0, (byte) i);
+        return Page.wrap(buffer.limit(4));
+    }
+
+    private ParallelFilterPageOutput newOutput(PageOutput next)
+    {
+        return newOutput(next, new IncrementFilterPlugin());
+    }
+
+    private ParallelFilterPageOutput newOutput(PageOutput next, IncrementFilterPlugin plugin)
+    {
+        Schema schema = PageTestUtils.newSchema();
+        return new ParallelFilterPageOutput(
+                ImmutableList.<FilterPlugin>of(plugin, plugin),
+                ImmutableList.of(Exec.newTaskSource(), Exec.newTaskSource()),
+                ImmutableList.of(schema, schema, schema),
+                next, executor, 8);
+    }
+
+    @Test
+    public void testPassPagesInOrder()
+    {
+        RecordingOutput next = new RecordingOutput();
+        IncrementFilterPlugin plugin = new IncrementFilterPlugin();
+        try (ParallelFilterPageOutput output = newOutput(next, plugin)) {
+            // values stay below 100, which fails
+            for (int i=0; i < 45; i++) {
+                output.add(newPage(i * 2 + 1));
+            }
+            output.finish();
+        }
+        assertTrue(next.finished);
+        assertTrue(next.closed);
+
+        // a chain of 2 filters is opened for each thread at most, and closed
+        assertTrue(plugin.opened.get() <= 2 * 4);
+        assertEquals(plugin.opened.get(), plugin.closed.get());
+
+        // odd x => x+1 => [x+2, x+2]
+        List<Byte> expected = new ArrayList<Byte>();
+        for (int i=0; i < 45; i++) {
+            expected.add((byte) (i * 2 + 3));
+            expected.add((byte) (i * 2 + 3));
+        }
+        assertEquals(expected, next.values);
+    }
+
+    @Test
+    public void testException()
+    {
+        RecordingOutput next = new RecordingOutput();
+        IncrementFilterPlugin plugin = new IncrementFilterPlugin();
+        try (ParallelFilterPageOutput output = newOutput(next, plugin)) {
+            for (int i=0; i < 50; i++) {
+                output.add(newPage(i + 90));
+            }
+            output.finish();
+            fail();
+        } catch (IllegalStateException ex) {
+            assertEquals("failed", ex.getMessage());
+        }
+        assertFalse(next.finished);
+        assertTrue(next.closed);
+        assertEquals(plugin.opened.get(), plugin.closed.get());
+    }
+
+    @Test
+    public void testIsSupported()
+    {
+        List<TaskSource> taskSources = ImmutableList.of(Exec.newTaskSource());
+        assertTrue(ParallelFilterPageOutput.isSupported(
+                    ImmutableList.<FilterPlugin>of(new IncrementFilterPlugin()), taskSources));
+        assertFalse(ParallelFilterPageOutput.isSupported(
+                    ImmutableList.<FilterPlugin>of(), ImmutableList.<TaskSource>of()));
+
+        FilterPlugin statefulPlugin = new FilterPlugin() {
+            public void transaction(ConfigSource config, Schema inputSchema, FilterPlugin.Control control)
+            { }
+
+            public PageOutput open(TaskSource taskSource, Schema inputSchema, Schema outputSchema, PageOutput output)
+            {
+                return output;
+            }
+        };
+        assertFalse(ParallelFilterPageOutput.isSupported(
+                    ImmutableList.of(statefulPlugin), taskSources));
+    }
+}
@@ -0,0 +1,219 @@
+package org.embulk.exec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.ExecutionInterruptedException;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+
+public class TestPipelinedPageOutput
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setup()
+    {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void destroy()
+    {
+        executor.shutdownNow();
+    }
+
+    private static class RecordingOutput
+            implements PageOutput
+    {
+        private final List<Page> pages = new ArrayList<Page>();
+        private final List<Thread> threads = new ArrayList<Thread>();
+        private volatile boolean finished;
+        private volatile boolean closed;
+
+        @Override
+        public void add(Page page)
+        {
+            pages.add(page);
+            threads.add(Thread.currentThread());
+        }
+
+        @Override
+        public void finish()
+        {
+            finished = true;
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+    private static Page newPage(int i)
+    {
+        Buffer buffer = Buffer.allocate(4);
+        buffer.setByte(0, (byte) i);
+        return Page.wrap(buffer.limit(4));
+    }
+
+    @Test
+    public void testPassPagesInOrder()
+    {
+        RecordingOutput next = new RecordingOutput();
+        PipelinedPageOutput output = new PipelinedPageOutput(next, 4, executor);
+        for (int i=0; i < 1000; i++) {
+            output.add(newPage(i));
+        }
+        output.finish();
+        output.join();
+
+        assertTrue(next.finished);
+        assertFalse(next.closed);
+        assertEquals(1000, next.pages.size());
+        for (int i=0; i < 1000; i++) {
+            assertEquals((byte) i, next.pages.get(i).buffer().getByte(0));
+            assertTrue(next.threads.get(i) != Thread.currentThread());
+        }
+
+        output.close();
+        assertTrue(next.closed);
+    }
+
+    @Test
+    public void testBackPressure() throws Exception
+    {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingOutput next = new RecordingOutput() {
+            @Override
+            public void add(Page page)
+            {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                super.add(page);
+            }
+        };
+        final PipelinedPageOutput output = new PipelinedPageOutput(next, 2, executor);
+        final CountDownLatch added = new CountDownLatch(1);
+        executor.submit(new Runnable() {
+            public void run()
+            {
+                // 1 page is taken by the blocked output and 2 pages are queued
+                for (int i=0; i < 4; i++) {
+                    output.add(newPage(i));
+                }
+                added.countDown();
+            }
+        });
+
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(added.await(10, TimeUnit.SECONDS));
+        output.join();
+        assertEquals(4, next.pages.size());
+    }
+
+    @Test
+    public void testOutputException()
+    {
+        RecordingOutput next = new RecordingOutput() {
+            @Override
+            public void add(Page page)
+            {
+                throw new IllegalArgumentException("output failed");
+            }
+        };
+        PipelinedPageOutput output = new PipelinedPageOutput(next, 2, executor);
+        try {
+            for (int i=0; i < 100; i++) {
+                output.add(newPage(i));
+            }
+            output.join();
+            fail();
+        } catch (IllegalArgumentException ex) {
+            assertEquals("output failed", ex.getMessage());
+        }
+        output.cancel();
+        output.close();
+        assertTrue(next.closed);
+        assertFalse(next.finished);
+    }
+
+    @Test
+    public void testCancel()
+    {
+        RecordingOutput next = new RecordingOutput();
+        PipelinedPageOutput output = new PipelinedPageOutput(next, 1024, executor);
+        output.add(newPage(0));
+        output.cancel();
+        output.close();
+        assertTrue(next.pages.size() <= 1);
+        assertFalse(next.finished);
+        assertTrue(next.closed);
+    }
+
+    @Test
+    public void testCancelInterruptsAndWaitsForConsumer() throws Exception
+    {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        RecordingOutput next = new RecordingOutput() {
+            @Override
+            public void add(Page page)
+            {
+                blocked.countDown();
+                try {
+                    // blocks until interrupted like output I/O in progress
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException ex) {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException ignored) {
+                    }
+                    interrupted.countDown();
+                    throw new ExecutionInterruptedException(ex);
+                }
+            }
+
+            @Override
+            public void close()
+            {
+                // the consumer exited before the next output is closed
+                assertEquals(0, interrupted.getCount());
+                super.close();
+            }
+        };
+        PipelinedPageOutput output = new PipelinedPageOutput(next, 4, executor);
+        output.add(newPage(0));
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+        // the producer is interrupted, e.g. by fail-fast
+        Thread.currentThread().interrupt();
+        output.close();
+        assertTrue(Thread.interrupted());
+        assertTrue(next.closed);
+    }
+}
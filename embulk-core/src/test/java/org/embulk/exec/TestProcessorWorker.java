@@ -0,0 +1,151 @@
+package org.embulk.exec;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import com.google.common.collect.ImmutableList;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ModelManager;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Schema;
+import org.embulk.exec.ProcessorWorker.ExceptionInfo;
+import org.embulk.exec.ProcessorWorker.TaskResult;
+
+public class TestProcessorWorker
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private TaskResult copy(TaskResult result)
+    {
+        ModelManager model = runtime.getModelManager();
+        return model.readObject(TaskResult.class, model.writeObject(result));
+    }
+
+    @Test
+    public void testCommittedResult()
+    {
+        TaskResult result = copy(new TaskResult(Exec.newCommitReport().set("records", 10), Exec.newCommitReport(), null));
+        assertTrue(result.isCommitted());
+        assertEquals(10, (int) result.getInputCommitReport().get(Integer.class, "records"));
+        assertNull(result.getException());
+    }
+
+    @Test
+    public void testException()
+    {
+        IOException original = new IOException("failed", new IllegalStateException());
+        TaskResult result = copy(new TaskResult(null, null, ExceptionInfo.of(original)));
+        assertFalse(result.isCommitted());
+
+        // class names are kept so that the task is retried by the class
+        RemoteTaskException exception = result.getException();
+        assertEquals(IOException.class.getName(), exception.getClassNames().get(0));
+        assertTrue(exception.getClassNames().contains(Exception.class.getName()));
+        assertEquals("failed", exception.getMessage());
+        assertEquals("java.io.IOException: failed", exception.toString());
+        assertEquals(original.getStackTrace()[0].toString(), exception.getStackTrace()[0].toString());
+
+        RemoteTaskException cause = (RemoteTaskException) exception.getCause();
+        assertEquals(IllegalStateException.class.getName(), cause.getClassNames().get(0));
+        assertNull(cause.getCause());
+    }
+
+    private Thread startWorker(final ServerSocket server, String secret)
+    {
+        final ProcessorWorker worker = new ProcessorWorker(runtime.getInjector(), secret);
+        Thread thread = new Thread(new Runnable() {
+            public void run()
+            {
+                try {
+                    worker.listen(server);
+                } catch (IOException ex) {
+                    // closed
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private ProcessorWorkerPool newPool(ServerSocket server, String secret)
+    {
+        return new ProcessorWorkerPool(runtime.getExec().newConfigSource()
+                .set("worker_hosts", ImmutableList.of("127.0.0.1:" + server.getLocalPort()))
+                .set("worker_threads", 1)
+                .set("worker_secret", secret),
+                runtime.getInjector());
+    }
+
+    @Test
+    public void testRunOnLocalhostWorker()
+            throws Exception
+    {
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread thread = startWorker(server, "secret");
+        try {
+            ProcessorWorkerPool workers = newPool(server, "secret");
+            assertTrue(workers.isEnabled());
+
+            // the task fails on the worker because the task source has no tasks
+            TaskResult result = workers.run(runtime.getExec(), Exec.newTaskSource(), ImmutableList.<Schema>of(), 0);
+            assertFalse(result.isCommitted());
+            assertTrue(result.getException().getMessage().contains("is required but not set"));
+
+            // the connection is reused
+            result = workers.run(runtime.getExec(), Exec.newTaskSource(), ImmutableList.<Schema>of(), 1);
+            assertTrue(result.getException().getMessage().contains("is required but not set"));
+        } finally {
+            server.close();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testSecretIsRequired()
+    {
+        try {
+            new ProcessorWorker(runtime.getInjector(), null);
+            fail();
+        } catch (ConfigException ex) {
+            // a worker listening on a loopback address requires a secret too
+        }
+        try {
+            new ProcessorWorkerPool(runtime.getExec().newConfigSource()
+                    .set("worker_hosts", ImmutableList.of("127.0.0.1:8867")),
+                    runtime.getInjector());
+            fail();
+        } catch (ConfigException ex) {
+            assertEquals("worker_hosts requires worker_secret", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testWrongSecret()
+            throws Exception
+    {
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread thread = startWorker(server, "secret");
+        try {
+            ProcessorWorkerPool workers = newPool(server, "wrong");
+            try {
+                workers.run(runtime.getExec(), Exec.newTaskSource(), ImmutableList.<Schema>of(), 0);
+                fail();
+            } catch (RuntimeException ex) {
+                // the worker closed the connection
+                assertTrue(ex.getCause() instanceof IOException);
+            }
+        } finally {
+            server.close();
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.embulk.exec;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestStragglerDetector
+{
+    @Test
+    public void testMedian()
+    {
+        StragglerDetector detector = new StragglerDetector(2.0, 0, 1);
+        assertEquals(0.0, detector.getMedianMillisPerCost(), 0.0);
+
+        detector.addCompleted(10, 100);  // 10 ms per cost
+        assertEquals(10.0, detector.getMedianMillisPerCost(), 0.0);
+        detector.addCompleted(1, 30);  // 30 ms per cost
+        assertEquals(20.0, detector.getMedianMillisPerCost(), 0.0);
+        detector.addCompleted(100, 500);  // 5 ms per cost
+        assertEquals(10.0, detector.getMedianMillisPerCost(), 0.0);
+        detector.addCompleted(0, 1000);  // cost 0 is counted as 1
+        assertEquals(20.0, detector.getMedianMillisPerCost(), 0.0);
+        assertEquals(4, detector.getCompletedCount());
+    }
+
+    @Test
+    public void testMedianOfLastCompletedTasks()
+    {
+        StragglerDetector detector = new StragglerDetector(2.0, 0, 1);
+        for (int i=0; i < StragglerDetector.WINDOW_SIZE; i++) {
+            detector.addCompleted(1, 100);
+        }
+        assertEquals(100.0, detector.getMedianMillisPerCost(), 0.0);
+        // old tasks are dropped from the window
+        for (int i=0; i < StragglerDetector.WINDOW_SIZE / 2 + 1; i++) {
+            detector.addCompleted(1, 10);
+        }
+        assertEquals(10.0, detector.getMedianMillisPerCost(), 0.0);
+        assertEquals(StragglerDetector.WINDOW_SIZE * 3 / 2 + 1, detector.getCompletedCount());
+    }
+
+    @Test
+    public void testStraggler()
+    {
+        StragglerDetector detector = new StragglerDetector(2.0, 1000, 2);
+        detector.addCompleted(100, 1000);
+        // not enough completed tasks
+        assertFalse(detector.isStraggler(100, 10000));
+
+        detector.addCompleted(100, 1000);
+        assertFalse(detector.isStraggler(100, 2000));
+        assertTrue(detector.isStraggler(100, 2001));
+        // larger tasks are expected to run longer
+        assertFalse(detector.isStraggler(1000, 10000));
+        // short elapsed time is ignored
+        assertFalse(detector.isStraggler(1, 999));
+        assertTrue(detector.isStraggler(1, 1000));
+    }
+}
@@ -0,0 +1,100 @@
+package org.embulk.exec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import com.google.common.collect.ImmutableList;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.ExecutionInterruptedException;
+import org.embulk.exec.ProcessorWorker.ExceptionInfo;
+
+public class TestTaskRetryPolicy
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private TaskRetryPolicy newPolicy(int retryLimit)
+    {
+        return new TaskRetryPolicy(runtime.getExec().newConfigSource()
+                .set("task_retry_limit", retryLimit)
+                .set("task_retry_initial_wait_millis", 100)
+                .set("task_retry_max_wait_millis", 1000));
+    }
+
+    @Test
+    public void testDisabledByDefault()
+    {
+        TaskRetryPolicy policy = new TaskRetryPolicy(runtime.getExec().newConfigSource());
+        assertFalse(policy.isRetryable(new IOException(), 0));
+    }
+
+    @Test
+    public void testRetryLimit()
+    {
+        TaskRetryPolicy policy = newPolicy(2);
+        assertTrue(policy.isRetryable(new IOException(), 0));
+        assertTrue(policy.isRetryable(new IOException(), 1));
+        assertFalse(policy.isRetryable(new IOException(), 2));
+    }
+
+    @Test
+    public void testRetryableExceptions()
+    {
+        TaskRetryPolicy policy = newPolicy(1);
+        // subclasses and causes
+        assertTrue(policy.isRetryable(new FileNotFoundException(), 0));
+        assertTrue(policy.isRetryable(new RuntimeException(new IOException()), 0));
+        assertFalse(policy.isRetryable(new IllegalStateException(), 0));
+        assertFalse(policy.isRetryable(new ConfigException("invalid"), 0));
+
+        // interrupted tasks are not retried
+        assertFalse(policy.isRetryable(new ExecutionInterruptedException(new IOException()), 0));
+        assertFalse(policy.isRetryable(new RuntimeException(new ClosedByInterruptException()), 0));
+
+        // the output may be committed
+        assertFalse(policy.isRetryable(new TaskResultLostException("lost", new IOException()), 0));
+    }
+
+    @Test
+    public void testRemoteTaskException()
+    {
+        TaskRetryPolicy policy = newPolicy(1);
+        assertTrue(policy.isRetryable(ExceptionInfo.of(new RuntimeException(new FileNotFoundException())).toException(), 0));
+        assertFalse(policy.isRetryable(ExceptionInfo.of(new IllegalStateException()).toException(), 0));
+        assertFalse(policy.isRetryable(ExceptionInfo.of(new ExecutionInterruptedException(new IOException())).toException(), 0));
+    }
+
+    @Test
+    public void testConfiguredRetryableExceptions()
+    {
+        TaskRetryPolicy policy = new TaskRetryPolicy(runtime.getExec().newConfigSource()
+                .set("task_retry_limit", 1)
+                .set("task_retryable_exceptions", ImmutableList.of("java.lang.IllegalStateException")));
+        assertTrue(policy.isRetryable(new IllegalStateException(), 0));
+        assertFalse(policy.isRetryable(new IOException(), 0));
+    }
+
+    @Test
+    public void testExponentialBackoff()
+    {
+        TaskRetryPolicy policy = newPolicy(10);
+        assertEquals(100L, policy.getWaitMillis(0));
+        assertEquals(200L, policy.getWaitMillis(1));
+        assertEquals(400L, policy.getWaitMillis(2));
+        assertEquals(800L, policy.getWaitMillis(3));
+        assertEquals(1000L, policy.getWaitMillis(4));
+        assertEquals(1000L, policy.getWaitMillis(100));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testNegativeRetryLimit()
+    {
+        newPolicy(-1);
+    }
+}
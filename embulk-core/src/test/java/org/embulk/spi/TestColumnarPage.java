@@ -0,0 +1,246 @@
+package org.embulk.spi;
+
+import static org.embulk.spi.PageTestUtils.newColumn;
+import static org.embulk.spi.PageTestUtils.newSchema;
+import static org.embulk.spi.type.Types.BOOLEAN;
+import static org.embulk.spi.type.Types.DOUBLE;
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.embulk.spi.type.Types.TIMESTAMP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.TestPageBuilderReader.MockPageOutput;
+import org.embulk.EmbulkTestRuntime;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestColumnarPage
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final Schema schema = newSchema(
+            newColumn("id", LONG), newColumn("name", STRING),
+            newColumn("score", DOUBLE), newColumn("time", TIMESTAMP),
+            newColumn("flag", BOOLEAN));
+
+    private MockPageOutput buildColumnarPages(int records, int maxRecordCount)
+    {
+        MockPageOutput output = new MockPageOutput();
+        try (ColumnarPageBuilder builder = new ColumnarPageBuilder(runtime.getBufferAllocator(), schema, output, maxRecordCount)) {
+            for (int i=0; i < records; i++) {
+                addRecord(builder, i);
+            }
+            builder.finish();
+        }
+        return output;
+    }
+
+    private void addRecord(ColumnarPageBuilder builder, int i)
+    {
+        builder.setLong(0, i);
+        if (i % 3 == 0) {
+            builder.setNull(1);
+        } else {
+            builder.setString(1, "nameあ" + i);
+        }
+        builder.setDouble(2, i * 0.5);
+        builder.setTimestamp(3, Timestamp.ofEpochSecond(i, i * 10));
+        builder.setBoolean(4, i % 2 == 0);
+        builder.addRecord();
+    }
+
+    @Test
+    public void testRowAdapter()
+    {
+        MockPageOutput output = buildColumnarPages(1000, 128);
+        assertEquals(8, output.pages.size());
+
+        int i = 0;
+        try (PageReader reader = new PageReader(schema)) {
+            for (Page page : output.pages) {
+                assertTrue(PageReader.isColumnar(page));
+                reader.setPage(page);
+                while (reader.nextRecord()) {
+                    assertEquals(i, reader.getLong(0));
+                    if (i % 3 == 0) {
+                        assertTrue(reader.isNull(1));
+                    } else {
+                        assertFalse(reader.isNull(1));
+                        assertEquals("nameあ" + i, reader.getString(1));
+                    }
+                    assertEquals(i * 0.5, reader.getDouble(2), 0.0);
+                    assertEquals(Timestamp.ofEpochSecond(i, i * 10), reader.getTimestamp(3));
+                    assertEquals(i % 2 == 0, reader.getBoolean(4));
+                    i++;
+                }
+            }
+        }
+        assertEquals(1000, i);
+    }
+
+    @Test
+    public void testLargeStrings()
+    {
+        // variable-length data grows the buffer and flushes pages before
+        // they have maxRecordCount records
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i < 10000; i++) {
+            sb.append('a');
+        }
+        String large = sb.toString();
+
+        MockPageOutput output = new MockPageOutput();
+        try (ColumnarPageBuilder builder = new ColumnarPageBuilder(runtime.getBufferAllocator(), schema, output, 1024)) {
+            for (int i=0; i < 300; i++) {
+                builder.setLong(0, i);
+                builder.setString(1, large + i);
+                builder.setNull(2);
+                builder.setTimestamp(3, Timestamp.ofEpochSecond(i));
+                builder.setBoolean(4, true);
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+        assertTrue(output.pages.size() > 1);
+
+        int i = 0;
+        try (PageReader reader = new PageReader(schema)) {
+            for (Page page : output.pages) {
+                reader.setPage(page);
+                while (reader.nextRecord()) {
+                    assertEquals(i, reader.getLong(0));
+                    assertEquals(large + i, reader.getString(1));
+                    assertTrue(reader.isNull(2));
+                    assertFalse(reader.isNull(3));
+                    i++;
+                }
+            }
+        }
+        assertEquals(300, i);
+    }
+
+    @Test
+    public void testNullBitmapsOfDirtyBuffers()
+    {
+        // pooled buffers are not zero-filled when they are reused
+        BufferAllocator dirtyAllocator = new BufferAllocator() {
+            public Buffer allocate()
+            {
+                return allocate(32*1024);
+            }
+
+            public Buffer allocate(int minimumCapacity)
+            {
+                byte[] bytes = new byte[minimumCapacity];
+                Arrays.fill(bytes, (byte) 0xff);
+                return Buffer.wrap(bytes);
+            }
+        };
+
+        MockPageOutput output = new MockPageOutput();
+        try (ColumnarPageBuilder builder = new ColumnarPageBuilder(dirtyAllocator, schema, output, 128)) {
+            for (int i=0; i < 1000; i++) {
+                addRecord(builder, i);
+            }
+            builder.finish();
+        }
+
+        int i = 0;
+        try (PageReader reader = new PageReader(schema)) {
+            for (Page page : output.pages) {
+                reader.setPage(page);
+                while (reader.nextRecord()) {
+                    assertFalse(reader.isNull(0));
+                    assertEquals(i % 3 == 0, reader.isNull(1));
+                    i++;
+                }
+            }
+        }
+        assertEquals(1000, i);
+    }
+
+    @Test
+    public void testBatchRead()
+    {
+        MockPageOutput output = buildColumnarPages(300, 128);
+
+        int base = 0;
+        try (ColumnarPageReader reader = new ColumnarPageReader(schema)) {
+            for (Page page : output.pages) {
+                reader.setPage(page);
+                assertTrue(reader.isColumnar());
+                checkBatch(reader, base);
+                base += reader.getRecordCount();
+            }
+        }
+        assertEquals(300, base);
+    }
+
+    @Test
+    public void testBatchReadRowPages()
+    {
+        MockPageOutput output = new MockPageOutput();
+        try (PageBuilder builder = new PageBuilder(runtime.getBufferAllocator(), schema, output)) {
+            for (int i=0; i < 300; i++) {
+                builder.setLong(0, i);
+                if (i % 3 == 0) {
+                    builder.setNull(1);
+                } else {
+                    builder.setString(1, "nameあ" + i);
+                }
+                builder.setDouble(2, i * 0.5);
+                builder.setTimestamp(3, Timestamp.ofEpochSecond(i, i * 10));
+                builder.setBoolean(4, i % 2 == 0);
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+
+        int base = 0;
+        try (ColumnarPageReader reader = new ColumnarPageReader(schema)) {
+            for (Page page : output.pages) {
+                reader.setPage(page);
+                assertFalse(reader.isColumnar());
+                checkBatch(reader, base);
+                base += reader.getRecordCount();
+            }
+        }
+        assertEquals(300, base);
+    }
+
+    private void checkBatch(ColumnarPageReader reader, int base)
+    {
+        int n = reader.getRecordCount();
+        long[] ids = new long[n];
+        double[] scores = new double[n];
+        long[] seconds = new long[n];
+        int[] nanos = new int[n];
+        boolean[] flags = new boolean[n];
+        boolean[] nulls = new boolean[n];
+
+        reader.getLongs(0, 0, ids, 0, n);
+        reader.getDoubles(2, 0, scores, 0, n);
+        reader.getTimestamps(3, 0, seconds, nanos, 0, n);
+        reader.getBooleans(4, 0, flags, 0, n);
+        reader.getNulls(1, 0, nulls, 0, n);
+
+        assertTrue(reader.hasNull(1));
+        assertFalse(reader.hasNull(0));
+        for (int k=0; k < n; k++) {
+            int i = base + k;
+            assertEquals(i, ids[k]);
+            assertEquals(i * 0.5, scores[k], 0.0);
+            assertEquals(i, seconds[k]);
+            assertEquals(i * 10, nanos[k]);
+            assertEquals(i % 2 == 0, flags[k]);
+            assertEquals(i % 3 == 0, nulls[k]);
+            if (i % 3 != 0) {
+                assertEquals("nameあ" + i, reader.getString(1, k));
+            }
+        }
+    }
+}
@@ -9,6 +9,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import com.google.common.collect.ImmutableList;
 import org.embulk.EmbulkTestRuntime;
+import org.embulk.exec.PooledBufferAllocator;
 import org.embulk.spi.util.InputStreamFileInput;
 
 public class TestInputStreamFileInput
@@ -45,6 +46,23 @@ public class TestInputStreamFileInput
         subject.close();
     }
 
+    @Test
+    public void testInterrupted() throws IOException
+    {
+        InputStreamFileInput subject = new InputStreamFileInput(
+                runtime.getBufferAllocator(),
+                provider(new ByteArrayInputStream("abcdef".getBytes("UTF-8"))));
+        assertEquals(true, subject.nextFile());
+        Thread.currentThread().interrupt();
+        try {
+            subject.poll();
+            fail();
+        } catch (ExecutionInterruptedException ex) {
+            assertEquals(false, Thread.currentThread().isInterrupted());
+        }
+        subject.close();
+    }
+
     @Test
     public void testEmptyStream() throws IOException
     {
@@ -56,6 +74,23 @@ public class TestInputStreamFileInput
         subject.close();
     }
 
+    @Test
+    public void testDirectBuffer() throws IOException
+    {
+        BufferAllocator allocator = new PooledBufferAllocator(
+                runtime.getExec().newConfigSource().set("direct_buffer", true));
+        InputStreamFileInput subject = new InputStreamFileInput(
+                allocator,
+                provider(new ByteArrayInputStream("abcdef".getBytes("UTF-8"))));
+        assertEquals(true, subject.nextFile());
+        Buffer buffer = subject.poll();
+        assertEquals(false, buffer.hasArray());
+        assertEquals("abcdef", bufferToString(buffer));
+        buffer.release();
+        assertEquals(null, subject.poll());
+        subject.close();
+    }
+
     @Test
     public void testPollFirstException() throws IOException
     {
@@ -7,14 +7,18 @@ import static org.embulk.spi.type.Types.DOUBLE;
 import static org.embulk.spi.type.Types.LONG;
 import static org.embulk.spi.type.Types.STRING;
 import static org.embulk.spi.type.Types.TIMESTAMP;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.nio.charset.StandardCharsets;
 import org.embulk.spi.time.Timestamp;
 import org.embulk.spi.Schema;
 import org.embulk.EmbulkTestRuntime;
+import org.embulk.exec.PooledBufferAllocator;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -113,6 +117,28 @@ public class TestPageBuilderReader
                 "test1");
     }
 
+    @Test
+    public void testMultiByteStrings()
+    {
+        check(newSchema(newColumn("col1", STRING)), "\u3042\u3044\u3046", "", "\ud83c\udf63");
+    }
+
+    @Test
+    public void testStringBytes()
+    {
+        Schema schema = newSchema(newColumn("col1", STRING));
+        Page page = buildPage(schema, "\u3042bc");
+        this.reader = new PageReader(schema);
+        reader.setPage(page);
+        assertTrue(reader.nextRecord());
+        byte[] expected = "\u3042bc".getBytes(StandardCharsets.UTF_8);
+        assertEquals(expected.length, reader.getStringByteLength(0));
+        byte[] bytes = new byte[expected.length + 1];
+        assertEquals(expected.length, reader.getStringBytes(0, bytes, 1));
+        assertArrayEquals(expected, Arrays.copyOfRange(bytes, 1, bytes.length));
+        assertArrayEquals(expected, reader.getStringSlice(0).getBytes());
+    }
+
     @Test
     public void testTimestamp()
     {
@@ -279,6 +305,139 @@ public class TestPageBuilderReader
                         "record1", 3L, "record3").size());
     }
 
+    @Test
+    public void testTakeOverLargeStrings()
+    {
+        this.bufferAllocator = new BufferAllocator()
+        {
+            @Override
+            public Buffer allocate()
+            {
+                return Buffer.allocate(64);
+            }
+
+            @Override
+            public Buffer allocate(int minimumCapacity)
+            {
+                return Buffer.allocate(Math.max(64, minimumCapacity));
+            }
+        };
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i < 100; i++) {
+            sb.append("\u3042");
+        }
+        String large = sb.toString();
+        Schema schema = newSchema(newColumn("col1", STRING), newColumn("col2", LONG));
+        Object[] values = new Object[] { "a", 0L, "b", 1L, large, 2L, "c", 3L };
+        List<Page> pages = buildPages(schema, values);
+        assertTrue(pages.size() > 1);
+
+        this.reader = new PageReader(schema);
+        int idx = 0;
+        for (Page page : pages) {
+            reader.setPage(page);
+            while (reader.nextRecord()) {
+                assertEquals(values[idx++], reader.getString(0));
+                assertEquals(values[idx++], reader.getLong(1));
+            }
+        }
+        assertEquals(values.length, idx);
+    }
+
+    @Test
+    public void testPrimitiveTimestamp()
+    {
+        Schema schema = newSchema(newColumn("col1", TIMESTAMP), newColumn("col2", TIMESTAMP));
+        MockPageOutput output = new MockPageOutput();
+        this.builder = new PageBuilder(bufferAllocator, schema, output);
+        builder.setTimestamp(0, 1420070400L, 123456789);
+        builder.setTimestamp(1, Timestamp.ofEpochSecond(-1L, 5));
+        builder.addRecord();
+        builder.finish();
+
+        this.reader = new PageReader(schema);
+        reader.setPage(output.pages.get(0));
+        assertTrue(reader.nextRecord());
+        assertEquals(1420070400L, reader.getTimestampEpochSecond(0));
+        assertEquals(123456789, reader.getTimestampNano(0));
+        assertEquals(Timestamp.ofEpochSecond(1420070400L, 123456789), reader.getTimestamp(0));
+        assertEquals(-1L, reader.getTimestampEpochSecond(1));
+        assertEquals(5, reader.getTimestampNano(1));
+        assertFalse(reader.nextRecord());
+    }
+
+    @Test
+    public void testTakeOverBackReferencedStrings()
+    {
+        this.bufferAllocator = new BufferAllocator()
+        {
+            @Override
+            public Buffer allocate()
+            {
+                return Buffer.allocate(64);
+            }
+
+            @Override
+            public Buffer allocate(int minimumCapacity)
+            {
+                return Buffer.allocate(Math.max(64, minimumCapacity));
+            }
+        };
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i < 100; i++) {
+            sb.append("\u3042");
+        }
+        String large = sb.toString();
+        Schema schema = newSchema(newColumn("col1", STRING), newColumn("col2", STRING));
+        // "dup" of the 2nd record refers to the 1st record until the large string moves the record to a new page
+        Object[] values = new Object[] { "dup", "a", "dup", large, "dup", "b", "dup", large };
+        List<Page> pages = buildPages(schema, values);
+        assertTrue(pages.size() > 1);
+
+        this.reader = new PageReader(schema);
+        int idx = 0;
+        for (Page page : pages) {
+            reader.setPage(page);
+            while (reader.nextRecord()) {
+                assertEquals(values[idx++], reader.getString(0));
+                assertEquals(values[idx++], reader.getString(1));
+            }
+        }
+        assertEquals(values.length, idx);
+    }
+
+    @Test
+    public void testDeduplicateStrings()
+    {
+        String value = "0123456789012345678901234567890123456789";
+        Object[] values = new Object[100];
+        Arrays.fill(values, value);
+        Schema schema = newSchema(newColumn("col1", STRING));
+        List<Page> pages = buildPages(schema, values);
+        assertEquals(1, pages.size());
+        assertTrue(pages.get(0).buffer().limit() < value.length() * values.length);
+
+        this.reader = new PageReader(schema);
+        reader.setPage(pages.get(0));
+        for (int i=0; i < values.length; i++) {
+            assertTrue(reader.nextRecord());
+            assertEquals(value, reader.getString(0));
+        }
+        assertFalse(reader.nextRecord());
+    }
+
+    @Test
+    public void testDirectBuffer()
+    {
+        this.bufferAllocator = new PooledBufferAllocator(
+                runtime.getExec().newConfigSource().set("direct_buffer", true));
+        check(newSchema(newColumn("col3", DOUBLE), newColumn("col1", STRING),
+                newColumn("col3", LONG), newColumn("col3", BOOLEAN),
+                newColumn("col2", TIMESTAMP)), 8122.0, "val1", 3L, false,
+                Timestamp.ofEpochMilli(0), 140.15, "\u3042", Long.MAX_VALUE,
+                true, Timestamp.ofEpochMilli(10));
+    }
+
     @Test
     public void testRepeatableClose()
     {
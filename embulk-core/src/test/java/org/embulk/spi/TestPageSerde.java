@@ -0,0 +1,153 @@
+package org.embulk.spi;
+
+import static org.embulk.spi.PageTestUtils.newColumn;
+import static org.embulk.spi.PageTestUtils.newSchema;
+import static org.embulk.spi.type.Types.BOOLEAN;
+import static org.embulk.spi.type.Types.DOUBLE;
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.embulk.spi.type.Types.TIMESTAMP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.List;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.TestPageBuilderReader.MockPageOutput;
+import org.embulk.EmbulkTestRuntime;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestPageSerde
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final Schema schema = newSchema(
+            newColumn("id", LONG), newColumn("nameあ", STRING),
+            newColumn("score", DOUBLE), newColumn("time", TIMESTAMP),
+            newColumn("flag", BOOLEAN));
+
+    private List<Page> buildPages(int records)
+    {
+        MockPageOutput output = new MockPageOutput();
+        try (PageBuilder builder = new PageBuilder(runtime.getBufferAllocator(), schema, output)) {
+            for (int i=0; i < records; i++) {
+                builder.setLong(0, i);
+                if (i % 3 == 0) {
+                    builder.setNull(1);
+                } else {
+                    // duplicated strings are written as references
+                    builder.setString(1, "nameあ" + (i % 5));
+                }
+                builder.setDouble(2, i * 0.5);
+                builder.setTimestamp(3, Timestamp.ofEpochSecond(i, i * 10));
+                builder.setBoolean(4, i % 2 == 0);
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+        return output.pages;
+    }
+
+    private int readPages(PageSerde.Reader in)
+            throws IOException
+    {
+        assertEquals(schema, in.getSchema());
+        int i = 0;
+        try (PageReader reader = new PageReader(in.getSchema())) {
+            Page page;
+            while ((page = in.read()) != null) {
+                reader.setPage(page);
+                while (reader.nextRecord()) {
+                    assertEquals(i, reader.getLong(0));
+                    if (i % 3 == 0) {
+                        assertTrue(reader.isNull(1));
+                    } else {
+                        assertEquals("nameあ" + (i % 5), reader.getString(1));
+                    }
+                    assertEquals(i * 0.5, reader.getDouble(2), 0.0);
+                    assertEquals(Timestamp.ofEpochSecond(i, i * 10), reader.getTimestamp(3));
+                    assertEquals(i % 2 == 0, reader.getBoolean(4));
+                    i++;
+                }
+            }
+        }
+        assertNull(in.read());
+        return i;
+    }
+
+    private byte[] writePages(List<Page> pages, boolean checksum)
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (PageSerde.Writer out = new PageSerde.Writer(Channels.newChannel(bytes), schema, checksum)) {
+            for (Page page : pages) {
+                out.write(page);
+                page.release();
+            }
+            out.finish();
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testStream()
+            throws IOException
+    {
+        for (boolean checksum : new boolean[] { false, true }) {
+            byte[] bytes = writePages(buildPages(10000), checksum);
+            try (PageSerde.Reader in = new PageSerde.Reader(Channels.newChannel(new ByteArrayInputStream(bytes)), runtime.getBufferAllocator())) {
+                assertEquals(10000, readPages(in));
+            }
+        }
+    }
+
+    @Test
+    public void testFileChannel()
+            throws IOException
+    {
+        File file = File.createTempFile("embulk-test-page-serde-", ".tmp");
+        try {
+            try (PageSerde.Writer out = new PageSerde.Writer(new RandomAccessFile(file, "rw").getChannel(), schema, true)) {
+                for (Page page : buildPages(10000)) {
+                    out.write(page);
+                    page.release();
+                }
+                out.finish();
+            }
+            try (PageSerde.Reader in = new PageSerde.Reader(new RandomAccessFile(file, "r").getChannel(), runtime.getBufferAllocator())) {
+                assertEquals(10000, readPages(in));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testChecksumMismatch()
+            throws IOException
+    {
+        byte[] bytes = writePages(buildPages(100), true);
+        bytes[bytes.length - 10] ^= 1;
+        try (PageSerde.Reader in = new PageSerde.Reader(Channels.newChannel(new ByteArrayInputStream(bytes)), runtime.getBufferAllocator())) {
+            in.read();
+            fail();
+        } catch (IOException ex) {
+            assertEquals("Page checksum mismatch", ex.getMessage());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidHeader()
+            throws IOException
+    {
+        new PageSerde.Reader(Channels.newChannel(new ByteArrayInputStream(new byte[16])), runtime.getBufferAllocator());
+    }
+}
@@ -0,0 +1,148 @@
+package org.embulk.spi;
+
+import static org.embulk.spi.PageTestUtils.newColumn;
+import static org.embulk.spi.PageTestUtils.newSchema;
+import static org.embulk.spi.type.Types.BOOLEAN;
+import static org.embulk.spi.type.Types.DOUBLE;
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.embulk.spi.type.Types.TIMESTAMP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.nio.charset.StandardCharsets;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.TestPageBuilderReader.MockPageOutput;
+import org.embulk.EmbulkTestRuntime;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestPageStatistics
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final Schema schema = newSchema(
+            newColumn("id", LONG), newColumn("name", STRING),
+            newColumn("score", DOUBLE), newColumn("time", TIMESTAMP),
+            newColumn("flag", BOOLEAN), newColumn("empty", STRING));
+
+    private MockPageOutput buildPages(BufferAllocator allocator, int records, boolean collectStatistics)
+    {
+        MockPageOutput output = new MockPageOutput();
+        try (PageBuilder builder = new PageBuilder(allocator, schema, output, collectStatistics)) {
+            for (int i=0; i < records; i++) {
+                builder.setLong(0, i);
+                if (i % 3 == 0) {
+                    builder.setNull(1);
+                } else {
+                    builder.setString(1, "name" + (i % 10));
+                }
+                builder.setDouble(2, -i * 0.5);
+                builder.setTimestamp(3, i / 2, i * 10);
+                builder.setBoolean(4, true);
+                builder.setNull(5);
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+        return output;
+    }
+
+    private PageStatistics mergeStatistics(MockPageOutput output)
+    {
+        PageStatistics merged = new PageStatistics(schema);
+        for (Page page : output.pages) {
+            merged.merge(page.getStatistics());
+        }
+        return merged;
+    }
+
+    @Test
+    public void testNotCollectedByDefault()
+    {
+        MockPageOutput output = buildPages(runtime.getBufferAllocator(), 10, false);
+        assertNull(output.pages.get(0).getStatistics());
+    }
+
+    @Test
+    public void testMinMax()
+    {
+        MockPageOutput output = buildPages(runtime.getBufferAllocator(), 100, true);
+        assertEquals(1, output.pages.size());
+        PageStatistics stats = output.pages.get(0).getStatistics();
+
+        assertEquals(100, stats.getRecordCount());
+        assertEquals(0L, stats.getLongMin(0));
+        assertEquals(99L, stats.getLongMax(0));
+        assertEquals(0, stats.getNullCount(0));
+
+        assertEquals(34, stats.getNullCount(1));
+        assertEquals("name0", stats.getStringMin(1).toString(StandardCharsets.UTF_8));
+        assertEquals("name9", stats.getStringMax(1).toString(StandardCharsets.UTF_8));
+
+        assertEquals(-49.5, stats.getDoubleMin(2), 0.0);
+        assertEquals(0.0, stats.getDoubleMax(2), 0.0);
+
+        assertEquals(Timestamp.ofEpochSecond(0, 0), stats.getTimestampMin(3));
+        assertEquals(Timestamp.ofEpochSecond(49, 990), stats.getTimestampMax(3));
+
+        assertTrue(stats.getBooleanMin(4));
+        assertTrue(stats.getBooleanMax(4));
+
+        assertFalse(stats.hasValue(5));
+        assertEquals(100, stats.getNullCount(5));
+        assertEquals(0, stats.getDistinctCountEstimate(5));
+    }
+
+    @Test
+    public void testDistinctCountEstimate()
+    {
+        MockPageOutput output = buildPages(runtime.getBufferAllocator(), 1000, true);
+        PageStatistics stats = mergeStatistics(output);
+
+        assertEquals(1, stats.getDistinctCountEstimate(4));
+        long names = stats.getDistinctCountEstimate(1);
+        assertTrue("estimate " + names, 7 <= names && names <= 13);
+        long ids = stats.getDistinctCountEstimate(0);
+        assertTrue("estimate " + ids, 700 <= ids && ids <= 1300);
+    }
+
+    @Test
+    public void testMergeAcrossPages()
+    {
+        BufferAllocator allocator = new BufferAllocator()
+        {
+            @Override
+            public Buffer allocate()
+            {
+                return Buffer.allocate(256);
+            }
+
+            @Override
+            public Buffer allocate(int minimumCapacity)
+            {
+                return Buffer.allocate(Math.max(256, minimumCapacity));
+            }
+        };
+        MockPageOutput output = buildPages(allocator, 100, true);
+        assertTrue(output.pages.size() > 1);
+
+        int records = 0;
+        for (Page page : output.pages) {
+            assertEquals(records, page.getStatistics().getLongMin(0));
+            records += page.getStatistics().getRecordCount();
+        }
+        assertEquals(100, records);
+
+        PageStatistics merged = mergeStatistics(output);
+        assertEquals(100, merged.getRecordCount());
+        assertEquals(0L, merged.getLongMin(0));
+        assertEquals(99L, merged.getLongMax(0));
+        assertEquals(34, merged.getNullCount(1));
+        assertEquals("name0", merged.getStringMin(1).toString(StandardCharsets.UTF_8));
+        assertEquals("name9", merged.getStringMax(1).toString(StandardCharsets.UTF_8));
+        assertEquals(Timestamp.ofEpochSecond(49, 990), merged.getTimestampMax(3));
+    }
+}
@@ -0,0 +1,183 @@
+package org.embulk.spi;
+
+import static org.embulk.spi.PageTestUtils.newColumn;
+import static org.embulk.spi.PageTestUtils.newSchema;
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.List;
+import org.embulk.spi.TestPageBuilderReader.MockPageOutput;
+import org.embulk.EmbulkTestRuntime;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestPageStore
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final Schema schema = newSchema(newColumn("id", LONG), newColumn("name", STRING));
+
+    private List<Page> buildPages(int records)
+    {
+        BufferAllocator allocator = new BufferAllocator()
+        {
+            @Override
+            public Buffer allocate()
+            {
+                return Buffer.allocate(1024);
+            }
+
+            @Override
+            public Buffer allocate(int minimumCapacity)
+            {
+                return Buffer.allocate(Math.max(1024, minimumCapacity));
+            }
+        };
+        MockPageOutput output = new MockPageOutput();
+        try (PageBuilder builder = new PageBuilder(allocator, schema, output, true)) {
+            for (int i=0; i < records; i++) {
+                builder.setLong(0, i);
+                builder.setString(1, "name" + i);
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+        return output.pages;
+    }
+
+    private int checkPage(Page page, int base)
+    {
+        try (PageReader reader = new PageReader(schema)) {
+            reader.setPage(page);
+            int i = base;
+            while (reader.nextRecord()) {
+                assertEquals(i, reader.getLong(0));
+                assertEquals("name" + i, reader.getString(1));
+                i++;
+            }
+            return i;
+        }
+    }
+
+    @Test
+    public void testInMemory()
+    {
+        List<Page> pages = buildPages(100);
+        try (PageStore store = new PageStore(runtime.getBufferAllocator(), Long.MAX_VALUE, null)) {
+            for (Page page : pages) {
+                store.add(page);
+            }
+            assertEquals(pages.size(), store.size());
+            assertEquals(0, store.getSpilledPageCount());
+
+            int i = 0;
+            for (Page page : pages) {
+                assertTrue(page == store.poll());
+                i = checkPage(page, i);
+            }
+            assertEquals(100, i);
+            assertNull(store.poll());
+            assertEquals(0L, store.getMemoryUsage());
+        }
+    }
+
+    @Test
+    public void testSpill()
+    {
+        List<Page> pages = buildPages(1000);
+        assertTrue(pages.size() > 4);
+        long limit = pages.get(0).buffer().limit() + pages.get(1).buffer().limit();
+
+        try (PageStore store = new PageStore(runtime.getBufferAllocator(), limit, null)) {
+            for (Page page : pages) {
+                store.add(page);
+            }
+            assertEquals(pages.size(), store.size());
+            assertEquals(pages.size() - 2, store.getSpilledPageCount());
+            assertTrue(store.getMemoryUsage() <= limit);
+
+            int i = 0;
+            Page page;
+            while ((page = store.poll()) != null) {
+                assertEquals(i, page.getStatistics().getLongMin(0));
+                i = checkPage(page, i);
+            }
+            assertEquals(1000, i);
+            assertTrue(store.isEmpty());
+            assertEquals(0L, store.getSpilledSize());
+        }
+    }
+
+    @Test
+    public void testAddAfterPoll()
+    {
+        List<Page> pages = buildPages(1000);
+        int i = 0;
+        try (PageStore store = new PageStore(runtime.getBufferAllocator(), 0, null)) {
+            for (Page page : pages) {
+                store.add(page);
+                if (store.size() > 2) {
+                    i = checkPage(store.poll(), i);
+                }
+            }
+            Page page;
+            while ((page = store.poll()) != null) {
+                i = checkPage(page, i);
+            }
+        }
+        assertEquals(1000, i);
+    }
+
+    @Test
+    public void testSpillFileIsTruncated()
+    {
+        try (PageStore store = new PageStore(runtime.getBufferAllocator(), 0, null)) {
+            for (int round=0; round < 2; round++) {
+                List<Page> pages = buildPages(500);
+                long size = 0;
+                for (Page page : pages) {
+                    size += page.buffer().limit();
+                    store.add(page);
+                }
+                // the file grows only up to the pages added after it's truncated
+                assertEquals(size, store.getSpillFileSize());
+
+                int i = 0;
+                Page page;
+                while ((page = store.poll()) != null) {
+                    i = checkPage(page, i);
+                }
+                assertEquals(500, i);
+                assertEquals(0L, store.getSpillFileSize());
+            }
+        }
+    }
+
+    @Test
+    public void testPagesAreAvailableAfterClose()
+    {
+        List<Page> pages = buildPages(1000);
+        Page spilled;
+        try (PageStore store = new PageStore(runtime.getBufferAllocator(), 0, null)) {
+            for (Page page : pages) {
+                store.add(page);
+            }
+            spilled = store.poll();
+        }
+        assertTrue(checkPage(spilled, 0) > 0);
+    }
+
+    @Test
+    public void testNewPageStore()
+    {
+        try (PageStore store = runtime.getExec().newPageStore()) {
+            for (Page page : buildPages(10)) {
+                store.add(page);
+            }
+            assertEquals(0, store.getSpilledPageCount());
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.embulk.spi.util;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 import java.nio.ByteBuffer;
@@ -10,9 +11,12 @@ import org.junit.Rule;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import org.embulk.config.ConfigSource;
 import org.embulk.spi.Exec;
 import org.embulk.spi.Buffer;
+import org.embulk.spi.SplitFileInput;
 import org.embulk.spi.util.ListFileInput;
 import org.embulk.EmbulkTestRuntime;
 
@@ -128,5 +132,120 @@ public class TestLineDecoder
         assertEquals(ImmutableList.of("t1", "t2", "t3"), decoded);
     }
 
+    // a range of a split file. Buffers start at offset and continue to the end
+    private static class SplitListFileInput
+            extends ListFileInput
+            implements SplitFileInput
+    {
+        private final long offset;
+        private final long length;
+
+        public SplitListFileInput(byte[] data, long offset, long length)
+        {
+            super(ImmutableList.of(chunks(data, (int) offset)));
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private static List<Buffer> chunks(byte[] data, int offset)
+        {
+            List<Buffer> buffers = new ArrayList<Buffer>();
+            for (int i=offset; i < data.length; i += 3) {
+                buffers.add(Buffer.wrap(Arrays.copyOfRange(data, i, Math.min(i + 3, data.length))));
+            }
+            return buffers;
+        }
+
+        @Override
+        public long getSplitOffset()
+        {
+            return offset;
+        }
+
+        @Override
+        public long getSplitLength()
+        {
+            return length;
+        }
+    }
+
+    private static List<String> decodeSplit(byte[] data, long offset, long length)
+    {
+        ImmutableList.Builder<String> builder = ImmutableList.builder();
+        LineDecoder decoder = new LineDecoder(new SplitListFileInput(data, offset, length), getExampleConfig());
+        decoder.nextFile();
+        assertEquals(offset == 0, decoder.isHeadOfFile());
+        while (true) {
+            String line = decoder.poll();
+            if (line == null) {
+                break;
+            }
+            builder.add(line);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void testSplitOwnsLinesStartingInIt()
+    {
+        byte[] data = "aaa\nbbb\nccc\n".getBytes(Charset.forName("utf-8"));
+        assertEquals(ImmutableList.of("aaa"), decodeSplit(data, 0, 1));
+        // a line starting at the end of the range is owned by the range
+        assertEquals(ImmutableList.of("aaa", "bbb"), decodeSplit(data, 0, 4));
+        assertEquals(ImmutableList.of("bbb"), decodeSplit(data, 1, 3));
+        assertEquals(ImmutableList.of("ccc"), decodeSplit(data, 4, 4));
+        assertEquals(ImmutableList.of(), decodeSplit(data, 8, 4));
+    }
+
+    @Test
+    public void testEndOfSplit()
+    {
+        byte[] data = "aaa\nbbb\nccc".getBytes(Charset.forName("utf-8"));
+        LineDecoder decoder = new LineDecoder(new SplitListFileInput(data, 0, 2), getExampleConfig());
+        decoder.nextFile();
+        assertEquals("aaa", decoder.poll());
+        assertEquals(null, decoder.poll());
+        assertTrue(decoder.isEndOfSplit());
+
+        decoder = new LineDecoder(new SplitListFileInput(data, 5, 7), getExampleConfig());
+        decoder.nextFile();
+        assertEquals("ccc", decoder.poll());
+        assertEquals(null, decoder.poll());
+        assertFalse(decoder.isEndOfSplit());
+    }
+
+    @Test
+    public void testSplitsReadAllLinesOnce()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i < 1000; i++) {
+            sb.append("line").append(i).append(",\u3042\u3044\u3046");
+            if (i % 7 == 0) {
+                sb.append("\r");
+            }
+            if (i % 11 != 0) {
+                sb.append("\n");
+            }
+        }
+        byte[] data = sb.toString().getBytes(Charset.forName("utf-8"));
+        List<String> expected = doDecode(Charset.forName("utf-8"), Newline.LF,
+                ImmutableList.of(Buffer.wrap(data)));
+        for (int splitSize : new int[] { 1, 2, 7, 100, 1000, 100000 }) {
+            List<String> lines = new ArrayList<String>();
+            for (int offset=0; offset < data.length; offset += splitSize) {
+                lines.addAll(decodeSplit(data, offset, Math.min(splitSize, data.length - offset)));
+            }
+            assertEquals(expected, lines);
+        }
+    }
+
+    @Test
+    public void testIsFileSplitSupported()
+    {
+        assertTrue(LineDecoder.isFileSplitSupported(Charset.forName("utf-8")));
+        assertTrue(LineDecoder.isFileSplitSupported(Charset.forName("Shift_JIS")));
+        assertFalse(LineDecoder.isFileSplitSupported(Charset.forName("utf-16")));
+    }
+
     // TODO test multibytes
 }
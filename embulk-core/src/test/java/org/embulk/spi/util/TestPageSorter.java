@@ -0,0 +1,238 @@
+package org.embulk.spi.util;
+
+import static org.embulk.spi.PageTestUtils.newColumn;
+import static org.embulk.spi.PageTestUtils.newSchema;
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import com.google.common.collect.ImmutableList;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TestPageBuilderReader.MockPageOutput;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestPageSorter
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private final Schema schema = newSchema(newColumn("group", STRING), newColumn("id", LONG));
+
+    private final BufferAllocator allocator = new BufferAllocator()
+    {
+        @Override
+        public Buffer allocate()
+        {
+            return Buffer.allocate(1024);
+        }
+
+        @Override
+        public Buffer allocate(int minimumCapacity)
+        {
+            return Buffer.allocate(Math.max(1024, minimumCapacity));
+        }
+    };
+
+    // group is null if id is a multiple of 7
+    private List<Page> buildPages(List<Long> ids)
+    {
+        MockPageOutput output = new MockPageOutput();
+        try (PageBuilder builder = new PageBuilder(allocator, schema, output)) {
+            for (long id : ids) {
+                if (id % 7 == 0) {
+                    builder.setNull(0);
+                } else {
+                    builder.setString(0, "g" + (id % 3));
+                }
+                builder.setLong(1, id);
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+        return output.pages;
+    }
+
+    private List<Long> shuffledIds(int count)
+    {
+        List<Long> ids = new ArrayList<Long>();
+        for (long i=0; i < count; i++) {
+            ids.add(i);
+        }
+        Collections.shuffle(ids, new Random(1));
+        return ids;
+    }
+
+    private List<Object[]> sort(PageSorter sorter, List<Page> pages)
+    {
+        for (Page page : pages) {
+            sorter.add(page);
+        }
+        MockPageOutput output = new MockPageOutput();
+        sorter.writeTo(output);
+        return Pages.toObjects(schema, output.pages);
+    }
+
+    private List<PageSorter.SortKey> keys(String... nameAndOrders)
+    {
+        List<SortColumnConfig> configs = new ArrayList<SortColumnConfig>();
+        for (int i=0; i < nameAndOrders.length; i += 2) {
+            configs.add(new SortColumnConfig(nameAndOrders[i], nameAndOrders[i + 1]));
+        }
+        return SortColumnConfig.toSortKeys(configs, schema);
+    }
+
+    @Test
+    public void testSortInMemory()
+    {
+        try (PageSorter sorter = new PageSorter(allocator, schema, keys("id", "desc"), Long.MAX_VALUE, null)) {
+            List<Object[]> records = sort(sorter, buildPages(shuffledIds(1000)));
+            assertEquals(0, sorter.getSpilledRunCount());
+            assertEquals(1000, records.size());
+            for (int i=0; i < 1000; i++) {
+                assertEquals(999L - i, records.get(i)[1]);
+            }
+        }
+    }
+
+    @Test
+    public void testNullsFirstAndStable()
+    {
+        List<Long> ids = new ArrayList<Long>();
+        for (long i=0; i < 100; i++) {
+            ids.add(i);
+        }
+        try (PageSorter sorter = new PageSorter(allocator, schema, keys("group", "asc"), Long.MAX_VALUE, null)) {
+            List<Object[]> records = sort(sorter, buildPages(ids));
+            assertEquals(null, records.get(0)[0]);
+            checkGroupedInInputOrder(records);
+        }
+    }
+
+    @Test
+    public void testSpillAndMerge()
+            throws IOException
+    {
+        File tempDir = Files.createTempDirectory("embulk-test-sort").toFile();
+        try {
+            // pages are spilled one by one. More runs than merged at once
+            List<Page> pages = buildPages(shuffledIds(20000));
+            assertTrue(pages.size() > 64);
+            try (PageSorter sorter = new PageSorter(allocator, schema, keys("group", "asc", "id", "asc"), 0, tempDir)) {
+                List<Object[]> records = sort(sorter, pages);
+                assertTrue(sorter.getSpilledRunCount() > 0);
+                assertEquals(20000, records.size());
+                for (int i=1; i < records.size(); i++) {
+                    Object[] a = records.get(i - 1);
+                    Object[] b = records.get(i);
+                    if (a[0] == null ? b[0] == null : a[0].equals(b[0])) {
+                        assertTrue((Long) a[1] < (Long) b[1]);
+                    } else {
+                        // group names are ASCII. UTF-16 order is same as UTF-8 order
+                        assertTrue(a[0] == null || ((String) a[0]).compareTo((String) b[0]) < 0);
+                    }
+                }
+            }
+            // temporary files are deleted
+            assertEquals(0, tempDir.list().length);
+        } finally {
+            tempDir.delete();
+        }
+    }
+
+    @Test
+    public void testSpillIsStable()
+    {
+        List<Long> ids = new ArrayList<Long>();
+        for (long i=0; i < 5000; i++) {
+            ids.add(i);
+        }
+        try (PageSorter sorter = new PageSorter(allocator, schema, keys("group", "desc"), 10000, null)) {
+            List<Object[]> records = sort(sorter, buildPages(ids));
+            assertTrue(sorter.getSpilledRunCount() > 1);
+            assertEquals("g2", records.get(0)[0]);
+            checkGroupedInInputOrder(records);
+        }
+    }
+
+    @Test
+    public void testStringsInUtf8Order()
+    {
+        // UTF-16 order is "\uD83D\uDE00" < "\uFFFF" but UTF-8 order is the opposite
+        MockPageOutput input = new MockPageOutput();
+        try (PageBuilder builder = new PageBuilder(allocator, schema, input)) {
+            for (String value : ImmutableList.of("\uD83D\uDE00", "b", "\uFFFF", "a")) {
+                builder.setString(0, value);
+                builder.setLong(1, 0L);
+                builder.addRecord();
+            }
+            builder.finish();
+        }
+        try (PageSorter sorter = new PageSorter(allocator, schema, keys("group", "asc"), Long.MAX_VALUE, null)) {
+            List<Object[]> records = sort(sorter, input.pages);
+            assertEquals("a", records.get(0)[0]);
+            assertEquals("b", records.get(1)[0]);
+            assertEquals("\uFFFF", records.get(2)[0]);
+            assertEquals("\uD83D\uDE00", records.get(3)[0]);
+        }
+    }
+
+    @Test
+    public void testSortingPageOutput()
+    {
+        final List<Page> pages = new ArrayList<Page>();
+        final boolean[] finished = new boolean[1];
+        PageOutput next = new PageOutput() {
+            public void add(Page page)
+            {
+                pages.add(page);
+            }
+
+            public void finish()
+            {
+                finished[0] = true;
+            }
+
+            public void close()
+            { }
+        };
+        try (SortingPageOutput output = new SortingPageOutput(
+                    new PageSorter(allocator, schema, keys("id", "asc"), Long.MAX_VALUE, null), next)) {
+            for (Page page : buildPages(ImmutableList.of(3L, 1L, 2L))) {
+                output.add(page);
+            }
+            assertTrue(pages.isEmpty());
+            output.finish();
+        }
+        assertTrue(finished[0]);
+        List<Object[]> records = Pages.toObjects(schema, pages);
+        assertEquals(1L, records.get(0)[1]);
+        assertEquals(2L, records.get(1)[1]);
+        assertEquals(3L, records.get(2)[1]);
+    }
+
+    // records of the same group keep the input order
+    private void checkGroupedInInputOrder(List<Object[]> records)
+    {
+        for (int i=1; i < records.size(); i++) {
+            Object[] a = records.get(i - 1);
+            Object[] b = records.get(i);
+            if (a[0] == null ? b[0] == null : a[0].equals(b[0])) {
+                assertTrue((Long) a[1] < (Long) b[1]);
+            }
+        }
+    }
+}
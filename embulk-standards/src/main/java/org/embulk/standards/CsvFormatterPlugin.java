@@ -5,7 +5,6 @@ import com.google.common.collect.ImmutableMap;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
 import org.embulk.spi.type.TimestampType;
-import org.embulk.spi.time.Timestamp;
 import org.embulk.spi.time.TimestampFormatter;
 import org.embulk.config.TaskSource;
 import org.embulk.config.ConfigSource;
@@ -116,8 +115,9 @@ public class CsvFormatterPlugin
                         {
                             addDelimiter(column);
                             if (!pageReader.isNull(column)) {
-                                Timestamp value = pageReader.getTimestamp(column);
-                                encoder.addText(timestampFormatters.get(column.getIndex()).format(value));
+                                encoder.addText(timestampFormatters.get(column.getIndex()).format(
+                                            pageReader.getTimestampEpochSecond(column),
+                                            pageReader.getTimestampNano(column)));
                             }
                         }
 
@@ -6,6 +6,7 @@ import com.google.common.base.Optional;
 import org.embulk.config.Task;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskSource;
 import org.embulk.spi.type.TimestampType;
@@ -19,6 +20,7 @@ import org.embulk.spi.PageBuilder;
 import org.embulk.spi.ParserPlugin;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FileInput;
+import org.embulk.spi.FileSplitSupport;
 import org.embulk.spi.PageOutput;
 import org.embulk.spi.BufferAllocator;
 import org.embulk.spi.util.LineDecoder;
@@ -27,7 +29,7 @@ import org.slf4j.Logger;
 import java.util.Map;
 
 public class CsvParserPlugin
-        implements ParserPlugin
+        implements ParserPlugin, FileSplitSupport
 {
     public interface PluginTask
             extends Task, LineDecoder.DecoderTask, TimestampParser.ParserTask
@@ -80,7 +82,16 @@ public class CsvParserPlugin
         control.run(task.dump(), task.getSchemaConfig().toSchema());
     }
 
-    private Map<Integer, TimestampParser> newTimestampParsers(
+    // A split starts at the line after the boundary. If the line is a part of a
+    // quoted value, the tokenizer of the previous range fails.
+    @Override
+    public boolean isFileSplitSupported(ConfigSource config)
+    {
+        PluginTask task = config.loadConfig(PluginTask.class);
+        return LineDecoder.isFileSplitSupported(task.getCharset());
+    }
+
+        private Map<Integer, TimestampParser> newTimestampParsers(
             TimestampParser.ParserTask task, Schema schema)
     {
         ImmutableMap.Builder<Integer, TimestampParser> builder = new ImmutableMap.Builder<>();
@@ -105,7 +116,8 @@ public class CsvParserPlugin
 
         try (final PageBuilder pageBuilder = new PageBuilder(Exec.getBufferAllocator(), schema, output)) {
             while (tokenizer.nextFile()) {
-                if (skipHeaderLine) {
+                // ranges of a split file except the first one don't have the header
+                if (skipHeaderLine && tokenizer.isHeadOfFile()) {
                     // skip the first line
                     if (tokenizer.nextRecord()) {
                         for (int i=0; i < schema.getColumnCount(); i++) {
@@ -178,7 +190,8 @@ public class CsvParserPlugin
                                     pageBuilder.setNull(column);
                                 } else {
                                     try {
-                                        pageBuilder.setTimestamp(column, (timestampFormatters.get(column.getIndex()).parse(v)));
+                                        long milli = timestampFormatters.get(column.getIndex()).parseEpochMilli(v);
+                                        pageBuilder.setTimestamp(column, milli / 1000, (int) (milli % 1000 * 1000000));
                                     } catch (TimestampParseException e) {
                                         // TODO support default value
                                         throw new CsvRecordValidateException(e);
@@ -188,6 +201,8 @@ public class CsvParserPlugin
                         });
                         pageBuilder.addRecord();
 
+                    } catch (ConfigException e) {
+                        throw e;
                     } catch (Exception e) {
                         // TODO logging
                         long lineNumber = tokenizer.getCurrentLineNumber();
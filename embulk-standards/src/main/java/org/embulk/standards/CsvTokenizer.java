@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Deque;
 import java.util.ArrayDeque;
+import org.embulk.config.ConfigException;
 import org.embulk.spi.util.LineDecoder;
 
 public class CsvTokenizer
@@ -78,6 +79,13 @@ public class CsvTokenizer
         return input.nextFile();
     }
 
+    // false if the current file is a byte range of a split file that doesn't
+    // start at the beginning of the file
+    public boolean isHeadOfFile()
+    {
+        return input.isHeadOfFile();
+    }
+
     public boolean nextRecord()
     {
         // If at the end of record, read the next line and initialize the state
@@ -236,6 +244,7 @@ public class CsvTokenizer
                         quotedValue.append(newline);
                         quotedValueLines.add(line);
                         if (!nextLine(false)) {
+                            checkEndOfSplit();
                             throw new RuntimeException("Unexpected end of line during parsing a quoted value");  // TODO exception class
                         }
                         valueStartPos = 0;
@@ -264,6 +273,7 @@ public class CsvTokenizer
                             quotedValue.append(line.substring(valueStartPos, linePos));
                             quotedValueLines.add(line);
                             if (!nextLine(false)) {
+                                checkEndOfSplit();
                                 throw new RuntimeException("Unexpected end of line during parsing a quoted value");  // TODO exception class
                             }
                             valueStartPos = 0;
@@ -300,6 +310,16 @@ public class CsvTokenizer
         }
     }
 
+    // the next range of the split file starts in this quoted value. Records of the
+    // range are wrong. Skipping this record doesn't fix them
+    private void checkEndOfSplit()
+    {
+        if (input.isEndOfSplit()) {
+            throw new ConfigException(String.format(
+                        "A quoted value at line %d continues over a boundary of a split file. Splitting files can't be used with quoted values including newlines", lineNumber));
+        }
+    }
+
     public boolean wasQuotedColumn()
     {
         return wasQuotedColumn;
@@ -1,5 +1,6 @@
 package org.embulk.standards;
 
+import java.util.Iterator;
 import java.util.List;
 import java.io.File;
 import java.io.FileInputStream;
@@ -15,8 +16,11 @@ import javax.validation.constraints.NotNull;
 import com.google.common.collect.ImmutableList;
 import com.google.common.base.Optional;
 import com.fasterxml.jackson.annotation.JacksonInject;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
+import org.embulk.config.ConfigException;
 import org.embulk.config.Task;
 import org.embulk.config.TaskSource;
 import org.embulk.config.ConfigSource;
@@ -24,13 +28,15 @@ import org.embulk.config.ConfigDiff;
 import org.embulk.config.CommitReport;
 import org.embulk.spi.BufferAllocator;
 import org.embulk.spi.Exec;
+import org.embulk.spi.TaskCostEstimator;
 import org.embulk.spi.FileInputPlugin;
+import org.embulk.spi.SplitFileInput;
 import org.embulk.spi.TransactionalFileInput;
 import org.embulk.spi.util.InputStreamFileInput;
 import org.slf4j.Logger;
 
 public class LocalFileInputPlugin
-        implements FileInputPlugin
+        implements FileInputPlugin, TaskCostEstimator
 {
     public interface PluginTask
             extends Task
@@ -42,13 +48,69 @@ public class LocalFileInputPlugin
         @ConfigDefault("null")
         public Optional<String> getLastPath();
 
-        public List<String> getFiles();
-        public void setFiles(List<String> files);
+        // split_size: files larger than this size are split into byte ranges of this
+        // size, which are loaded in parallel. The parser finds the first record of
+        // each range. Ignored if the parser or decoders don't support splitting
+        // files. 0 disables splitting.
+        @Config("split_size")
+        @ConfigDefault("0")
+        public long getSplitSize();
+
+        // min_task_size: small files are grouped into a task until total size of
+        // the task reaches this size so that per-task overhead is amortized.
+        // 0 disables grouping.
+        @Config("min_task_size")
+        @ConfigDefault("0")
+        public long getMinTaskSize();
+
+        @Config("max_files_per_task")
+        @ConfigDefault("10000")
+        public int getMaxFilesPerTask();
+
+        // file ranges of each task
+        public List<List<FileRange>> getTaskRanges();
+        public void setTaskRanges(List<List<FileRange>> taskRanges);
 
         @JacksonInject
         public BufferAllocator getBufferAllocator();
     }
 
+    public static class FileRange
+    {
+        private final String path;
+        private final long offset;
+        private final long length;  // -1 means entire file
+
+        @JsonCreator
+        public FileRange(
+                @JsonProperty("path") String path,
+                @JsonProperty("offset") long offset,
+                @JsonProperty("length") long length)
+        {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @JsonProperty("path")
+        public String getPath()
+        {
+            return path;
+        }
+
+        @JsonProperty("offset")
+        public long getOffset()
+        {
+            return offset;
+        }
+
+        @JsonProperty("length")
+        public long getLength()
+        {
+            return length;
+        }
+    }
+
     private final Logger log = Exec.getLogger(getClass());
 
     @Override
@@ -59,10 +121,28 @@ public class LocalFileInputPlugin
         // list files recursively
         List<String> files = listFiles(task);
         log.info("Loading files {}", files);
-        task.setFiles(files);
 
-        // number of processors is same with number of files
-        int processorCount = task.getFiles().size();
+        if (task.getSplitSize() < 0) {
+            throw new ConfigException("split_size must not be negative: "+task.getSplitSize());
+        }
+        if (task.getMinTaskSize() < 0) {
+            throw new ConfigException("min_task_size must not be negative: "+task.getMinTaskSize());
+        }
+        if (task.getMaxFilesPerTask() <= 0) {
+            throw new ConfigException("max_files_per_task must be larger than 0: "+task.getMaxFilesPerTask());
+        }
+        boolean splittable = task.getSplitSize() > 0 && control instanceof FileInputPlugin.SplitControl &&
+            ((FileInputPlugin.SplitControl) control).isFileSplitSupported();
+        if (task.getSplitSize() > 0 && !splittable) {
+            log.warn("split_size is ignored because the parser or decoders don't support splitting files");
+        }
+        List<FileRange> ranges = splitFiles(files, splittable ? task.getSplitSize() : 0);
+        task.setTaskRanges(groupRanges(ranges, task.getMinTaskSize(), task.getMaxFilesPerTask()));
+        if (task.getTaskRanges().size() < ranges.size()) {
+            log.info("Grouped {} files into {} tasks", ranges.size(), task.getTaskRanges().size());
+        }
+        // number of processors is same with number of groups of file ranges
+        int processorCount = task.getTaskRanges().size();
         return resume(task.dump(), processorCount, control);
     }
 
@@ -81,6 +161,57 @@ public class LocalFileInputPlugin
             List<CommitReport> successCommitReports)
     { }
 
+    private List<FileRange> splitFiles(List<String> files, long splitSize)
+    {
+        ImmutableList.Builder<FileRange> builder = ImmutableList.builder();
+        for (String path : files) {
+            long size = new File(path).length();
+            if (splitSize <= 0 || size <= splitSize) {
+                builder.add(new FileRange(path, 0, -1));
+                continue;
+            }
+            long count = (size + splitSize - 1) / splitSize;
+            log.info("Splitting file {} into {} ranges", path, count);
+            for (long offset = 0; offset < size; offset += splitSize) {
+                builder.add(new FileRange(path, offset, Math.min(splitSize, size - offset)));
+            }
+        }
+        return builder.build();
+    }
+
+    // groups consecutive ranges so that total size of a group reaches minTaskSize.
+    // Order of the ranges is kept.
+    static List<List<FileRange>> groupRanges(List<FileRange> ranges, long minTaskSize, int maxFilesPerTask)
+    {
+        ImmutableList.Builder<List<FileRange>> builder = ImmutableList.builder();
+        ImmutableList.Builder<FileRange> group = ImmutableList.builder();
+        int groupFiles = 0;
+        long groupSize = 0;
+        for (FileRange range : ranges) {
+            group.add(range);
+            groupFiles++;
+            groupSize += getRangeSize(range);
+            if (groupSize >= minTaskSize || groupFiles >= maxFilesPerTask) {
+                builder.add(group.build());
+                group = ImmutableList.builder();
+                groupFiles = 0;
+                groupSize = 0;
+            }
+        }
+        if (groupFiles > 0) {
+            builder.add(group.build());
+        }
+        return builder.build();
+    }
+
+    private static long getRangeSize(FileRange range)
+    {
+        if (range.getLength() < 0) {
+            return new File(range.getPath()).length();
+        }
+        return range.getLength();
+    }
+
     public List<String> listFiles(PluginTask task)
     {
         Path pathPrefix = Paths.get(task.getPathPrefix()).normalize();
@@ -121,6 +252,21 @@ public class LocalFileInputPlugin
         return builder.build();
     }
 
+    @Override
+    public List<Long> estimateTaskCosts(TaskSource taskSource, int processorCount)
+    {
+        PluginTask task = taskSource.loadTask(PluginTask.class);
+        ImmutableList.Builder<Long> builder = ImmutableList.builder();
+        for (List<FileRange> ranges : task.getTaskRanges()) {
+            long size = 0;
+            for (FileRange range : ranges) {
+                size += getRangeSize(range);
+            }
+            builder.add(size);
+        }
+        return builder.build();
+    }
+
     @Override
     public TransactionalFileInput open(TaskSource taskSource, int processorIndex)
     {
@@ -130,37 +276,62 @@ public class LocalFileInputPlugin
 
     public static class LocalFileInput
             extends InputStreamFileInput
-            implements TransactionalFileInput
+            implements TransactionalFileInput, SplitFileInput
     {
-        // TODO create single-file InputStreamFileInput utility
-        private static class SingleFileProvider
+        private static class FileRangesProvider
                 implements InputStreamFileInput.Provider
         {
-            private final File file;
-            private boolean opened = false;
+            private final Iterator<FileRange> ranges;
+            private FileRange current;
 
-            public SingleFileProvider(File file)
+            public FileRangesProvider(List<FileRange> ranges)
             {
-                this.file = file;
+                this.ranges = ranges.iterator();
             }
 
             @Override
             public InputStream openNext() throws IOException
             {
-                if (opened) {
+                if (!ranges.hasNext()) {
+                    current = null;
                     return null;
                 }
-                opened = true;
-                return new FileInputStream(file);
+                current = ranges.next();
+                FileInputStream in = new FileInputStream(current.getPath());
+                if (current.getOffset() > 0) {
+                    // the parser reads beyond the range until the end of the last record
+                    in.getChannel().position(current.getOffset());
+                }
+                return in;
             }
 
             @Override
             public void close() { }
         }
 
+        private final FileRangesProvider provider;
+
         public LocalFileInput(PluginTask task, int processorIndex)
         {
-            super(task.getBufferAllocator(), new SingleFileProvider(new File(task.getFiles().get(processorIndex))));
+            this(task.getBufferAllocator(), new FileRangesProvider(task.getTaskRanges().get(processorIndex)));
+        }
+
+        private LocalFileInput(BufferAllocator allocator, FileRangesProvider provider)
+        {
+            super(allocator, provider);
+            this.provider = provider;
+        }
+
+        @Override
+        public long getSplitOffset()
+        {
+            return provider.current == null ? 0 : provider.current.getOffset();
+        }
+
+        @Override
+        public long getSplitLength()
+        {
+            return provider.current == null ? -1 : provider.current.getLength();
         }
 
         @Override
@@ -5,6 +5,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import org.embulk.config.Config;
@@ -110,9 +111,18 @@ public class LocalFileOutputPlugin
             public void add(Buffer buffer)
             {
                 try {
-                    output.write(buffer.array(), buffer.offset(), buffer.limit());
+                    if (buffer.hasArray()) {
+                        output.write(buffer.array(), buffer.offset(), buffer.limit());
+                    } else {
+                        ByteBuffer src = buffer.toByteBuffer(0, buffer.limit());
+                        while (src.hasRemaining()) {
+                            output.getChannel().write(src);
+                        }
+                    }
                 } catch (IOException ex) {
                     throw new RuntimeException(ex);
+                } finally {
+                    buffer.release();
                 }
             }
 
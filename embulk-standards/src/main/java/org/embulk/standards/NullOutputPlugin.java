@@ -9,10 +9,11 @@ import org.embulk.spi.Schema;
 import org.embulk.spi.Page;
 import org.embulk.spi.Exec;
 import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.SpeculativeExecutionSupport;
 import org.embulk.spi.TransactionalPageOutput;
 
 public class NullOutputPlugin
-        implements OutputPlugin
+        implements OutputPlugin, SpeculativeExecutionSupport
 {
     @Override
     public ConfigDiff transaction(ConfigSource config,
@@ -35,6 +36,13 @@ public class NullOutputPlugin
             List<CommitReport> successCommitReports)
     { }
 
+    @Override
+    public boolean isSpeculativeExecutionSupported(TaskSource taskSource)
+    {
+        // pages are discarded
+        return true;
+    }
+
     @Override
     public TransactionalPageOutput open(TaskSource taskSource, Schema schema, int processorIndex)
     {
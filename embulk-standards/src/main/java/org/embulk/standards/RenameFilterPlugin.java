@@ -0,0 +1,78 @@
+package org.embulk.standards;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+import com.google.common.collect.ImmutableList;
+import org.embulk.config.Config;
+import org.embulk.config.ConfigDefault;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.Task;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Column;
+import org.embulk.spi.FilterPlugin;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.ParallelFilterSupport;
+import org.embulk.spi.Schema;
+
+// Renames columns. Pages are passed through as they are because the layout
+// of records doesn't change.
+//
+//   filters:
+//     - type: rename
+//       columns:
+//         time: created_at
+public class RenameFilterPlugin
+        implements FilterPlugin, ParallelFilterSupport
+{
+    public interface PluginTask
+            extends Task
+    {
+        @Config("columns")
+        @ConfigDefault("{}")
+        public Map<String, String> getRenameMap();
+    }
+
+    @Override
+    public void transaction(ConfigSource config, Schema inputSchema,
+            FilterPlugin.Control control)
+    {
+        PluginTask task = config.loadConfig(PluginTask.class);
+        Map<String, String> renameMap = task.getRenameMap();
+
+        Set<String> inputNames = new HashSet<String>();
+        for (Column column : inputSchema.getColumns()) {
+            inputNames.add(column.getName());
+        }
+        for (String name : renameMap.keySet()) {
+            if (!inputNames.contains(name)) {
+                throw new ConfigException(String.format("Column '%s' to rename doesn't exist", name));
+            }
+        }
+
+        ImmutableList.Builder<Column> builder = ImmutableList.builder();
+        Set<String> outputNames = new HashSet<String>();
+        for (Column column : inputSchema.getColumns()) {
+            String name = renameMap.containsKey(column.getName()) ? renameMap.get(column.getName()) : column.getName();
+            if (!outputNames.add(name)) {
+                throw new ConfigException(String.format("Column '%s' is duplicated after renaming", name));
+            }
+            builder.add(new Column(column.getIndex(), name, column.getType()));
+        }
+        control.run(task.dump(), new Schema(builder.build()));
+    }
+
+    @Override
+    public boolean isParallelFilterSupported(TaskSource taskSource)
+    {
+        return true;
+    }
+
+    @Override
+    public PageOutput open(TaskSource taskSource, Schema inputSchema,
+            Schema outputSchema, PageOutput output)
+    {
+        return output;
+    }
+}
@@ -0,0 +1,64 @@
+package org.embulk.standards;
+
+import java.io.File;
+import java.util.List;
+import com.google.common.base.Optional;
+import org.embulk.config.Config;
+import org.embulk.config.ConfigDefault;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.Task;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Exec;
+import org.embulk.spi.FilterPlugin;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
+import org.embulk.spi.util.PageSorter;
+import org.embulk.spi.util.SortColumnConfig;
+import org.embulk.spi.util.SortingPageOutput;
+
+// Sorts records of each task by columns. Records exceeding memory_limit are
+// sorted in runs spilled to temporary files and merged at the end of the task.
+// Use with max_output_tasks: 1 to sort all records.
+public class SortFilterPlugin
+        implements FilterPlugin
+{
+    public interface PluginTask
+            extends Task
+    {
+        @Config("columns")
+        public List<SortColumnConfig> getColumns();
+
+        @Config("memory_limit")
+        @ConfigDefault("67108864")
+        public long getMemoryLimit();
+
+        @Config("temp_dir")
+        @ConfigDefault("null")
+        public Optional<String> getTempDir();
+    }
+
+    @Override
+    public void transaction(ConfigSource config, Schema inputSchema,
+            FilterPlugin.Control control)
+    {
+        PluginTask task = config.loadConfig(PluginTask.class);
+        if (task.getColumns().isEmpty()) {
+            throw new ConfigException("columns must not be empty");
+        }
+        SortColumnConfig.toSortKeys(task.getColumns(), inputSchema);  // validates the columns
+        control.run(task.dump(), inputSchema);
+    }
+
+    @Override
+    public PageOutput open(TaskSource taskSource, Schema inputSchema,
+            Schema outputSchema, PageOutput output)
+    {
+        PluginTask task = taskSource.loadTask(PluginTask.class);
+        File tempDirectory = new File(task.getTempDir().or(System.getProperty("java.io.tmpdir")));
+        PageSorter sorter = new PageSorter(Exec.getBufferAllocator(), inputSchema,
+                SortColumnConfig.toSortKeys(task.getColumns(), inputSchema),
+                task.getMemoryLimit(), tempDirectory);
+        return new SortingPageOutput(sorter, output);
+    }
+}
@@ -4,6 +4,7 @@ import com.google.common.base.Preconditions;
 import com.google.inject.Binder;
 import com.google.inject.Module;
 import com.google.inject.name.Names;
+import org.embulk.spi.FilterPlugin;
 import org.embulk.spi.FormatterPlugin;
 import org.embulk.spi.InputPlugin;
 import org.embulk.spi.OutputPlugin;
@@ -29,6 +30,10 @@ public class StandardPluginModule
         // file decoder plugins
         registerPluginTo(binder, DecoderPlugin.class, "gzip", GzipFileDecoderPlugin.class);
 
+        // filter plugins
+        registerPluginTo(binder, FilterPlugin.class, "rename", RenameFilterPlugin.class);
+        registerPluginTo(binder, FilterPlugin.class, "sort", SortFilterPlugin.class);
+
         // output plugins
         registerPluginTo(binder, OutputPlugin.class, "file", LocalFileOutputPlugin.class);
         registerPluginTo(binder, OutputPlugin.class, "null", NullOutputPlugin.class);
@@ -0,0 +1,122 @@
+package org.embulk.standards;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.embulk.EmbulkService;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.DataSourceImpl;
+import org.embulk.config.ModelManager;
+import org.embulk.exec.LocalExecutor;
+import org.embulk.spi.ExecSession;
+
+// Loads a local CSV file to the null output plugin with different
+// io_buffer_size and page_buffer_size system configs and prints the time.
+//
+// usage: gradle :embulk-standards:csvLoadBenchmark [-PbenchmarkArgs="rows io_sizes page_sizes"]
+//   rows: number of rows of the generated CSV file (default: 2000000)
+//   io_sizes: comma-separated io_buffer_size values (default: 8192,65536,1048576,8388608)
+//   page_sizes: comma-separated page_buffer_size values (default: 32768,262144)
+public class CsvLoadBenchmark
+{
+    private static final int REPEAT = 3;
+
+    public static void main(String[] args) throws Exception
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int[] ioSizes = parseSizes(args.length > 1 ? args[1] : "8192,65536,1048576,8388608");
+        int[] pageSizes = parseSizes(args.length > 2 ? args[2] : "32768,262144");
+
+        File dir = File.createTempFile("embulk-bench", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Failed to create a temporary directory: "+dir);
+        }
+        File file = new File(dir, "bench.csv");
+        try {
+            writeCsv(file, rows);
+            System.out.println(String.format("file: %s (%,d bytes, %,d rows)", file, file.length(), rows));
+
+            for (int pageSize : pageSizes) {
+                for (int ioSize : ioSizes) {
+                    long best = Long.MAX_VALUE;
+                    for (int i = 0; i < REPEAT + 1; i++) {
+                        long elapsed = run(file, ioSize, pageSize);
+                        if (i > 0) {  // first run is warm-up
+                            best = Math.min(best, elapsed);
+                        }
+                    }
+                    System.out.println(String.format("page_buffer_size: %9d  io_buffer_size: %9d  best: %6d ms  (%.1f MB/s)",
+                                pageSize, ioSize, best, file.length() / 1024.0 / 1024.0 / (best / 1000.0)));
+                }
+            }
+        } finally {
+            file.delete();
+            dir.delete();
+        }
+    }
+
+    private static int[] parseSizes(String list)
+    {
+        String[] split = list.split(",");
+        int[] sizes = new int[split.length];
+        for (int i = 0; i < split.length; i++) {
+            sizes[i] = Integer.parseInt(split[i].trim());
+        }
+        return sizes;
+    }
+
+    private static void writeCsv(File file, int rows) throws IOException
+    {
+        Random rand = new Random(0);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (int i = 0; i < rows; i++) {
+                out.write(Integer.toString(i));
+                out.write(',');
+                out.write("name_");
+                out.write(Long.toString(rand.nextLong() & 0xffffL, 36));
+                out.write(',');
+                out.write(Double.toString(rand.nextDouble() * 1000));
+                out.write(',');
+                out.write(Long.toString(rand.nextLong()));
+                out.write("\r\n");
+            }
+        }
+    }
+
+    private static long run(File file, int ioSize, int pageSize)
+    {
+        ModelManager bootstrapModelManager = new ModelManager(null, new ObjectMapper());
+        ConfigSource systemConfig = new DataSourceImpl(bootstrapModelManager)
+            .set("io_buffer_size", ioSize)
+            .set("page_buffer_size", pageSize);
+        EmbulkService service = new EmbulkService(systemConfig);
+
+        ConfigSource execConfig = new DataSourceImpl(bootstrapModelManager);
+        ExecSession exec = new ExecSession(service.getInjector(), execConfig);
+        ConfigSource config = exec.newConfigSource()
+            .set("in", ImmutableMap.of(
+                        "type", "file",
+                        "path_prefix", file.getPath(),
+                        "parser", ImmutableMap.of(
+                            "type", "csv",
+                            "columns", ImmutableList.of(
+                                ImmutableMap.of("name", "id", "type", "long"),
+                                ImmutableMap.of("name", "name", "type", "string"),
+                                ImmutableMap.of("name", "score", "type", "double"),
+                                ImmutableMap.of("name", "value", "type", "long")))))
+            .set("out", ImmutableMap.of("type", "null"));
+
+        LocalExecutor local = service.getInjector().getInstance(LocalExecutor.class);
+        long start = System.nanoTime();
+        local.run(exec, config);
+        return (System.nanoTime() - start) / 1000000;
+    }
+}
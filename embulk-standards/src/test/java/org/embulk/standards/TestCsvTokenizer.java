@@ -14,12 +14,14 @@ import org.junit.Rule;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.spi.Buffer;
 import org.embulk.spi.FileInput;
 import org.embulk.spi.Column;
 import org.embulk.spi.Schema;
 import org.embulk.spi.Exec;
+import org.embulk.spi.SplitFileInput;
 import org.embulk.spi.util.LineDecoder;
 import org.embulk.spi.util.ListFileInput;
 
@@ -255,6 +257,55 @@ public class TestCsvTokenizer
                     "\"trailing\n3\"  ,\"trailing\n4\"  "));
     }
 
+    // a range of a split file
+    private static class SplitListFileInput
+            extends ListFileInput
+            implements SplitFileInput
+    {
+        private final long offset;
+        private final long length;
+
+        public SplitListFileInput(byte[] data, int offset, int length)
+        {
+            super(ImmutableList.of(ImmutableList.of(Buffer.wrap(Arrays.copyOfRange(data, offset, data.length)))));
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public long getSplitOffset()
+        {
+            return offset;
+        }
+
+        @Override
+        public long getSplitLength()
+        {
+            return length;
+        }
+    }
+
+    @Test
+    public void parseSplitRanges() throws Exception
+    {
+        byte[] data = "aaa,bbb\n\"cc\"\"c\",ddd\neee,fff\n".getBytes(task.getCharset());
+        assertEquals(expectedRecords(2,
+                    "aaa", "bbb",
+                    "cc\"c", "ddd"),
+                parse(task, new SplitListFileInput(data, 0, 10)));
+        assertEquals(expectedRecords(2,
+                    "eee", "fff"),
+                parse(task, new SplitListFileInput(data, 10, data.length - 10)));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void parseQuotedValueOverSplitBoundary() throws Exception
+    {
+        // the next range starts at "ccc"
+        byte[] data = "aaa,\"bbb\nccc\"\nddd,eee\n".getBytes(task.getCharset());
+        parse(task, new SplitListFileInput(data, 0, 5));
+    }
+
     /*
     @Test(expected = CsvTokenizer.CsvValueValidateException.class)
     public void parseTooLargeSizedValues() throws Exception
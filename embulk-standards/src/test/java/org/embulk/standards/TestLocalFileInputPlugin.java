@@ -0,0 +1,101 @@
+package org.embulk.standards;
+
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import java.util.List;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.Exec;
+import org.embulk.standards.LocalFileInputPlugin.FileRange;
+import org.embulk.standards.LocalFileInputPlugin.PluginTask;
+
+public class TestLocalFileInputPlugin
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private static List<FileRange> newRanges(long... lengths)
+    {
+        ImmutableList.Builder<FileRange> builder = ImmutableList.builder();
+        for (int i=0; i < lengths.length; i++) {
+            builder.add(new FileRange("file" + i, 0, lengths[i]));
+        }
+        return builder.build();
+    }
+
+    private static List<Integer> groupSizes(List<List<FileRange>> groups)
+    {
+        ImmutableList.Builder<Integer> builder = ImmutableList.builder();
+        for (List<FileRange> group : groups) {
+            builder.add(group.size());
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void checkDefaultValues()
+    {
+        ConfigSource config = Exec.newConfigSource()
+            .set("path_prefix", "/tmp/embulk-test-")
+            .set("parser", ImmutableMap.of("type", "csv"));
+
+        PluginTask task = config.loadConfig(PluginTask.class);
+        assertEquals(0L, task.getSplitSize());
+        assertEquals(0L, task.getMinTaskSize());
+        assertEquals(10000, task.getMaxFilesPerTask());
+    }
+
+    @Test
+    public void testGroupRanges()
+    {
+        List<FileRange> ranges = newRanges(10, 10, 50, 100, 10, 10, 10, 10, 10);
+
+        // grouping is disabled
+        assertEquals(ImmutableList.of(1, 1, 1, 1, 1, 1, 1, 1, 1),
+                groupSizes(LocalFileInputPlugin.groupRanges(ranges, 0, 10000)));
+
+        assertEquals(ImmutableList.of(3, 1, 5),
+                groupSizes(LocalFileInputPlugin.groupRanges(ranges, 50, 10000)));
+
+        assertEquals(ImmutableList.of(2, 2, 2, 2, 1),
+                groupSizes(LocalFileInputPlugin.groupRanges(ranges, 1000, 2)));
+
+        // order is kept
+        List<List<FileRange>> groups = LocalFileInputPlugin.groupRanges(ranges, 50, 10000);
+        assertEquals("file2", groups.get(0).get(2).getPath());
+        assertEquals("file3", groups.get(1).get(0).getPath());
+    }
+
+    @Test
+    public void testTaskRangesSerialization()
+    {
+        ConfigSource config = Exec.newConfigSource()
+            .set("path_prefix", "/tmp/embulk-test-")
+            .set("parser", ImmutableMap.of("type", "csv"));
+        PluginTask task = config.loadConfig(PluginTask.class);
+        task.setTaskRanges(LocalFileInputPlugin.groupRanges(newRanges(10, 20, 30), 25, 10000));
+
+        PluginTask loaded = task.dump().loadTask(PluginTask.class);
+        assertEquals(2, loaded.getTaskRanges().size());
+        FileRange range = loaded.getTaskRanges().get(0).get(1);
+        assertEquals("file1", range.getPath());
+        assertEquals(0L, range.getOffset());
+        assertEquals(20L, range.getLength());
+    }
+
+    @Test
+    public void testEstimateTaskCosts()
+    {
+        ConfigSource config = Exec.newConfigSource()
+            .set("path_prefix", "/tmp/embulk-test-")
+            .set("parser", ImmutableMap.of("type", "csv"));
+        PluginTask task = config.loadConfig(PluginTask.class);
+        task.setTaskRanges(LocalFileInputPlugin.groupRanges(newRanges(10, 20, 100, 5), 25, 10000));
+
+        assertEquals(ImmutableList.of(30L, 100L, 5L),
+                new LocalFileInputPlugin().estimateTaskCosts(task.dump(), 3));
+    }
+}
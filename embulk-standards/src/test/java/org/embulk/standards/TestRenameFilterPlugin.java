@@ -0,0 +1,145 @@
+package org.embulk.standards;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.exec.LocalExecutor;
+import org.embulk.exec.MemoryBudget;
+import org.embulk.exec.ParallelFilterPageOutput;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.FilterPlugin;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+
+public class TestRenameFilterPlugin
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final Schema SCHEMA = PageTestUtils.newSchema(
+            PageTestUtils.newColumn("id", Types.LONG),
+            PageTestUtils.newColumn("name", Types.STRING));
+
+    private Schema transaction(ConfigSource config)
+    {
+        final List<Schema> outputSchema = new ArrayList<Schema>();
+        new RenameFilterPlugin().transaction(config, SCHEMA, new FilterPlugin.Control() {
+            public void run(TaskSource taskSource, Schema schema)
+            {
+                outputSchema.add(schema);
+            }
+        });
+        return outputSchema.get(0);
+    }
+
+    @Test
+    public void testRenameColumns()
+    {
+        Schema schema = transaction(Exec.newConfigSource()
+                .set("columns", ImmutableMap.of("id", "user_id")));
+        assertEquals("user_id", schema.getColumnName(0));
+        assertEquals(Types.LONG, schema.getColumnType(0));
+        assertEquals("name", schema.getColumnName(1));
+        assertEquals(SCHEMA.getFixedStorageSize(), schema.getFixedStorageSize());
+    }
+
+    @Test
+    public void testUnknownColumn()
+    {
+        try {
+            transaction(Exec.newConfigSource()
+                    .set("columns", ImmutableMap.of("time", "created_at")));
+            fail();
+        } catch (ConfigException ex) {
+            assertEquals("Column 'time' to rename doesn't exist", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testDuplicatedColumn()
+    {
+        try {
+            transaction(Exec.newConfigSource()
+                    .set("columns", ImmutableMap.of("id", "name")));
+            fail();
+        } catch (ConfigException ex) {
+            assertEquals("Column 'name' is duplicated after renaming", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testParallelFilterSupported()
+    {
+        assertTrue(ParallelFilterPageOutput.isSupported(
+                    ImmutableList.<FilterPlugin>of(new RenameFilterPlugin()),
+                    ImmutableList.of(Exec.newTaskSource())));
+    }
+
+    // reads a CSV file, renames a column on parallel filter threads and writes
+    // a CSV file with the file plugins
+    @Test
+    public void testParallelFilterThreads()
+            throws IOException
+    {
+        File directory = tempFolder.getRoot();
+        StringBuilder csv = new StringBuilder();
+        for (int i=0; i < 5000; i++) {
+            csv.append(i).append(",name").append(i).append("\n");
+        }
+        Files.write(new File(directory, "in.csv").toPath(), csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        Injector injector = Guice.createInjector(new EmbulkTestRuntime.TestRuntimeModule(), new StandardPluginModule());
+        ConfigSource systemConfig = runtime.getExec().newConfigSource()
+            .set("parallel_filter_threads", 4);
+        LocalExecutor executor = new LocalExecutor(injector, systemConfig, new MemoryBudget(systemConfig));
+
+        ConfigSource config = runtime.getExec().newConfigSource()
+            .set("in", ImmutableMap.of(
+                        "type", "file",
+                        "path_prefix", new File(directory, "in").getPath(),
+                        "parser", ImmutableMap.of(
+                            "type", "csv",
+                            "columns", ImmutableList.of(
+                                ImmutableMap.of("name", "id", "type", "long"),
+                                ImmutableMap.of("name", "name", "type", "string")))))
+            .set("filters", ImmutableList.of(ImmutableMap.of(
+                            "type", "rename",
+                            "columns", ImmutableMap.of("id", "user_id"))))
+            .set("out", ImmutableMap.of(
+                        "type", "file",
+                        "directory", directory.getPath(),
+                        "file_name", "out",
+                        "file_ext", "csv",
+                        "formatter", ImmutableMap.of("type", "csv")));
+        executor.run(new ExecSession(injector, runtime.getExec().newConfigSource()), config);
+
+        List<String> lines = Files.readAllLines(new File(directory, "out.000.00.csv").toPath(), StandardCharsets.UTF_8);
+        assertEquals("user_id,name", lines.get(0));
+        assertEquals(5001, lines.size());
+        for (int i=0; i < 5000; i++) {
+            assertEquals(i + ",name" + i, lines.get(i + 1));
+        }
+    }
+}
@@ -3,7 +3,14 @@ module Embulk
   class Buffer < String
     if Embulk.java?
       def self.from_java(java_buffer)
-        byte_list = org.jruby.util.ByteList.new(java_buffer.array(), java_buffer.offset(), java_buffer.limit(), false)
+        if java_buffer.hasArray
+          byte_list = org.jruby.util.ByteList.new(java_buffer.array(), java_buffer.offset(), java_buffer.limit(), false)
+        else
+          # buffer is backed by direct memory
+          bytes = ::Java::byte[java_buffer.limit].new
+          java_buffer.getBytes(0, bytes, 0, java_buffer.limit)
+          byte_list = org.jruby.util.ByteList.new(bytes, false)
+        end
         buffer = new
         buffer.replace(org.jruby.RubyString.new(JRuby.runtime, self, byte_list).dup)  # TODO simplify
         buffer
@@ -108,6 +108,30 @@ module Embulk
       end
       args = 1..1
 
+    when :server
+      op.banner = "Usage: server"
+      op.on('-b', '--bundle BUNDLE_DIR', 'Path to a Gemfile directory') do |path|
+      end
+      op.on('-I', '--load-path PATH', 'Add ruby script directory path ($LOAD_PATH)') do |load_path|
+        load_paths << load_path
+      end
+      op.on('-C', '--classpath PATH', "Add java classpath separated by #{classpath_separator} (CLASSPATH)") do |classpath|
+        classpaths.concat classpath.split(classpath_separator)
+      end
+      op.on('-a', '--address ADDRESS', 'Address to listen on (default: 127.0.0.1)') do |address|
+        options[:serverAddress] = address
+      end
+      op.on('-p', '--port PORT', Integer, 'Port to listen on (default: 8866)') do |port|
+        options[:serverPort] = port
+      end
+      op.on('-j', '--max-jobs NUM', Integer, 'Max number of jobs running at the same time (default: 4)') do |num|
+        options[:serverMaxJobs] = num
+      end
+      op.on('-t', '--token-file PATH', 'File of a token that clients send in "Authorization: Bearer" header. Created with a random token if it doesn\'t exist (default: ~/.embulk/server_token)') do |path|
+        options[:serverTokenFile] = path
+      end
+      args = 0..0
+
     #when :generate  # or :new
       # TODO create plugin templates
 
@@ -269,6 +293,7 @@ module Embulk
     STDERR.puts "   run       <config.yml>                             # run a bulk load transaction."
     STDERR.puts "   preview   <config.yml>                             # dry-run the bulk load without output and show preview."
     STDERR.puts "   guess     <partial-config.yml> -o <output.yml>     # guess missing parameters to create a complete configuration file."
+    STDERR.puts "   server    [-p <port>]                              # run, preview and guess configurations posted over HTTP."
     STDERR.puts "   gem       <install | list | help>                  # install a plugin or show installed plugins."
     STDERR.puts "                                                      # plugin path is #{ENV['GEM_HOME']}"
     STDERR.puts "   example   [path]                                   # creates an example config file and csv file to try embulk."
@@ -8,6 +8,7 @@ module Embulk
 
       record_reader_script =
         "lambda do |reader|\n" <<
+        "java_timestamp_class = ::Embulk::Java::Timestamp\n" <<
         "record = []\n"
       each do |column|
         idx = column.index
@@ -25,7 +26,7 @@ module Embulk
           when :string
             "record << reader.getString(#{idx})"
           when :timestamp
-            "record << reader.getTimestamp(#{idx}).getRubyTime(JRuby.runtime)"
+            "record << java_timestamp_class.toRubyTime(JRuby.runtime, reader.getTimestampEpochSecond(#{idx}), reader.getTimestampNano(#{idx}))"
           else
             raise "Unknown type #{column.type.inspect}"
           end <<
@@ -54,7 +55,7 @@ module Embulk
           when :string
             "builder.setString(#{idx}, record[#{idx}])"
           when :timestamp
-            "builder.setTimestamp(#{idx}, java_timestamp_class.fromRubyTime(record[#{idx}]))"
+            "builder.setTimestamp(#{idx}, record[#{idx}].to_i, record[#{idx}].nsec)"
           else
             raise "Unknown type #{column.type.inspect}"
           end <<